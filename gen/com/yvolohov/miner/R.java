@@ -90,38 +90,47 @@ public final class R {
     }
     public static final class string {
         public static final int app_name=0x7f060000;
-        public static final int author=0x7f06001e;
-        public static final int button_cancel=0x7f06001c;
-        public static final int button_clear_tab=0x7f06001a;
-        public static final int button_ok=0x7f06001b;
-        public static final int button_to_game=0x7f060019;
-        public static final int empty_string=0x7f060021;
-        public static final int field_height=0x7f060017;
-        public static final int field_width=0x7f060016;
-        public static final int flags_view_def=0x7f060020;
+        public static final int author=0x7f060027;
+        public static final int button_cancel=0x7f06001e;
+        public static final int button_clear_tab=0x7f06001c;
+        public static final int button_ok=0x7f06001d;
+        public static final int button_to_game=0x7f06001b;
+        public static final int empty_string=0x7f06002a;
+        public static final int field_height=0x7f060019;
+        public static final int field_width=0x7f060018;
+        public static final int flags_view_def=0x7f060029;
         public static final int item_continue=0x7f060001;
-        public static final int item_exit=0x7f060014;
+        public static final int item_exit=0x7f060016;
         public static final int item_new=0x7f060003;
         public static final int item_new_hard=0x7f06000a;
+        public static final int item_new_infinite=0x7f06000e;
         public static final int item_new_medium=0x7f060008;
         public static final int item_new_own=0x7f06000c;
         public static final int item_new_simple=0x7f060006;
-        public static final int item_results=0x7f06000e;
-        public static final int item_return=0x7f060012;
-        public static final int item_rules=0x7f060010;
-        public static final int mines_count=0x7f060018;
+        public static final int item_no_guess=0x7f060022;
+        public static final int item_results=0x7f060010;
+        public static final int item_return=0x7f060014;
+        public static final int item_rules=0x7f060012;
+        public static final int menu_redo=0x7f060021;
+        public static final int menu_undo=0x7f060020;
+        public static final int mines_count=0x7f06001a;
+        public static final int stats_format=0x7f060026;
         public static final int sub_item_continue=0x7f060002;
-        public static final int sub_item_exit=0x7f060015;
+        public static final int sub_item_exit=0x7f060017;
+        public static final int sub_item_loading=0x7f060025;
         public static final int sub_item_new_hard=0x7f06000b;
         public static final int sub_item_new_hex=0x7f060005;
+        public static final int sub_item_new_infinite=0x7f06000f;
         public static final int sub_item_new_medium=0x7f060009;
         public static final int sub_item_new_own=0x7f06000d;
         public static final int sub_item_new_simple=0x7f060007;
         public static final int sub_item_new_squ=0x7f060004;
-        public static final int sub_item_results=0x7f06000f;
-        public static final int sub_item_return=0x7f060013;
-        public static final int sub_item_rules=0x7f060011;
-        public static final int time_view_def=0x7f06001f;
-        public static final int win_record=0x7f06001d;
+        public static final int sub_item_no_guess_off=0x7f060023;
+        public static final int sub_item_no_guess_on=0x7f060024;
+        public static final int sub_item_results=0x7f060011;
+        public static final int sub_item_return=0x7f060015;
+        public static final int sub_item_rules=0x7f060013;
+        public static final int time_view_def=0x7f060028;
+        public static final int win_record=0x7f06001f;
     }
 }
@@ -0,0 +1,372 @@
+package com.yvolohov.miner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.os.Process;
+
+/**
+ * Класс отвечает за автоматическое сохранение игры. Каждый ход
+ * дописывается в журнал ходов (MoveJournal): ходы кодируются в буфер
+ * игрового потока и передаются в фоновый поток одной пачкой за виток
+ * игрового цикла. Полный снимок игры
+ * записывается периодически: после SNAPSHOT_MOVES ходов, когда игрок
+ * сделал паузу, при перезапуске игры и при уходе с игрового экрана.
+ * В игровом потоке снимок ячейки не копирует (см. CellSnapshot),
+ * а упаковка ячеек, контрольная сумма и вся работа с файлами
+ * выполняются по порядку в одном фоновом потоке. На полях от
+ * JOURNAL_ONLY_CELLS ячеек длинный журнал не вызывает снимка, снимок
+ * делается только тогда, когда без него не обойтись. Снимок пишется
+ * во временный файл, который затем переименовывается, поэтому файл
+ * сохранения никогда не бывает записан наполовину
+ * @author yvolohov
+ */
+class AutoSaver implements GameListener, FieldListener {
+
+	public static final int SNAPSHOT_MOVES = 100;
+	public static final long SAVE_DELAY = 2000L;
+	public static final int JOURNAL_ONLY_CELLS = 1 << 22;
+
+	private static final int MOVES_BUFFER = 256;
+
+	private final Context context;
+	private final String fileName;
+	private final MoveJournal journal;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private volatile CountDownLatch snapshotTaken;
+
+	private GameField gameField;
+	private boolean journalReady, snapshotNeeded;
+	private volatile boolean journalBroken;
+	private int journalMoves;
+	private byte[] moves = new byte[MOVES_BUFFER];
+	private int movesLength;
+	private long lastChange;
+
+	/**
+	 * @param context контекст приложения, в папку которого пишутся файлы;
+	 * @param fileName имя файла сохранения, журнал получает то же имя
+	 * с расширением .journal;
+	 */
+	public AutoSaver(Context context, String fileName) {
+		this.context = context;
+		this.fileName = fileName;
+		this.journal = new MoveJournal(context, fileName + ".journal");
+	}
+
+	/**
+	 * Читает заголовок снимка игры, не загружая поле
+	 * @return сведения о сохраненной игре или null, если сохранения
+	 * нет или оно записано в другом формате
+	 */
+	public GameStorage.Header readHeader() {
+
+		try {
+			FileInputStream fis = context.openFileInput(fileName);
+			try {return GameStorage.readHeader(fis);}
+			finally {fis.close();}
+		}
+		catch (IOException e) {return null;}
+	}
+
+	/**
+	 * Запускает восстановление игры в фоновом потоке автосохранения,
+	 * поэтому оно гарантированно закончится до следующей записи
+	 * @return результат восстановления, игровой экран или null
+	 */
+	public Future<GameScreen> restoreLater() {
+		return executor.submit(new Callable<GameScreen>() {
+			public GameScreen call() {return restore();}
+		});
+	}
+
+	/**
+	 * Восстанавливает игру из снимка и журнала ходов. Вызывается
+	 * до запуска игрового потока
+	 * @return игровой экран или null, если сохранения нет
+	 * или оно повреждено
+	 */
+	public GameScreen restore() {
+
+		try {
+			FileInputStream fis = context.openFileInput(fileName);
+			byte[] data;
+			
+			try {data = GameStorage.readAll(fis);}
+			finally {fis.close();}
+			
+			GameScreen screen = GameStorage.readScreen(data);
+			journal.replay(GameStorage.getChecksum(data), screen.getGameField());
+			return screen;
+		}
+		catch (IOException e) {return null;}
+	}
+
+	/**
+	 * Начинает наблюдение за игрой, вызывается игровым потоком до первого витка
+	 * @param screen игровой экран;
+	 */
+	public void attach(GameScreen screen) {
+		screen.addGameListener(this);
+		watchField(screen.getGameField());
+	}
+
+	/**
+	 * Прекращает наблюдение за игрой, вызывается после остановки
+	 * игрового потока
+	 * @param screen игровой экран;
+	 */
+	public void detach(GameScreen screen) {
+		screen.removeGameListener(this);
+		watchField(null);
+	}
+
+	/**
+	 * После перезапуска игры переключается на новое поле и
+	 * запрашивает снимок, вызывается в игровом потоке
+	 */
+	public void onCommandProcessed(GameCommand command, GameField gameField) {
+
+		if (command.type == GameCommand.RESTART && gameField != this.gameField) {
+			watchField(gameField);
+			requestSnapshot();
+		}
+	}
+
+	/**
+	 * Передает ход в журнал, вызывается в игровом потоке
+	 */
+	public void onFieldChanged(GameField gameField, FieldChange change) {
+
+		lastChange = System.currentTimeMillis();
+
+		/* журнал еще не связан со снимком текущей игры или снимок уже
+		 * запрошен, ход будет сохранен вместе со снимком */
+		if (snapshotNeeded || !journalReady) {
+			snapshotNeeded = true;
+			return;
+		}
+
+		/* отмена и повтор не воспроизводятся по журналу,
+		 * поэтому после них игра сохраняется снимком */
+		if (change.type == FieldChange.UNDO || change.type == FieldChange.REDO) {
+			requestSnapshot();
+			return;
+		}
+
+		if (moves.length - movesLength < MoveJournal.MAX_RECORD) {
+			byte[] newMoves = new byte[moves.length * 2];
+			System.arraycopy(moves, 0, newMoves, 0, movesLength);
+			moves = newMoves;
+		}
+
+		int length = MoveJournal.encodeMove(change, gameField.getTime(), moves, movesLength);
+		if (length == movesLength) return;
+
+		movesLength = length;
+		journalMoves++;
+	}
+
+	/**
+	 * Записывает снимок игры, если он нужен, вызывается в игровом
+	 * потоке на каждом витке игрового цикла
+	 * @param screen игровой экран;
+	 */
+	public void update(GameScreen screen) {
+
+		if (journalBroken) requestSnapshot();
+
+		/* снимок откладывается до конца открытия области */
+		if (screen.getGameField().isCascading()) {
+			flushMoves();
+			return;
+		}
+
+		GameField field = screen.getGameField();
+		boolean largeField = (long) field.getFWidth() * field.getFHeight() >= JOURNAL_ONLY_CELLS
+			&& field.getLevel() != GameField.INFINITE_LEVEL;
+		boolean longJournal = !largeField && journalMoves >= SNAPSHOT_MOVES &&
+			System.currentTimeMillis() - lastChange >= SAVE_DELAY;
+
+		if (snapshotNeeded || longJournal) save(screen);
+		flushMoves();
+	}
+
+	/**
+	 * Запрашивает снимок игры. Журнал до снимка больше не пополняется,
+	 * иначе следующие ходы попали бы в журнал предыдущего снимка
+	 */
+	private void requestSnapshot() {
+		snapshotNeeded = true;
+		journalReady = false;
+		movesLength = 0;
+	}
+
+	/**
+	 * Передает накопленные за виток игрового цикла ходы в фоновый
+	 * поток одной записью в журнал
+	 */
+	private void flushMoves() {
+
+		if (movesLength == 0) return;
+
+		final byte[] batch = new byte[movesLength];
+		System.arraycopy(moves, 0, batch, 0, movesLength);
+		movesLength = 0;
+
+		executor.execute(new Runnable() {
+			public void run() {
+				if (!journal.append(batch, batch.length)) journalBroken = true;
+			}
+		});
+	}
+
+	/**
+	 * Делает снимок игры в текущем потоке и передает его на запись
+	 * в фоновый поток, после записи снимка журнал начинается заново.
+	 * Ячейки поля в текущем потоке не копируются и не упаковываются.
+	 * Если предыдущий снимок еще пишется, новый откладывается до
+	 * следующего витка игрового цикла. Незаконченное открытие области 
+	 * перед снимком доводится до конца. Вызывается в игровом потоке
+	 * @param screen игровой экран;
+	 */
+	public void save(GameScreen screen) {
+
+		screen.getGameField().finishCascade();
+
+		final GameStorage.Snapshot snapshot = takeSnapshot(screen);
+		if (snapshot == null) return;
+
+		executor.execute(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				writeSnapshot(snapshot);
+			}
+		});
+	}
+
+	/**
+	 * Сохраняет игру после остановки игрового потока: и снимок, и запись
+	 * выполняются в фоновом потоке, поэтому главный поток не ждет ни
+	 * снимка, ни записи. Следующий игровой поток перед первым витком
+	 * ждет только снимка, см. awaitSnapshot
+	 * @param screen игровой экран;
+	 */
+	public void saveLater(final GameScreen screen) {
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		snapshotTaken = latch;
+
+		executor.execute(new Runnable() {
+			public void run() {
+				GameStorage.Snapshot snapshot;
+
+				try {
+					screen.getGameField().finishCascade();
+					snapshot = takeSnapshot(screen);
+				}
+				finally {latch.countDown();}
+
+				/* предыдущие снимки уже записаны этим же потоком */
+				if (snapshot != null) writeSnapshot(snapshot);
+			}
+		});
+	}
+
+	/**
+	 * Ждет, пока фоновый поток сделает снимок, начатый saveLater,
+	 * после этого поле снова можно изменять. Вызывается в игровом
+	 * потоке до первого изменения поля
+	 */
+	public void awaitSnapshot() {
+
+		CountDownLatch latch = snapshotTaken;
+		if (latch == null) return;
+
+		try {latch.await();}
+		catch (InterruptedException e) {Thread.currentThread().interrupt();}
+	}
+
+	/**
+	 * Делает снимок игры и начинает журнал заново
+	 * @param screen игровой экран;
+	 * @return снимок игры или null, если предыдущий снимок еще пишется
+	 */
+	private GameStorage.Snapshot takeSnapshot(GameScreen screen) {
+
+		GameStorage.Snapshot snapshot;
+
+		try {snapshot = GameStorage.takeSnapshot(screen);}
+		catch (IOException e) {return null;}
+
+		if (snapshot == null) return null;
+
+		snapshotNeeded = false;
+		journalBroken = false;
+		journalReady = true;
+		journalMoves = 0;
+
+		/* ходы, еще не переданные в журнал, уже есть в снимке */
+		movesLength = 0;
+		return snapshot;
+	}
+
+	/**
+	 * Записывает снимок в файл, вызывается в фоновом потоке
+	 * @param snapshot снимок игры;
+	 */
+	private void writeSnapshot(GameStorage.Snapshot snapshot) {
+		try {
+			journal.reset(writeFile(snapshot));
+		}
+		catch (IOException e) {
+			journal.discard();
+			journalBroken = true;
+		}
+	}
+
+	/**
+	 * Переключает слушателя изменений на другое игровое поле
+	 * @param gameField новое поле или null;
+	 */
+	private void watchField(GameField gameField) {
+		if (this.gameField != null) this.gameField.removeFieldListener(this);
+		this.gameField = gameField;
+		if (gameField != null) gameField.addFieldListener(this);
+	}
+
+	/**
+	 * Записывает снимок во временный файл и заменяет им файл сохранения
+	 * @param snapshot снимок игры;
+	 * @return контрольная сумма сохранения
+	 * @throws IOException
+	 */
+	private long writeFile(GameStorage.Snapshot snapshot) throws IOException {
+
+		String tempName = fileName + ".tmp";
+		FileOutputStream fos = context.openFileOutput(tempName, Context.MODE_PRIVATE);
+		long checksum;
+
+		try {
+			checksum = snapshot.writeTo(fos);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+
+		File tempFile = context.getFileStreamPath(tempName);
+
+		if (!tempFile.renameTo(context.getFileStreamPath(fileName)))
+			throw new IOException("Can't replace " + fileName);
+
+		return checksum;
+	}
+}
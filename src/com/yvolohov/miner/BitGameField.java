@@ -0,0 +1,635 @@
+package com.yvolohov.miner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Модель игры "Сапер" с квадратными ячейками, в которой поле хранится
+ * битовыми плоскостями: по строкам из слов long лежат признак мины и
+ * три бита отметки ячейки. Пустая область открывается не обходом по
+ * ячейкам, а наращиванием битовой маски: строки области расширяются
+ * на соседей в пределах плоскости пустых закрытых ячеек, по 64 ячейки
+ * за операцию, проходами вниз и вверх, пока область растет. Цифры
+ * открытых ячеек считаются побитовыми сумматорами по соседним строкам
+ * плоскости мин. Используется для больших полей со своими настройками
+ * @author yvolohov
+ */
+public class BitGameField extends SquGameField {
+
+    public static final int MIN_CELLS = 1 << 20;
+
+    private static final int SNAPSHOT_BLOCK_SHIFT = 10;
+    private static final int PACK_BUFFER = 1 << 16;
+    private static final int ROW_CHECK_MASK = 0xF;
+
+    /* стадии открытия области */
+    private static final int GROW_DOWN = 0;
+    private static final int GROW_UP = 1;
+    private static final int OPEN_ROWS = 2;
+
+    /* поля не инициализируются в объявлении, потому что makeField
+     * и unpackCells вызываются из конструктора GameField */
+    private int words;
+    private long lastMask;
+    private long[] mines, state0, state1, state2;
+    private long[] region;
+    private int regionFirst, regionLast, regionRow, regionStep;
+    private boolean regionGrown;
+    private long[] rowA, rowB, rowC, rowD;
+    private long[] count0, count1, count2, count3;
+
+    /**
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     */
+    public BitGameField(int width, int height, int mines) {
+    	super(width, height, mines);
+    }
+
+    /**
+     * Восстанавливает сохраненное игровое поле
+     * @param level уровень сложности игры или 0 для
+     * игры со своими настройками;
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @param packedCells упакованные состояния ячеек;
+     */
+    public BitGameField(int level, int width, int height, int mines, byte[] packedCells) {
+    	super(level, width, height, mines, packedCells);
+    }
+
+    /**
+     * Создает новое поле с теми же настройками
+     * @return новый экземпляр игрового поля
+     */
+    @Override
+    public GameField reCreate() {
+    	return new BitGameField(getFWidth(), getFHeight(), getMines());
+    }
+
+    // -= STORAGE =-
+
+    /**
+     * Создает битовые плоскости, все ячейки закрыты и без мин
+     */
+    private void allocate() {
+
+    	int width = getFWidth();
+    	int height = getFHeight();
+
+    	words = (width + 63) >>> 6;
+    	lastMask = ((width & 63) == 0) ? -1L : (1L << width) - 1;
+    	mines = new long[height * words];
+    	state0 = new long[height * words];
+    	state1 = new long[height * words];
+    	state2 = new long[height * words];
+
+    	/* состояние 1 - закрытая неотмеченная ячейка */
+    	Arrays.fill(state0, -1L);
+    	for (int row = 0; row < height; row++)
+    		state0[(row * words) + words - 1] = lastMask;
+    }
+
+    /**
+     * Создает поле и расставляет мины в плоскости мин, большие
+     * поля заполняются параллельно, полосами
+     */
+    @Override
+    protected void makeField() {
+
+    	allocate();
+
+    	int size = getFWidth() * getFHeight();
+
+    	if (size >= StripeGenerator.MIN_CELLS) {
+    		StripeGenerator.generate(new Random().nextLong(), getFWidth(), getFHeight(), getMines(),
+    			new StripeGenerator.Stripe() {
+    				public void fill(int from, int to, int count, Random rand) {
+    					placeMines(from, to, count, rand);
+    				}
+    			}, WorkerPool.getThreads());
+    	} else {
+    		placeMines(0, size, getMines(), new Random());
+    	}
+    }
+
+    /**
+     * Расставляет мины в части поля из целых строк, части не делят
+     * слов плоскостей и могут заполняться параллельно
+     * @param from плоский индекс первой ячейки части;
+     * @param to плоский индекс ячейки за последней ячейкой части;
+     * @param count количество мин в части;
+     * @param rand генератор случайных чисел;
+     */
+    private void placeMines(int from, int to, int count, Random rand) {
+
+    	int size = to - from;
+    	boolean dense = count > size / 2;
+    	int changes = dense ? size - count : count;
+
+    	/* у закрытых ячеек выставлен бит state0, им же заполняются мины */
+    	if (dense) {
+    		int first = (from / getFWidth()) * words;
+    		int last = (to / getFWidth()) * words;
+    		System.arraycopy(state0, first, mines, first, last - first);
+    	}
+
+    	while (changes > 0) {
+    		int index = from + rand.nextInt(size);
+    		int word = getWord(index);
+    		long bit = getBit(index);
+
+    		if (((mines[word] & bit) != 0) != dense) continue;
+
+    		mines[word] ^= bit;
+    		changes--;
+    	}
+    }
+
+    /**
+     * Раскладывает упакованные ячейки по битовым плоскостям
+     */
+    @Override
+    protected void unpackCells(byte[] packed) {
+
+    	allocate();
+
+    	int size = getFWidth() * getFHeight();
+
+    	for (int index = 0; index < size; index++)
+    		setNibble(index, (packed[index >> 1] >> ((index & 1) << 2)) & 0x0F);
+
+    	countCells();
+    }
+
+    /**
+     * Передает упаковщику ячейки слов плоскостей по порядку, у последнего
+     * слова строки берутся только ячейки в пределах ширины поля
+     * @param packer упаковщик;
+     * @param bits0 младший бит отметки, плоскость или копия ее части;
+     * @param bits1 средний бит отметки;
+     * @param bits2 старший бит отметки;
+     * @param base номер слова плоскости, с которого начинаются bits0..bits2;
+     * @param from номер первого слова, начало строки или любое слово;
+     * @param to номер слова за последним;
+     * @throws IOException
+     */
+    private void packWords(NibblePacker packer, long[] bits0, long[] bits1, long[] bits2,
+    	int base, int from, int to) throws IOException {
+
+    	int tail = getFWidth() - ((words - 1) << 6);
+
+    	for (int word = from; word < to; word++) {
+    		int count = (word % words == words - 1) ? tail : 64;
+    		packer.putWord(mines[word], bits0[word - base], bits1[word - base],
+    			bits2[word - base], count);
+    	}
+    }
+
+    /**
+     * Снимок ячеек блоками по 1024 слова плоскостей отметок, плоскость
+     * мин после создания поля не меняется и не копируется. Ячейки
+     * упаковываются в поток по словам, см. NibblePacker
+     */
+    @Override
+    protected CellSnapshot createCellSnapshot() {
+
+    	final int total = getFHeight() * words;
+    	final int blockSize = 1 << SNAPSHOT_BLOCK_SHIFT;
+    	final int blocks = (total + blockSize - 1) >> SNAPSHOT_BLOCK_SHIFT;
+    	final long[][] copies = new long[blocks * 3][];
+
+    	return new CellSnapshot(blocks) {
+    		private NibblePacker packer;
+
+    		protected void copyBlock(int block) {
+    			int from = block << SNAPSHOT_BLOCK_SHIFT;
+    			int count = Math.min(blockSize, total - from);
+    			copies[block * 3] = copyWords(state0, from, count);
+    			copies[block * 3 + 1] = copyWords(state1, from, count);
+    			copies[block * 3 + 2] = copyWords(state2, from, count);
+    		}
+
+    		protected void writeBlock(OutputStream out, int block, boolean copied)
+    			throws IOException {
+
+    			if (packer == null) packer = new NibblePacker(out, PACK_BUFFER);
+
+    			int from = block << SNAPSHOT_BLOCK_SHIFT;
+    			int to = Math.min(from + blockSize, total);
+
+    			if (copied) packWords(packer, copies[block * 3], copies[block * 3 + 1],
+    				copies[block * 3 + 2], from, from, to);
+    			else packWords(packer, state0, state1, state2, 0, from, to);
+    		}
+
+    		protected void finishWrite(OutputStream out) throws IOException {
+    			if (packer == null) packer = new NibblePacker(out, PACK_BUFFER);
+    			packer.finish();
+    		}
+    	};
+    }
+
+    /**
+     * Копирует часть плоскости
+     * @param plane плоскость;
+     * @param from номер первого слова;
+     * @param count количество слов;
+     * @return копия слов
+     */
+    private static long[] copyWords(long[] plane, int from, int count) {
+    	long[] copy = new long[count];
+    	System.arraycopy(plane, from, copy, 0, count);
+    	return copy;
+    }
+
+    /**
+     * Собирает упакованное состояние ячейки из битовых плоскостей
+     */
+    @Override
+    protected int getNibble(int index) {
+
+    	int word = getWord(index);
+    	long bit = getBit(index);
+
+    	int state = ((state0[word] & bit) != 0 ? 1 : 0) | ((state1[word] & bit) != 0 ? 2 : 0)
+    		| ((state2[word] & bit) != 0 ? 4 : 0);
+
+    	return (state << 1) | ((mines[word] & bit) != 0 ? 1 : 0);
+    }
+
+    /**
+     * Раскладывает упакованное состояние ячейки по битовым плоскостям
+     */
+    @Override
+    protected void setNibble(int index, int nibble) {
+
+    	int word = getWord(index);
+    	long bit = getBit(index);
+    	int state = nibble >> 1;
+
+    	/* мина ячейки при записи не меняется, поэтому снимок копирует
+    	 * только плоскости отметок */
+    	copyOnWrite(word >> SNAPSHOT_BLOCK_SHIFT);
+    	mines[word] = ((nibble & 1) != 0) ? (mines[word] | bit) : (mines[word] & ~bit);
+    	state0[word] = ((state & 1) != 0) ? (state0[word] | bit) : (state0[word] & ~bit);
+    	state1[word] = ((state & 2) != 0) ? (state1[word] | bit) : (state1[word] & ~bit);
+    	state2[word] = ((state & 4) != 0) ? (state2[word] | bit) : (state2[word] & ~bit);
+    }
+
+    /**
+     * Возвращает номер слова плоскости, в котором лежит ячейка
+     * @param index плоский индекс ячейки;
+     * @return номер слова
+     */
+    private int getWord(int index) {
+    	int posH = index / getFWidth();
+    	int posW = index - (posH * getFWidth());
+    	return (posH * words) + (posW >>> 6);
+    }
+
+    /**
+     * Возвращает бит ячейки в слове плоскости
+     * @param index плоский индекс ячейки;
+     * @return слово с единственным битом ячейки
+     */
+    private long getBit(int index) {
+    	return 1L << (index % getFWidth());
+    }
+
+    // -= REGION OPENING =-
+
+    /**
+     * Начинает открытие пустой области наращиванием битовой маски.
+     * Сначала строится связная область пустых ячеек, которые можно
+     * открыть, затем открываются она и все ее соседи. Обе стадии идут
+     * по строкам в continueRegion, поэтому открытие большой области
+     * делится на части так же, как обход
+     */
+    @Override
+    protected boolean openRegion(int posW, int posH) {
+
+    	if (region == null) {
+    		region = new long[getFHeight() * words];
+    		rowA = new long[words];
+    		rowB = new long[words];
+    		rowC = new long[words];
+    		rowD = new long[words];
+    		count0 = new long[words];
+    		count1 = new long[words];
+    		count2 = new long[words];
+    		count3 = new long[words];
+    	}
+
+    	region[(posH * words) + (posW >>> 6)] = 1L << posW;
+    	regionFirst = posH;
+    	regionLast = posH;
+    	regionRow = posH;
+    	regionStep = GROW_DOWN;
+    	regionGrown = false;
+    	return true;
+    }
+
+    /**
+     * Продолжает открытие области: проходы вниз и вверх по строкам,
+     * пока область растет, затем открытие строк области с соседями.
+     * Время проверяется после каждых нескольких строк
+     * @return false если время истекло и открытие нужно продолжить позже
+     */
+    @Override
+    protected boolean continueRegion() {
+
+    	int height = getFHeight();
+    	int rows = 0;
+
+    	while (regionStep != OPEN_ROWS) {
+    		if ((++rows & ROW_CHECK_MASK) == 0 && isSliceOver()) return false;
+
+    		if (regionStep == GROW_DOWN) {
+    			if (regionRow < height && regionRow <= regionLast + 1) {
+    				if (growRow(regionRow)) {
+    					regionGrown = true;
+    					if (regionRow > regionLast) regionLast = regionRow;
+    				}
+    				regionRow++;
+    				continue;
+    			}
+
+    			regionStep = GROW_UP;
+    			regionRow = regionLast;
+    		}
+    		else if (regionRow >= 0 && regionRow >= regionFirst - 1) {
+    			if (growRow(regionRow)) {
+    				regionGrown = true;
+    				if (regionRow < regionFirst) regionFirst = regionRow;
+    			}
+    			regionRow--;
+    		}
+    		else if (regionGrown) {
+    			regionGrown = false;
+    			regionStep = GROW_DOWN;
+    			regionRow = regionFirst;
+    		}
+    		else {
+    			regionStep = OPEN_ROWS;
+    			regionRow = Math.max(regionFirst - 1, 0);
+    		}
+    	}
+
+    	/* каждая часть хода - отдельное изменение поля, запись начинается заново */
+    	boolean recording = true;
+
+    	for (; regionRow <= Math.min(regionLast + 1, height - 1); regionRow++) {
+    		if ((++rows & ROW_CHECK_MASK) == 0 && isSliceOver()) return false;
+    		recording = openRow(regionRow, recording);
+
+    		/* после победы обход не продолжается, маска очищается сейчас */
+    		if (getGameState() != ACTION_GAME_STATE) break;
+    	}
+
+    	Arrays.fill(region, regionFirst * words, (regionLast + 1) * words, 0L);
+    	return true;
+    }
+
+    /**
+     * Открывает ячейки строки, соседние с областью
+     * @param row индекс строки;
+     * @param recording true если ячейки записываются в изменение поля;
+     * @return false если ячейки больше не нужно записывать
+     */
+    private boolean openRow(int row, boolean recording) {
+
+    	/* соседи области: строки выше, ниже и сама строка, расширенные по ширине */
+    	combine(region, row - 1, region, row, region, row + 1, rowA);
+    	dilate(rowA, rowB);
+    	getValid(row, rowC);
+
+    	if (recording) countMines(row);
+
+    	int opened = 0;
+
+    	for (int word = 0; word < words; word++) {
+    		long bits = rowB[word] & rowC[word];
+    		if (bits == 0) continue;
+
+    		int offset = (row * words) + word;
+    		copyOnWrite(offset >> SNAPSHOT_BLOCK_SHIFT);
+    		long prev0 = state0[offset], prev1 = state1[offset], prev2 = state2[offset];
+    		state0[offset] &= ~bits;
+    		state1[offset] &= ~bits;
+    		state2[offset] &= ~bits;
+    		opened += Long.bitCount(bits);
+
+    		while (recording && bits != 0) {
+    			int bit = Long.numberOfTrailingZeros(bits);
+    			bits &= bits - 1;
+
+    			int number = (int) (((count0[word] >>> bit) & 1) | (((count1[word] >>> bit) & 1) << 1)
+    				| (((count2[word] >>> bit) & 1) << 2) | (((count3[word] >>> bit) & 1) << 3));
+
+    			/* открываются только ячейки без мин */
+    			int prev = (int) (((prev0 >>> bit) & 1) | (((prev1 >>> bit) & 1) << 1)
+    				| (((prev2 >>> bit) & 1) << 2));
+
+    			recording = recordCell((row * getFWidth()) + (word << 6) + bit,
+    				(byte) (OPENED_CELLS + number), prev << 1);
+    		}
+    	}
+
+    	addOpenedCells(opened);
+    	return recording;
+    }
+
+    /**
+     * Расширяет строку области: берет ее биты и соседей из строк выше
+     * и ниже и заливает ими отрезки пустых закрытых ячеек строки
+     * @param row индекс строки;
+     * @return true если строка области изменилась
+     */
+    private boolean growRow(int row) {
+
+    	combine(region, row - 1, region, row + 1, null, 0, rowA);
+    	dilate(rowA, rowB);
+
+    	int offset = row * words;
+    	boolean any = false;
+
+    	for (int word = 0; word < words; word++) {
+    		rowB[word] |= region[offset + word];
+    		any |= rowB[word] != 0;
+    	}
+
+    	if (!any) return false;
+
+    	/* можно расширяться по пустым закрытым ячейкам и по самой области */
+    	getZero(row, rowA);
+    	getValid(row, rowC);
+
+    	for (int word = 0; word < words; word++) {
+    		rowC[word] = (rowA[word] & rowC[word]) | region[offset + word];
+    		rowB[word] &= rowC[word];
+    	}
+
+    	fillRuns(rowB, rowC, rowD);
+
+    	boolean changed = false;
+
+    	for (int word = 0; word < words; word++) {
+    		if (rowD[word] == region[offset + word]) continue;
+    		region[offset + word] = rowD[word];
+    		changed = true;
+    	}
+
+    	return changed;
+    }
+
+    /**
+     * Заливает отрезки подряд идущих единиц маски, в которых есть хотя
+     * бы один бит затравки. Перенос при сложении проходит отрезок от
+     * затравки до его конца, поэтому заливка к старшим битам делается
+     * сложением, а к младшим - сложением развернутых слов
+     * @param seeds затравка, подмножество маски;
+     * @param mask маска;
+     * @param result залитые отрезки;
+     */
+    private void fillRuns(long[] seeds, long[] mask, long[] result) {
+
+    	long carry = 0;
+
+    	for (int word = 0; word < words; word++) {
+    		long a = mask[word], x = seeds[word];
+    		long sum = a + x + carry;
+    		carry = ((a & x) | ((a | x) & ~sum)) >>> 63;
+    		result[word] = ((sum ^ a) & a) | x;
+    	}
+
+    	carry = 0;
+
+    	for (int word = words - 1; word >= 0; word--) {
+    		long a = Long.reverse(mask[word]), x = Long.reverse(seeds[word]);
+    		long sum = a + x + carry;
+    		carry = ((a & x) | ((a | x) & ~sum)) >>> 63;
+    		result[word] |= Long.reverse(((sum ^ a) & a) | x);
+    	}
+    }
+
+    /**
+     * Объединяет строки плоскостей, строки за пределами поля пустые
+     * @param first первая плоскость;
+     * @param firstRow строка первой плоскости;
+     * @param second вторая плоскость;
+     * @param secondRow строка второй плоскости;
+     * @param third третья плоскость или null;
+     * @param thirdRow строка третьей плоскости;
+     * @param result объединение строк;
+     */
+    private void combine(long[] first, int firstRow, long[] second, int secondRow,
+    	long[] third, int thirdRow, long[] result) {
+
+    	Arrays.fill(result, 0L);
+    	addRow(first, firstRow, result);
+    	addRow(second, secondRow, result);
+    	if (third != null) addRow(third, thirdRow, result);
+    }
+
+    /**
+     * Добавляет строку плоскости к результату по ИЛИ
+     */
+    private void addRow(long[] plane, int row, long[] result) {
+    	if (row < 0 || row >= getFHeight()) return;
+    	int offset = row * words;
+    	for (int word = 0; word < words; word++) result[word] |= plane[offset + word];
+    }
+
+    /**
+     * Расширяет строку на одну ячейку влево и вправо
+     * @param source строка;
+     * @param result расширенная строка;
+     */
+    private void dilate(long[] source, long[] result) {
+
+    	for (int word = 0; word < words; word++) {
+    		long value = source[word] | (source[word] << 1) | (source[word] >>> 1);
+    		if (word > 0) value |= source[word - 1] >>> 63;
+    		if (word < words - 1) value |= source[word + 1] << 63;
+    		result[word] = value;
+    	}
+
+    	result[words - 1] &= lastMask;
+    }
+
+    /**
+     * Строит маску пустых ячеек строки: без мин в ячейке и вокруг нее
+     * @param row индекс строки;
+     * @param result маска пустых ячеек;
+     */
+    private void getZero(int row, long[] result) {
+
+    	combine(mines, row - 1, mines, row, mines, row + 1, rowD);
+    	dilate(rowD, result);
+
+    	for (int word = 0; word < words; word++) result[word] = ~result[word];
+    	result[words - 1] &= lastMask;
+    }
+
+    /**
+     * Строит маску ячеек строки, которые можно открыть: закрытых
+     * неотмеченных и отмеченных вопросом (состояния 1 и 2)
+     * @param row индекс строки;
+     * @param result маска ячеек;
+     */
+    private void getValid(int row, long[] result) {
+    	int offset = row * words;
+    	for (int word = 0; word < words; word++)
+    		result[word] = ~state2[offset + word] & (state0[offset + word] ^ state1[offset + word]);
+    }
+
+    /**
+     * Считает мины вокруг каждой ячейки строки побитовыми сумматорами:
+     * восемь сдвинутых строк плоскости мин складываются в четыре
+     * разряда count0..count3
+     * @param row индекс строки;
+     */
+    private void countMines(int row) {
+
+    	Arrays.fill(count0, 0L);
+    	Arrays.fill(count1, 0L);
+    	Arrays.fill(count2, 0L);
+    	Arrays.fill(count3, 0L);
+
+    	for (int near = row - 1; near <= row + 1; near++) {
+    		if (near < 0 || near >= getFHeight()) continue;
+
+    		int offset = near * words;
+
+    		for (int word = 0; word < words; word++) {
+    			long center = mines[offset + word];
+    			long left = (center << 1) | ((word > 0) ? mines[offset + word - 1] >>> 63 : 0);
+    			long right = (center >>> 1) | ((word < words - 1) ? mines[offset + word + 1] << 63 : 0);
+
+    			addBits(word, left);
+    			addBits(word, right);
+    			if (near != row) addBits(word, center);
+    		}
+    	}
+    }
+
+    /**
+     * Прибавляет к счетчикам слова по единице в позициях единичных битов
+     * @param word номер слова в строке;
+     * @param bits прибавляемые биты;
+     */
+    private void addBits(int word, long bits) {
+    	long carry = count0[word] & bits;
+    	count0[word] ^= bits;
+    	long next = count1[word] & carry;
+    	count1[word] ^= carry;
+    	carry = count2[word] & next;
+    	count2[word] ^= next;
+    	count3[word] |= carry;
+    }
+}
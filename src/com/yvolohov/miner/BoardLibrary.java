@@ -0,0 +1,448 @@
+package com.yvolohov.miner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+/**
+ * Библиотека заранее сгенерированных полей без угадывания для одной
+ * конфигурации поля. Файл библиотеки отображается в память только для
+ * чтения и состоит из заголовка, таблицы корзин сложности, индекса
+ * записей фиксированного размера и упакованных ячеек полей, также
+ * фиксированного размера. Записи отсортированы по корзинам, поэтому
+ * корзина - непрерывный диапазон записей, и поле выбирается за O(1)
+ * без чтения остальных записей. Стандартные уровни берут поля из
+ * своей корзины, чем выше уровень, тем больше логики требует поле.
+ * Файлы создает BoardLibraryBuilder, библиотеки стандартных уровней
+ * поставляются в папке assets/boards без сжатия и отображаются в память
+ * прямо из пакета приложения. Если упаковщик все же сжал файл, он один
+ * раз копируется в папку библиотек приложения.
+ * Открытые библиотеки хранятся в общем реестре по конфигурации поля,
+ * чтение из них потокобезопасно
+ * @author yvolohov
+ */
+class BoardLibrary {
+
+    public static final int SQU_SHAPE = 0;
+    public static final int HEX_SHAPE = 1;
+
+    /* корзина - наименьшая сложность решателя, с которой она начинается */
+    public static final int[] BUCKET_BOUNDS = {0, 1, 3, 6};
+    public static final int BUCKETS = BUCKET_BOUNDS.length;
+    public static final int ANY_BUCKET = -1;
+
+    public static final int MAGIC = 0x4D424C31;
+    public static final int HEADER_SIZE = 24 + (BUCKETS * 8);
+    public static final int RECORD_SIZE = 16;
+
+    private static final String DIRECTORY = "boards";
+    private static final Map<String, BoardLibrary> opened = new HashMap<String, BoardLibrary>();
+    private static File directory;
+    private static AssetManager assets;
+
+    private final ByteBuffer buffer;
+    private final int shape, width, height, mines, boards, cellsSize;
+    private final int[] bucketFirst = new int[BUCKETS];
+    private final int[] bucketCount = new int[BUCKETS];
+    private final Random rand = new Random();
+
+    /**
+     * Открывает файл библиотеки и проверяет его заголовок
+     * @param file файл библиотеки;
+     * @throws IOException если файл не читается или поврежден
+     */
+    public BoardLibrary(File file) throws IOException {
+    	this(map(file));
+    }
+
+    /**
+     * Проверяет заголовок библиотеки, отображенной в память
+     * @param buffer содержимое файла библиотеки;
+     * @throws IOException если библиотека повреждена
+     */
+    public BoardLibrary(ByteBuffer buffer) throws IOException {
+
+    	this.buffer = buffer;
+
+    	if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+    		throw new IOException("Not a board library");
+
+    	shape = buffer.getInt(4);
+    	width = buffer.getInt(8);
+    	height = buffer.getInt(12);
+    	mines = buffer.getInt(16);
+    	boards = buffer.getInt(20);
+    	cellsSize = getCellsSize(width, height);
+
+    	for (int bucket = 0; bucket < BUCKETS; bucket++) {
+    		bucketFirst[bucket] = buffer.getInt(24 + (bucket * 8));
+    		bucketCount[bucket] = buffer.getInt(28 + (bucket * 8));
+    	}
+
+    	if (width <= 0 || height <= 0 || boards < 0
+    		|| buffer.capacity() < getDataOffset() + ((long) boards * cellsSize))
+    		throw new IOException("Truncated board library");
+
+    	/* корзины идут подряд и вместе покрывают все записи */
+    	int next = 0;
+
+    	for (int bucket = 0; bucket < BUCKETS; bucket++) {
+    		if (bucketFirst[bucket] != next || bucketCount[bucket] < 0
+    			|| bucketCount[bucket] > boards - next)
+    			throw new IOException("Damaged board library");
+    		next += bucketCount[bucket];
+    	}
+
+    	if (next != boards) throw new IOException("Damaged board library");
+    }
+
+    // -= REGISTRY =-
+
+    /**
+     * Задает папку, в которой лежат файлы библиотек, и ресурсы
+     * приложения с поставляемыми библиотеками, вызывается при
+     * создании приложения
+     * @param filesDir папка файлов приложения;
+     * @param assetManager ресурсы приложения или null;
+     */
+    public static synchronized void setDirectory(File filesDir, AssetManager assetManager) {
+    	directory = new File(filesDir, DIRECTORY);
+    	assets = assetManager;
+    	opened.clear();
+    }
+
+    /**
+     * Возвращает файл библиотеки для конфигурации поля
+     * @param filesDir папка файлов приложения;
+     * @param shape форма ячеек, SQU_SHAPE или HEX_SHAPE;
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @return файл библиотеки
+     */
+    public static File getFile(File filesDir, int shape, int width, int height, int mines) {
+    	return new File(new File(filesDir, DIRECTORY), getName(shape, width, height, mines));
+    }
+
+    /**
+     * Возвращает библиотеку для конфигурации поля, открывая ее при
+     * первом обращении. Сначала ищется файл в папке библиотек, затем
+     * библиотека в ресурсах приложения. Отсутствие библиотеки тоже
+     * запоминается
+     * @param shape форма ячеек, SQU_SHAPE или HEX_SHAPE;
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @return библиотека или null, если ее нет
+     */
+    public static synchronized BoardLibrary find(int shape, int width, int height, int mines) {
+
+    	if (directory == null) return null;
+
+    	String name = getName(shape, width, height, mines);
+    	if (opened.containsKey(name)) return opened.get(name);
+
+    	BoardLibrary library = null;
+    	File file = new File(directory, name);
+
+    	try {
+    		if (file.exists()) library = new BoardLibrary(file);
+    		else if (assets != null) library = openAsset(name, file);
+
+    		if (library != null && (!library.matches(shape, width, height, mines) || library.boards == 0))
+    			library = null;
+    	}
+    	catch (IOException e) {
+    		library = null;
+    	}
+
+    	opened.put(name, library);
+    	return library;
+    }
+
+    /**
+     * Создает поле без угадывания из библиотеки, если она есть
+     * для этой конфигурации
+     * @param shape форма ячеек, SQU_SHAPE или HEX_SHAPE;
+     * @param level уровень сложности игры или 0;
+     * @param bucket корзина сложности или ANY_BUCKET, см. getLevelBucket;
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @return игровое поле с открытой стартовой ячейкой или null
+     */
+    public static GameField pickField(int shape, int level, int bucket, int width, int height, int mines) {
+    	BoardLibrary library = find(shape, width, height, mines);
+    	if (library == null) return null;
+    	
+    	int index = (bucket == ANY_BUCKET) ? library.pickAny() : library.pick(bucket);
+    	return library.createField(level, index);
+    }
+
+    /**
+     * Возвращает корзину сложности для уровня игры: простой уровень
+     * решается одиночным правилом, средний и сложный требуют все больше
+     * правил пар и подсчета мин
+     * @param level уровень сложности игры или 0;
+     * @return номер корзины или ANY_BUCKET для игры со своими настройками
+     */
+    public static int getLevelBucket(int level) {
+    	switch (level) {
+    	case GameField.SIMPLE_LEVEL:
+    	case GameField.SIMPLE_LEVEL_HEX:
+    		return 0;
+    	case GameField.MEDIUM_LEVEL:
+    	case GameField.MEDIUM_LEVEL_HEX:
+    		return 1;
+    	case GameField.HARD_LEVEL:
+    	case GameField.HARD_LEVEL_HEX:
+    		return 2;
+    	default:
+    		return ANY_BUCKET;
+    	}
+    }
+
+    /**
+     * Открывает библиотеку из ресурсов приложения. Несжатый ресурс
+     * отображается в память прямо из пакета, сжатый копируется в файл
+     * @param name имя файла библиотеки;
+     * @param file файл для копии сжатого ресурса;
+     * @return библиотека или null, если ресурса нет
+     * @throws IOException если библиотека не читается или повреждена
+     */
+    private static BoardLibrary openAsset(String name, File file) throws IOException {
+
+    	String path = DIRECTORY + "/" + name;
+    	AssetFileDescriptor descriptor;
+
+    	try {
+    		descriptor = assets.openFd(path);
+    	}
+    	catch (FileNotFoundException e) {
+    		/* так же openFd отвечает на сжатый ресурс */
+    		return copyAsset(path, file) ? new BoardLibrary(file) : null;
+    	}
+
+    	try {
+    		FileInputStream in = descriptor.createInputStream();
+
+    		try {
+    			return new BoardLibrary(in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+    				descriptor.getStartOffset(), descriptor.getLength()));
+    		}
+    		finally {
+    			in.close();
+    		}
+    	}
+    	finally {
+    		descriptor.close();
+    	}
+    }
+
+    /**
+     * Копирует ресурс во временный файл и заменяет им файл библиотеки
+     * @param path путь ресурса;
+     * @param file файл библиотеки;
+     * @return false если ресурса нет
+     * @throws IOException если файл не записывается
+     */
+    private static boolean copyAsset(String path, File file) throws IOException {
+
+    	InputStream in;
+
+    	try {
+    		in = assets.open(path);
+    	}
+    	catch (FileNotFoundException e) {
+    		return false;
+    	}
+
+    	File tempFile = new File(file.getPath() + ".tmp");
+    	file.getParentFile().mkdirs();
+
+    	try {
+    		OutputStream out = new FileOutputStream(tempFile);
+
+    		try {
+    			byte[] buffer = new byte[8192];
+    			for (int read; (read = in.read(buffer)) > 0; ) out.write(buffer, 0, read);
+    		}
+    		finally {
+    			out.close();
+    		}
+    	}
+    	finally {
+    		in.close();
+    	}
+
+    	if (!tempFile.renameTo(file))
+    		throw new IOException("Can't replace " + file.getName());
+
+    	return true;
+    }
+
+    /**
+     * Отображает файл библиотеки в память только для чтения
+     * @param file файл библиотеки;
+     * @return содержимое файла
+     * @throws IOException если файл не читается
+     */
+    private static MappedByteBuffer map(File file) throws IOException {
+
+    	RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    	try {
+    		FileChannel channel = raf.getChannel();
+    		return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    	}
+    	finally {
+    		/* отображение остается действительным после закрытия файла */
+    		raf.close();
+    	}
+    }
+
+    // -= BOARDS =-
+
+    /**
+     * Возвращает количество полей в библиотеке
+     * @return количество полей
+     */
+    public int getBoards() {return boards;}
+
+    /**
+     * Возвращает количество полей в корзине сложности
+     * @param bucket номер корзины;
+     * @return количество полей
+     */
+    public int getBoards(int bucket) {return bucketCount[bucket];}
+
+    /**
+     * Выбирает случайное поле из всей библиотеки
+     * @return номер записи
+     */
+    public synchronized int pickAny() {return rand.nextInt(boards);}
+
+    /**
+     * Выбирает случайное поле из корзины сложности, если корзина
+     * пустая - из ближайшей непустой корзины
+     * @param bucket номер корзины;
+     * @return номер записи или -1, если библиотека пустая
+     */
+    public synchronized int pick(int bucket) {
+
+    	for (int distance = 0; distance < BUCKETS; distance++) {
+    		for (int sign = -1; sign <= 1; sign += 2) {
+    			int near = bucket + (sign * distance);
+    			if (near < 0 || near >= BUCKETS || bucketCount[near] == 0) continue;
+    			return bucketFirst[near] + rand.nextInt(bucketCount[near]);
+    		}
+    	}
+
+    	return -1;
+    }
+
+    /**
+     * Возвращает зерно расстановки мин поля
+     * @param index номер записи;
+     * @return зерно для NoGuessGenerator.getLayout
+     */
+    public long getSeed(int index) {return buffer.getLong(getRecordOffset(index));}
+
+    /**
+     * Возвращает 3BV поля
+     * @param index номер записи;
+     * @return 3BV
+     */
+    public int get3BV(int index) {return buffer.getInt(getRecordOffset(index) + 8);}
+
+    /**
+     * Возвращает сложность поля для решателя
+     * @param index номер записи;
+     * @return сложность, см. LogicSolver.getDifficulty
+     */
+    public int getDifficulty(int index) {return buffer.getInt(getRecordOffset(index) + 12);}
+
+    /**
+     * Создает игровое поле по записи библиотеки и открывает стартовую ячейку
+     * @param level уровень сложности игры или 0;
+     * @param index номер записи;
+     * @return игровое поле в режиме без угадывания
+     */
+    public GameField createField(int level, int index) {
+
+    	byte[] cells = new byte[cellsSize];
+    	ByteBuffer data = buffer.duplicate();
+    	data.position((int) (getDataOffset() + ((long) index * cellsSize)));
+    	data.get(cells);
+
+    	GameField field = (shape == HEX_SHAPE)
+    		? new HexGameField(level, width, height, mines, cells)
+    		: new SquGameField(level, width, height, mines, cells);
+
+    	NoGuessGenerator.openStart(field);
+    	field.setNoGuess(true);
+    	return field;
+    }
+
+    /**
+     * Проверяет, что библиотека создана для этой конфигурации поля
+     */
+    private boolean matches(int shape, int width, int height, int mines) {
+    	return this.shape == shape && this.width == width && this.height == height && this.mines == mines;
+    }
+
+    /**
+     * Возвращает смещение записи индекса
+     * @param index номер записи;
+     * @return смещение в файле
+     */
+    private int getRecordOffset(int index) {return HEADER_SIZE + (index * RECORD_SIZE);}
+
+    /**
+     * Возвращает смещение упакованных ячеек первого поля
+     * @return смещение в файле
+     */
+    private long getDataOffset() {return HEADER_SIZE + ((long) boards * RECORD_SIZE);}
+
+    // -= FORMAT =-
+
+    /**
+     * Возвращает размер упакованных ячеек одного поля
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @return размер в байтах
+     */
+    public static int getCellsSize(int width, int height) {return ((width * height) + 1) / 2;}
+
+    /**
+     * Возвращает корзину для сложности решателя
+     * @param difficulty сложность, см. LogicSolver.getDifficulty;
+     * @return номер корзины
+     */
+    public static int getBucket(int difficulty) {
+    	int bucket = BUCKETS - 1;
+    	while (difficulty < BUCKET_BOUNDS[bucket]) bucket--;
+    	return bucket;
+    }
+
+    /**
+     * Возвращает имя файла библиотеки для конфигурации поля
+     */
+    private static String getName(int shape, int width, int height, int mines) {
+    	return ((shape == HEX_SHAPE) ? "hex_" : "squ_") + width + "x" + height + "_" + mines + ".lib";
+    }
+}
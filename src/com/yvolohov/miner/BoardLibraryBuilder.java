@@ -0,0 +1,183 @@
+package com.yvolohov.miner;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import android.os.SystemClock;
+
+/**
+ * Пакетная генерация библиотеки полей без угадывания для BoardLibrary.
+ * Поле с номером i ищется собственным генератором, полученным из зерна
+ * библиотеки и номера поля, поэтому при одном зерне библиотека
+ * получается одинаковой при любом количестве потоков. Для каждого поля
+ * сохраняются зерно расстановки, 3BV и сложность для решателя. Поля
+ * распределяются потокам WorkerPool через одно. Библиотеки стандартных
+ * уровней собираются через main в папку assets/boards проекта
+ * @author yvolohov
+ */
+class BoardLibraryBuilder {
+
+    /* после стольких неудачных расстановок поле пропускается */
+    private static final int MAX_CANDIDATES = 100000;
+
+    /**
+     * Генерирует библиотеку и записывает ее в файл
+     * @param file файл библиотеки, существующий файл заменяется;
+     * @param shape игровое поле нужной конфигурации, SquGameField
+     * или HexGameField, используется только для чтения;
+     * @param count количество полей;
+     * @param seed зерно библиотеки;
+     * @return отчет о генерации
+     * @throws IOException если файл не записывается
+     */
+    public static String build(File file, final GameField shape, final int count, final long seed)
+    	throws IOException {
+
+    	if (!NoGuessGenerator.isSupported(shape))
+    		throw new IllegalArgumentException("Unsupported field configuration");
+
+    	long started = SystemClock.uptimeMillis();
+    	final long[] seeds = new long[count];
+    	final int[] difficulties = new int[count];
+    	final boolean[] found = new boolean[count];
+    	final int threads = WorkerPool.getThreads();
+
+    	List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    	for (int thread = 0; thread < threads; thread++) {
+    		final int first = thread;
+
+    		Runnable task = new Runnable() {
+    			public void run() {
+    				LogicSolver solver = new LogicSolver(shape);
+
+    				for (int index = first; index < count; index += threads) {
+    					Random rand = new Random(MineLayout.mix(seed + (index * 0x9E3779B97F4A7C15L)));
+    					Long layout = NoGuessGenerator.findSeed(shape, solver, rand, MAX_CANDIDATES);
+    					if (layout == null) continue;
+
+    					seeds[index] = layout;
+    					difficulties[index] = solver.getDifficulty();
+    					found[index] = true;
+    				}
+    			}
+    		};
+
+    		if (thread < threads - 1) futures.add(WorkerPool.getExecutor().submit(task));
+    		else task.run();
+    	}
+
+    	WorkerPool.await(futures);
+
+    	/* записи раскладываются по корзинам, внутри корзины - по номеру поля */
+    	int[] bucketCount = new int[BoardLibrary.BUCKETS];
+    	int boards = 0;
+
+    	for (int index = 0; index < count; index++) {
+    		if (!found[index]) continue;
+    		bucketCount[BoardLibrary.getBucket(difficulties[index])]++;
+    		boards++;
+    	}
+
+    	int[] bucketFirst = new int[BoardLibrary.BUCKETS];
+    	for (int bucket = 1; bucket < BoardLibrary.BUCKETS; bucket++)
+    		bucketFirst[bucket] = bucketFirst[bucket - 1] + bucketCount[bucket - 1];
+
+    	int[] order = new int[boards];
+    	int[] next = bucketFirst.clone();
+
+    	for (int index = 0; index < count; index++)
+    		if (found[index]) order[next[BoardLibrary.getBucket(difficulties[index])]++] = index;
+
+    	write(file, shape, seeds, difficulties, order, bucketFirst, bucketCount);
+
+    	StringBuilder report = new StringBuilder();
+    	report.append(file.getName()).append(": ").append(boards).append('/').append(count)
+    		.append(" boards in ").append(SystemClock.uptimeMillis() - started).append(" ms, buckets");
+
+    	for (int bucket = 0; bucket < BoardLibrary.BUCKETS; bucket++)
+    		report.append(' ').append(bucketCount[bucket]);
+
+    	return report.toString();
+    }
+
+    /**
+     * Записывает библиотеку во временный файл и заменяет им файл библиотеки
+     */
+    private static void write(File file, GameField shape, long[] seeds, int[] difficulties,
+    	int[] order, int[] bucketFirst, int[] bucketCount) throws IOException {
+
+    	File tempFile = new File(file.getPath() + ".tmp");
+    	File parent = file.getParentFile();
+    	if (parent != null) parent.mkdirs();
+
+    	FileOutputStream fos = new FileOutputStream(tempFile);
+    	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+
+    	try {
+    		out.writeInt(BoardLibrary.MAGIC);
+    		out.writeInt((shape instanceof HexGameField) ? BoardLibrary.HEX_SHAPE : BoardLibrary.SQU_SHAPE);
+    		out.writeInt(shape.getFWidth());
+    		out.writeInt(shape.getFHeight());
+    		out.writeInt(shape.getMines());
+    		out.writeInt(order.length);
+
+    		for (int bucket = 0; bucket < BoardLibrary.BUCKETS; bucket++) {
+    			out.writeInt(bucketFirst[bucket]);
+    			out.writeInt(bucketCount[bucket]);
+    		}
+
+    		byte[][] cells = new byte[order.length][];
+
+    		for (int record = 0; record < order.length; record++) {
+    			int index = order[record];
+    			cells[record] = NoGuessGenerator.getLayout(shape, seeds[index]);
+
+    			/* 3BV считается по полю до первого хода */
+    			GameField field = (shape instanceof HexGameField)
+    				? new HexGameField(0, shape.getFWidth(), shape.getFHeight(), shape.getMines(), cells[record])
+    				: new SquGameField(0, shape.getFWidth(), shape.getFHeight(), shape.getMines(), cells[record]);
+
+    			out.writeLong(seeds[index]);
+    			out.writeInt(field.get3BV());
+    			out.writeInt(difficulties[index]);
+    		}
+
+    		for (byte[] record : cells) out.write(record);
+
+    		out.flush();
+    		fos.getFD().sync();
+    	} finally {
+    		out.close();
+    	}
+
+    	if (!tempFile.renameTo(file))
+    		throw new IOException("Can't replace " + file.getName());
+    }
+
+    /**
+     * Собирает библиотеки всех стандартных уровней
+     * @param args папка assets проекта, количество полей и зерно;
+     * @throws IOException если файл не записывается
+     */
+    public static void main(String[] args) throws IOException {
+    	File assets = new File((args.length > 0) ? args[0] : "assets");
+    	int count = (args.length > 1) ? Integer.parseInt(args[1]) : 512;
+    	long seed = (args.length > 2) ? Long.parseLong(args[2]) : 1L;
+
+    	for (int level = GameField.SIMPLE_LEVEL; level <= GameField.HARD_LEVEL_HEX; level++) {
+    		boolean hex = level >= GameField.SIMPLE_LEVEL_HEX;
+    		GameField shape = hex ? new HexGameField(level) : new SquGameField(level);
+    		File file = BoardLibrary.getFile(assets, hex ? BoardLibrary.HEX_SHAPE : BoardLibrary.SQU_SHAPE,
+    			shape.getFWidth(), shape.getFHeight(), shape.getMines());
+    		System.out.println(build(file, shape, count, seed + level));
+    	}
+    }
+}
@@ -0,0 +1,429 @@
+package com.yvolohov.miner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+/**
+ * Метрики сложности поля: 3BV, количество пустых областей (открытий),
+ * ячеек с цифрами, не граничащих с пустыми, и ячеек с цифрами вообще.
+ * Поле проходится один раз по строкам с разметкой связных областей:
+ * пустая ячейка объединяется с уже пройденными пустыми соседями через
+ * систему непересекающихся множеств, а количество областей равно
+ * количеству созданных меток минус количество объединений. В памяти
+ * держатся только несколько строк мин и цифр и метки двух строк,
+ * поэтому расход памяти пропорционален ширине поля, а не его размеру.
+ * Строки мин, цифр и меток дополнены с обеих сторон ячейкой-заглушкой,
+ * а за краями поля подставляются строки-заглушки, так что при обходе
+ * соседей границы поля не проверяются.
+ * Форма ячеек берется у игрового поля. Экземпляр не потокобезопасен,
+ * но многократно используется одним потоком для разных полей
+ * @author yvolohov
+ */
+class BoardMetrics {
+
+    /* строки мин и цифр хранятся по кругу */
+    private static final int MINE_ROWS = 4;
+    private static final int NUMBER_ROWS = 3;
+
+    private final GameField shape;
+    private final int width, height;
+    private final boolean[][] mineRows = new boolean[MINE_ROWS][];
+    private final byte[][] numberRows = new byte[NUMBER_ROWS][];
+    private final boolean[] noMines;
+    private final byte[] noNumbers;
+    private final int[] noLabels;
+    private int[] labels, prevLabels;
+    private final int[] parents, renumber, stamps;
+    private int stamp;
+
+    private GameField source;
+    private boolean[] layout;
+
+    /* результаты последнего подсчета */
+    private int openings, isolated, numbers;
+
+    /**
+     * @param shape игровое поле, задающее размеры и соседство ячеек;
+     */
+    public BoardMetrics(GameField shape) {
+    	this.shape = shape;
+    	width = shape.getFWidth();
+    	height = shape.getFHeight();
+
+    	for (int row = 0; row < MINE_ROWS; row++) mineRows[row] = new boolean[width + 2];
+
+    	for (int row = 0; row < NUMBER_ROWS; row++) {
+    		numberRows[row] = new byte[width + 2];
+    		numberRows[row][0] = numberRows[row][width + 1] = GameField.MINE_CELL;
+    	}
+
+    	noMines = new boolean[width + 2];
+    	noNumbers = new byte[width + 2];
+    	Arrays.fill(noNumbers, (byte) GameField.MINE_CELL);
+    	noLabels = new int[width + 2];
+    	Arrays.fill(noLabels, -1);
+
+    	labels = new int[width + 2];
+    	prevLabels = new int[width + 2];
+    	labels[0] = labels[width + 1] = prevLabels[0] = prevLabels[width + 1] = -1;
+    	parents = new int[width * 2];
+    	renumber = new int[width * 2];
+    	stamps = new int[width * 2];
+    }
+
+    /**
+     * Считает метрики игрового поля
+     * @param field игровое поле той же конфигурации, что и shape;
+     */
+    public void compute(GameField field) {
+    	source = field;
+    	layout = null;
+    	run();
+    	source = null;
+    }
+
+    /**
+     * Считает метрики расстановки мин
+     * @param mines признаки мин по плоским индексам ячеек;
+     */
+    public void compute(boolean[] mines) {
+    	source = null;
+    	layout = mines;
+    	run();
+    	layout = null;
+    }
+
+    /**
+     * Возвращает 3BV последнего поля - минимальное количество щелчков
+     * для открытия всех ячеек без мин
+     * @return 3BV
+     */
+    public int get3BV() {return openings + isolated;}
+
+    /**
+     * Возвращает количество связных пустых областей
+     * @return количество областей
+     */
+    public int getOpenings() {return openings;}
+
+    /**
+     * Возвращает количество ячеек с цифрами, не граничащих с пустыми
+     * @return количество ячеек
+     */
+    public int getIsolated() {return isolated;}
+
+    /**
+     * Возвращает количество ячеек с цифрами
+     * @return количество ячеек
+     */
+    public int getNumbers() {return numbers;}
+
+    /**
+     * Проходит поле по строкам
+     */
+    private void run() {
+
+    	int created = 0, merged = 0;
+    	openings = isolated = numbers = 0;
+
+    	for (int row = 0; row < Math.min(2, height); row++) loadMines(row);
+    	if (height > 0) countNumbers(0);
+
+    	int prevCount = 0;
+
+    	for (int posH = 0; posH < height; posH++) {
+
+    		/* цифры следующей строки нужны, чтобы найти изолированные цифры */
+    		if (posH + 2 < height) loadMines(posH + 2);
+    		if (posH + 1 < height) countNumbers(posH + 1);
+
+    		int[] aroundW = shape.getAroundW(posH);
+    		int[] aroundH = shape.getAroundH(posH);
+    		byte[][] near3 = {getNumbers(posH - 1), getNumbers(posH), getNumbers(posH + 1)};
+    		int[][] labels2 = {(posH > 0) ? prevLabels : noLabels, labels};
+    		int count = prevCount;
+
+    		for (int posW = 1; posW <= width; posW++) {
+
+    			labels[posW] = -1;
+    			int number = near3[1][posW];
+    			if (number == GameField.MINE_CELL) continue;
+
+    			if (number != 0) {
+    				numbers++;
+    				if (!hasEmptyNear(posW, near3, aroundW, aroundH)) isolated++;
+    				continue;
+    			}
+
+    			/* объединение с пройденными пустыми соседями */
+    			int label = -1;
+
+    			for (int index = 0; index < aroundW.length; index++) {
+    				int nearW = posW + aroundW[index];
+    				int nearH = aroundH[index];
+
+    				if (nearH > 0 || (nearH == 0 && nearW >= posW)) continue;
+
+    				int near = labels2[nearH + 1][nearW];
+    				if (near < 0) continue;
+
+    				if (label < 0) label = find(near);
+    				else if (union(label, near)) {
+    					label = find(label);
+    					merged++;
+    				}
+    			}
+
+    			if (label < 0) {
+    				label = count++;
+    				parents[label] = label;
+    				created++;
+    			}
+
+    			labels[posW] = label;
+    		}
+
+    		prevCount = compact();
+    	}
+
+    	openings = created - merged;
+    }
+
+    /**
+     * Проверяет, есть ли вокруг ячейки пустые ячейки
+     * @param posW индекс ячейки в дополненной строке;
+     * @param near3 цифры предыдущей, текущей и следующей строк;
+     */
+    private static boolean hasEmptyNear(int posW, byte[][] near3, int[] aroundW, int[] aroundH) {
+
+    	for (int index = 0; index < aroundW.length; index++)
+    		if (near3[aroundH[index] + 1][posW + aroundW[index]] == 0) return true;
+
+    	return false;
+    }
+
+    /**
+     * Возвращает цифры строки или пустую строку за краем поля
+     */
+    private byte[] getNumbers(int posH) {
+    	return (posH >= 0 && posH < height) ? numberRows[posH % NUMBER_ROWS] : noNumbers;
+    }
+
+    /**
+     * Возвращает мины строки или пустую строку за краем поля
+     */
+    private boolean[] getMines(int posH) {
+    	return (posH >= 0 && posH < height) ? mineRows[posH % MINE_ROWS] : noMines;
+    }
+
+    /**
+     * Переносит метки текущей строки в предыдущую, нумеруя
+     * множества заново с нуля
+     * @return количество меток
+     */
+    private int compact() {
+
+    	stamp++;
+    	int count = 0;
+
+    	for (int posW = 1; posW <= width; posW++) {
+    		int label = labels[posW];
+
+    		if (label < 0) {
+    			prevLabels[posW] = -1;
+    			continue;
+    		}
+
+    		int root = find(label);
+
+    		if (stamps[root] != stamp) {
+    			stamps[root] = stamp;
+    			renumber[root] = count++;
+    		}
+
+    		prevLabels[posW] = renumber[root];
+    	}
+
+    	for (int label = 0; label < count; label++) parents[label] = label;
+    	return count;
+    }
+
+    /**
+     * Находит корень множества, сокращая путь
+     */
+    private int find(int label) {
+
+    	while (parents[label] != label) {
+    		parents[label] = parents[parents[label]];
+    		label = parents[label];
+    	}
+
+    	return label;
+    }
+
+    /**
+     * Объединяет множества
+     * @return true если множества были разными
+     */
+    private boolean union(int first, int second) {
+    	int rootFirst = find(first);
+    	int rootSecond = find(second);
+    	if (rootFirst == rootSecond) return false;
+    	parents[rootSecond] = rootFirst;
+    	return true;
+    }
+
+    /**
+     * Читает строку мин
+     * @param posH индекс строки;
+     */
+    private void loadMines(int posH) {
+
+    	boolean[] row = mineRows[posH % MINE_ROWS];
+    	int offset = posH * width;
+
+    	if (layout != null) System.arraycopy(layout, offset, row, 1, width);
+    	else for (int posW = 0; posW < width; posW++) row[posW + 1] = (source.getNibble(offset + posW) & 1) == 1;
+    }
+
+    /**
+     * Считает цифры строки, мины строки и ее соседей уже прочитаны
+     * @param posH индекс строки;
+     */
+    private void countNumbers(int posH) {
+
+    	int[] aroundW = shape.getAroundW(posH);
+    	int[] aroundH = shape.getAroundH(posH);
+    	boolean[][] near3 = {getMines(posH - 1), getMines(posH), getMines(posH + 1)};
+    	byte[] row = numberRows[posH % NUMBER_ROWS];
+
+    	for (int posW = 1; posW <= width; posW++) {
+
+    		if (near3[1][posW]) {
+    			row[posW] = GameField.MINE_CELL;
+    			continue;
+    		}
+
+    		byte number = 0;
+
+    		for (int index = 0; index < aroundW.length; index++)
+    			if (near3[aroundH[index] + 1][posW + aroundW[index]]) number++;
+
+    		row[posW] = number;
+    	}
+    }
+
+    // -= BATCH =-
+
+    /**
+     * Сводка пакетного подсчета
+     */
+    public static class Summary {
+
+        public int boards;
+        public int min3BV = Integer.MAX_VALUE, max3BV;
+        public long total3BV, totalOpenings, totalIsolated;
+
+        /**
+         * Добавляет поле в сводку
+         */
+        private void add(BoardMetrics metrics) {
+        	int bbbv = metrics.get3BV();
+        	boards++;
+        	min3BV = Math.min(min3BV, bbbv);
+        	max3BV = Math.max(max3BV, bbbv);
+        	total3BV += bbbv;
+        	totalOpenings += metrics.getOpenings();
+        	totalIsolated += metrics.getIsolated();
+        }
+
+        /**
+         * Добавляет другую сводку
+         */
+        private void add(Summary other) {
+        	boards += other.boards;
+        	min3BV = Math.min(min3BV, other.min3BV);
+        	max3BV = Math.max(max3BV, other.max3BV);
+        	total3BV += other.total3BV;
+        	totalOpenings += other.totalOpenings;
+        	totalIsolated += other.totalIsolated;
+        }
+    }
+
+    /**
+     * Считает 3BV множества случайных полей в потоках WorkerPool.
+     * Поле с номером i расставляется собственным генератором, полученным
+     * из зерна и номера поля, поэтому результат не зависит от количества
+     * потоков
+     * @param shape игровое поле нужной конфигурации, используется только для чтения;
+     * @param boards количество полей;
+     * @param seed зерно;
+     * @param results массив для 3BV каждого поля или null;
+     * @return сводка по всем полям
+     */
+    public static Summary evaluate(final GameField shape, final int boards, final long seed,
+    	final int[] results) {
+
+    	final int threads = WorkerPool.getThreads();
+    	final Summary[] summaries = new Summary[threads];
+    	List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    	for (int thread = 0; thread < threads; thread++) {
+    		final int first = thread;
+    		summaries[thread] = new Summary();
+
+    		Runnable task = new Runnable() {
+    			public void run() {
+    				int size = shape.getFWidth() * shape.getFHeight();
+    				BoardMetrics metrics = new BoardMetrics(shape);
+    				boolean[] mines = new boolean[size];
+    				int[] cells = new int[size];
+
+    				for (int index = first; index < boards; index += threads) {
+    					Random rand = new Random(MineLayout.mix(seed + (index * 0x9E3779B97F4A7C15L)));
+    					placeMines(mines, cells, shape.getMines(), rand);
+    					metrics.compute(mines);
+    					summaries[first].add(metrics);
+    					if (results != null) results[index] = metrics.get3BV();
+    				}
+    			}
+    		};
+
+    		if (thread < threads - 1) futures.add(WorkerPool.getExecutor().submit(task));
+    		else task.run();
+    	}
+
+    	WorkerPool.await(futures);
+
+    	Summary summary = new Summary();
+    	for (Summary part : summaries) summary.add(part);
+    	return summary;
+    }
+
+    /**
+     * Расставляет мины частичным перемешиванием Фишера-Йетса,
+     * время не зависит от плотности мин
+     * @param mines признаки мин, перезаписываются;
+     * @param cells рабочий массив на все ячейки поля;
+     * @param count количество мин;
+     * @param rand генератор поля;
+     */
+    private static void placeMines(boolean[] mines, int[] cells, int count, Random rand) {
+
+    	for (int cell = 0; cell < cells.length; cell++) {
+    		cells[cell] = cell;
+    		mines[cell] = false;
+    	}
+
+    	for (int placed = 0; placed < count; placed++) {
+    		int swap = placed + rand.nextInt(cells.length - placed);
+    		int cell = cells[swap];
+    		cells[swap] = cells[placed];
+    		cells[placed] = cell;
+    		mines[cell] = true;
+    	}
+    }
+}
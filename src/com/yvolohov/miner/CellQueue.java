@@ -0,0 +1,63 @@
+package com.yvolohov.miner;
+
+/**
+ * Кольцевая очередь плоских индексов ячеек фиксированной емкости.
+ * Используется при обходе областей поля, чтобы расход памяти не 
+ * зависел от размеров поля: если очередь заполнена, ячейка не 
+ * добавляется, и вызывающий код должен найти ее позже повторным 
+ * просмотром поля
+ * @author yvolohov
+ */
+class CellQueue {
+
+    private final int[] items;
+    private int head, count;
+
+    /**
+     * @param capacity емкость очереди;
+     */
+    public CellQueue(int capacity) {
+    	items = new int[capacity];
+    }
+
+    /**
+     * Добавляет индекс в конец очереди
+     * @param index плоский индекс ячейки;
+     * @return true если индекс добавлен или false, если очередь заполнена
+     */
+    public boolean offer(int index) {
+    	if (count == items.length) return false;
+    	items[(head + count++) % items.length] = index;
+    	return true;
+    }
+
+    /**
+     * Извлекает индекс из начала очереди
+     * @return плоский индекс ячейки
+     */
+    public int poll() {
+    	int index = items[head];
+    	head = (head + 1) % items.length;
+    	count--;
+    	return index;
+    }
+
+    /**
+     * Проверяет, пуста ли очередь
+     * @return true если очередь пуста
+     */
+    public boolean isEmpty() {return count == 0;}
+
+    /**
+     * Возвращает количество индексов в очереди
+     * @return количество индексов
+     */
+    public int size() {return count;}
+
+    /**
+     * Очищает очередь
+     */
+    public void clear() {
+    	head = count = 0;
+    }
+}
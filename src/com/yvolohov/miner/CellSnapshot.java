@@ -0,0 +1,116 @@
+package com.yvolohov.miner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Снимок ячеек поля, который пишется в фоновом потоке без копирования
+ * всего поля. Ячейки делятся на блоки, фоновый поток упаковывает блоки
+ * по порядку прямо из памяти поля, а игровой поток перед изменением
+ * еще не записанного блока сохраняет его копию (копирование при записи).
+ * Состояние блока меняется атомарно, поэтому каждый блок пишется либо
+ * из поля до его изменения, либо из копии. Копируются только блоки,
+ * измененные за время записи снимка
+ * @author yvolohov
+ */
+abstract class CellSnapshot {
+
+    private static final int FREE = 0;
+    private static final int BUSY = 1;
+    private static final int WRITTEN = 2;
+    private static final int COPIED = 3;
+
+    private final AtomicIntegerArray states;
+    private volatile boolean finished;
+
+    /**
+     * @param blocks количество блоков ячеек;
+     */
+    protected CellSnapshot(int blocks) {
+    	states = new AtomicIntegerArray(blocks);
+    }
+
+    /**
+     * Сохраняет копию блока, если снимок его еще не записал. Вызывается
+     * игровым потоком перед каждым изменением ячеек блока
+     * @param block номер блока;
+     */
+    final void beforeWrite(int block) {
+
+    	/* блоки, появившиеся после создания снимка, в него не входят */
+    	if (block >= states.length()) return;
+    	if (states.get(block) >= WRITTEN || finished) return;
+
+    	if (states.compareAndSet(block, FREE, BUSY)) {
+    		copyBlock(block);
+    		states.set(block, COPIED);
+    		return;
+    	}
+
+    	/* блок сейчас упаковывается фоновым потоком, это доли миллисекунды */
+    	while (states.get(block) == BUSY) Thread.yield();
+    }
+
+    /**
+     * Записывает ячейки в поток по блокам, вызывается один раз
+     * в фоновом потоке
+     * @param out поток для записи;
+     * @throws IOException
+     */
+    final void writeTo(OutputStream out) throws IOException {
+
+    	try {
+    		for (int block = 0; block < states.length(); block++) {
+
+    			if (states.compareAndSet(block, FREE, BUSY)) {
+    				try {writeBlock(out, block, false);}
+    				finally {states.set(block, WRITTEN);}
+    				continue;
+    			}
+
+    			/* игровой поток копирует блок */
+    			while (states.get(block) == BUSY) Thread.yield();
+    			writeBlock(out, block, true);
+    		}
+
+    		finishWrite(out);
+    	}
+    	finally {
+    		/* после ошибки записи оставшиеся блоки больше не копируются */
+    		for (int block = 0; block < states.length(); block++)
+    			states.compareAndSet(block, FREE, WRITTEN);
+
+    		finished = true;
+    	}
+    }
+
+    /**
+     * Проверяет, закончена ли запись снимка
+     * @return true если снимок записан или запись прервана ошибкой
+     */
+    final boolean isFinished() {return finished;}
+
+    /**
+     * Сохраняет копию ячеек блока
+     * @param block номер блока;
+     */
+    protected abstract void copyBlock(int block);
+
+    /**
+     * Упаковывает ячейки блока в поток
+     * @param out поток для записи;
+     * @param block номер блока;
+     * @param copied true - из копии блока, false - из памяти поля;
+     * @throws IOException
+     */
+    protected abstract void writeBlock(OutputStream out, int block, boolean copied)
+    	throws IOException;
+
+    /**
+     * Дописывает данные, оставшиеся после последнего блока
+     * @param out поток для записи;
+     * @throws IOException
+     */
+    protected void finishWrite(OutputStream out) throws IOException {}
+}
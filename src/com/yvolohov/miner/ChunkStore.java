@@ -0,0 +1,130 @@
+package com.yvolohov.miner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Файл подкачки фрагментов бесконечного поля. Фрагменты, вытесненные
+ * из памяти, записываются в отображаемый в память файл (memory-mapped),
+ * по CHUNK_BYTES байт на фрагмент. Файл отображается частями по
+ * SEGMENT_SLOTS фрагментов и растет по мере надобности. Содержимое
+ * файла относится только к текущей игре, поэтому при создании объекта
+ * старый файл удаляется. Используется только в игровом потоке
+ * @author yvolohov
+ */
+class ChunkStore {
+
+    public static final int SEGMENT_SLOTS = 256;
+
+    private static final int SEGMENT_BYTES = SEGMENT_SLOTS * ChunkedGameField.CHUNK_BYTES;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[4];
+    private final Map<Integer, Integer> slots = new HashMap<Integer, Integer>();
+    private Object owner;
+    private boolean broken;
+
+    /**
+     * @param file файл подкачки, существующий файл удаляется;
+     */
+    public ChunkStore(File file) {
+    	this.file = file;
+    	file.delete();
+    }
+
+    /**
+     * Закрепляет файл за игровым полем. Если файл использовало
+     * другое поле, его фрагменты забываются
+     * @param owner игровое поле;
+     */
+    public void claim(Object owner) {
+    	if (this.owner == owner) return;
+    	this.owner = owner;
+    	slots.clear();
+    }
+
+    /**
+     * Проверяет, есть ли в файле фрагмент
+     * @param key номер фрагмента на поле;
+     * @return true если фрагмент записан
+     */
+    public boolean contains(int key) {return slots.containsKey(key);}
+
+    /**
+     * Читает фрагмент из файла
+     * @param key номер фрагмента на поле;
+     * @param cells буфер на CHUNK_BYTES байт;
+     * @return true если фрагмент прочитан или false, если его нет в файле
+     */
+    public boolean read(int key, byte[] cells) {
+
+    	Integer slot = slots.get(key);
+    	if (slot == null) return false;
+
+    	MappedByteBuffer segment = segments[slot / SEGMENT_SLOTS];
+    	segment.position((slot % SEGMENT_SLOTS) * cells.length);
+    	segment.get(cells);
+    	return true;
+    }
+
+    /**
+     * Записывает фрагмент в файл, повторная запись фрагмента
+     * использует то же место в файле
+     * @param key номер фрагмента на поле;
+     * @param cells CHUNK_BYTES байт состояний ячеек;
+     * @return true если фрагмент записан или false, если файл недоступен,
+     * в этом случае фрагмент нужно оставить в памяти
+     */
+    public boolean write(int key, byte[] cells) {
+
+    	Integer slot = slots.get(key);
+
+    	if (slot == null) {
+    		slot = slots.size();
+    		if (!map(slot / SEGMENT_SLOTS)) return false;
+    		slots.put(key, slot);
+    	}
+
+    	MappedByteBuffer segment = segments[slot / SEGMENT_SLOTS];
+    	segment.position((slot % SEGMENT_SLOTS) * cells.length);
+    	segment.put(cells);
+    	return true;
+    }
+
+    /**
+     * Отображает в память часть файла, если она еще не отображена
+     * @param segment номер части файла;
+     * @return true если часть отображена
+     */
+    private boolean map(int segment) {
+
+    	if (segment < segments.length && segments[segment] != null) return true;
+    	if (broken) return false;
+
+    	try {
+    		if (raf == null) raf = new RandomAccessFile(file, "rw");
+
+    		if (segment >= segments.length) {
+    			MappedByteBuffer[] newSegments = new MappedByteBuffer[segments.length * 2];
+    			System.arraycopy(segments, 0, newSegments, 0, segments.length);
+    			segments = newSegments;
+    		}
+
+    		segments[segment] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+    			(long) segment * SEGMENT_BYTES, SEGMENT_BYTES);
+    		return true;
+    	}
+    	catch (IOException e) {
+    		/* места на диске нет или файл недоступен,
+    		 * дальше фрагменты остаются в памяти */
+    		broken = true;
+    		return false;
+    	}
+    }
+}
@@ -0,0 +1,476 @@
+package com.yvolohov.miner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Класс представляет модель игры "Сапер" на бесконечном поле с
+ * квадратными ячейками. Поле разбито на фрагменты CHUNK_SIZE x CHUNK_SIZE
+ * ячеек. Мины заданы функцией MineLayout от зерна поля и координат
+ * ячейки, в каждом фрагменте ровно CHUNK_MINES мин. Фрагмент создается
+ * в памяти только тогда, когда в нем открывается или отмечается ячейка,
+ * остальные ячейки вычисляются по MineLayout, поэтому расход памяти 
+ * зависит от исследованной части поля, а не от его размеров. Если к полю 
+ * подключен файл подкачки (ChunkStore), в памяти остается не больше 
+ * заданного числа фрагментов: давно не использованные измененные 
+ * фрагменты вытесняются в файл и читаются обратно при обращении, 
+ * а неизмененные просто забываются и создаются заново. Координаты ячеек
+ * остаются обычными, поле имеет размер SIZE x SIZE ячеек, игра
+ * начинается в его центре и на практике края недостижимы
+ * @author yvolohov
+ */
+public class ChunkedGameField extends SquGameField {
+
+    public static final int CHUNK_SIZE = 64;
+    public static final int CHUNK_COUNT = 512;
+    public static final int CHUNK_MINES = 640;
+    public static final int SIZE = CHUNK_SIZE * CHUNK_COUNT;
+    public static final int CHUNK_BYTES = (CHUNK_SIZE * CHUNK_SIZE) / 2;
+
+    private static final int CHUNK_SHIFT = 6;
+    private static final int SIZE_SHIFT = 15;
+    private static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+    private static final byte CLOSED_PAIR = 0x22;
+
+    /**
+     * Фрагмент поля: упакованные состояния ячеек в том же формате,
+     * что и у обычного поля, построчно внутри фрагмента. Описание 
+     * фрагмента остается в памяти всегда, а массив ячеек - только 
+     * пока фрагмент не вытеснен
+     */
+    private static class Chunk {
+    	int key;
+    	int ordinal;
+    	boolean changed;
+    	byte[] cells;
+    	int resident;
+    	int lastUse;
+    }
+
+    private final long seed;
+    private final MineLayout layout;
+    private Chunk[] chunks;
+    private int chunkCount;
+    private int[] slots;
+    private Chunk lastChunk;
+    private ChunkStore store;
+    private Chunk[] resident;
+    private int residentCount;
+    private int clock;
+
+    /**
+     * @param seed зерно генератора мин;
+     */
+    public ChunkedGameField(long seed) {
+    	super(SIZE, SIZE, CHUNK_MINES * CHUNK_COUNT * CHUNK_COUNT);
+    	this.seed = seed;
+    	layout = new MineLayout(seed, CHUNK_SHIFT, CHUNK_MINES);
+    	chunks = new Chunk[16];
+    	slots = new int[32];
+    	resident = new Chunk[16];
+    }
+
+    // -= ABSTRACT METHODS IMPLEMENTATION =-
+
+    /**
+     * Создает новое бесконечное поле с другим зерном и
+     * тем же файлом подкачки
+     * @return новый экземпляр игрового поля
+     */
+    @Override
+    public GameField reCreate() {
+    	ChunkedGameField field = new ChunkedGameField(new Random().nextLong());
+    	if (store != null) field.setChunkStore(store, resident.length);
+    	return field;
+    }
+
+    /**
+     * Возвращает уровень игры - значение константы INFINITE_LEVEL
+     * @return уровень игры
+     */
+    @Override
+    public int getLevel() {return INFINITE_LEVEL;}
+
+    // -= CHUNKS =-
+
+    /**
+     * Возвращает зерно генератора мин
+     * @return зерно
+     */
+    public long getSeed() {return seed;}
+
+    /**
+     * Восстанавливает сохраненный фрагмент. После восстановления всех
+     * фрагментов нужно пересчитать счетчики методом countCells
+     * @param key номер фрагмента на поле;
+     * @param cells CHUNK_BYTES байт состояний ячеек, используются
+     * без копирования;
+     */
+    public void putChunk(int key, byte[] cells) {
+    	Chunk chunk = findChunk(key, true);
+    	if (chunk.cells == null) makeResident(chunk, cells);
+    	else chunk.cells = cells;
+    	chunk.changed = true;
+    }
+
+    /**
+     * Подключает файл подкачки и ограничивает количество фрагментов
+     * в памяти. Лишние фрагменты вытесняются при следующих обращениях
+     * @param store файл подкачки;
+     * @param maxResident наибольшее количество фрагментов в памяти;
+     */
+    public void setChunkStore(ChunkStore store, int maxResident) {
+
+    	store.claim(this);
+    	this.store = store;
+
+    	Chunk[] newResident = new Chunk[Math.max(residentCount, maxResident)];
+    	System.arraycopy(resident, 0, newResident, 0, residentCount);
+    	resident = newResident;
+
+    	while (residentCount > maxResident && evict(getOldest())) {}
+
+    	/* если фрагментов было больше, массив оставлен с запасом */
+    	if (residentCount <= maxResident && resident.length > maxResident) {
+    		newResident = new Chunk[maxResident];
+    		System.arraycopy(resident, 0, newResident, 0, residentCount);
+    		resident = newResident;
+    	}
+    }
+
+    /**
+     * Возвращает фрагмент в памяти, при необходимости создавая
+     * его или читая из файла подкачки
+     * @param key номер фрагмента на поле;
+     * @return фрагмент
+     */
+    private Chunk getChunk(int key) {
+
+    	if (lastChunk != null && lastChunk.key == key) return lastChunk;
+
+    	Chunk chunk = findChunk(key, true);
+
+    	if (chunk.cells == null) {
+    		byte[] cells = new byte[CHUNK_BYTES];
+    		if (store == null || !store.read(key, cells)) fillChunk(key, cells);
+    		makeResident(chunk, cells);
+    	}
+
+    	chunk.lastUse = ++clock;
+    	lastChunk = chunk;
+    	return chunk;
+    }
+
+    /**
+     * Ищет описание фрагмента, не загружая его ячейки
+     * @param key номер фрагмента на поле;
+     * @param create создать описание, если его нет;
+     * @return описание фрагмента или null
+     */
+    private Chunk findChunk(int key, boolean create) {
+
+    	int slot = findSlot(key);
+    	if (slots[slot] != 0) return chunks[slots[slot] - 1];
+    	if (!create) return null;
+
+    	Chunk chunk = new Chunk();
+    	chunk.key = key;
+    	chunk.resident = -1;
+
+    	if (chunkCount == chunks.length) {
+    		Chunk[] newChunks = new Chunk[chunkCount * 2];
+    		System.arraycopy(chunks, 0, newChunks, 0, chunkCount);
+    		chunks = newChunks;
+    	}
+
+    	chunk.ordinal = chunkCount;
+    	chunks[chunkCount++] = chunk;
+    	slots[slot] = chunkCount;
+
+    	/* таблица заполнена наполовину, увеличиваем ее */
+    	if (chunkCount * 2 > slots.length) growSlots();
+
+    	return chunk;
+    }
+
+    /**
+     * Помещает ячейки фрагмента в память, при переполнении
+     * вытесняя фрагмент, который дольше всех не использовался
+     * @param chunk описание фрагмента;
+     * @param cells ячейки фрагмента;
+     */
+    private void makeResident(Chunk chunk, byte[] cells) {
+
+    	if (residentCount == resident.length) {
+    		if (store != null) evict(getOldest());
+
+    		/* файл подкачки недоступен, увеличиваем лимит */
+    		if (residentCount == resident.length) {
+    			Chunk[] newResident = new Chunk[resident.length * 2];
+    			System.arraycopy(resident, 0, newResident, 0, residentCount);
+    			resident = newResident;
+    		}
+    	}
+
+    	chunk.cells = cells;
+    	chunk.resident = residentCount;
+    	chunk.lastUse = ++clock;
+    	resident[residentCount++] = chunk;
+    }
+
+    /**
+     * Вытесняет фрагмент из памяти. Измененный фрагмент записывается
+     * в файл подкачки и остается в памяти, если записать его не удалось
+     * @param chunk фрагмент в памяти;
+     * @return true если фрагмент вытеснен
+     */
+    private boolean evict(Chunk chunk) {
+
+    	if (chunk.changed && !store.write(chunk.key, chunk.cells)) return false;
+
+    	Chunk last = resident[--residentCount];
+    	resident[chunk.resident] = last;
+    	last.resident = chunk.resident;
+    	resident[residentCount] = null;
+
+    	chunk.cells = null;
+    	chunk.resident = -1;
+    	if (lastChunk == chunk) lastChunk = null;
+    	return true;
+    }
+
+    /**
+     * Возвращает фрагмент в памяти, который дольше всех не использовался
+     * @return фрагмент
+     */
+    private Chunk getOldest() {
+    	Chunk oldest = resident[0];
+
+    	for (int index = 1; index < residentCount; index++)
+    		if (resident[index].lastUse < oldest.lastUse) oldest = resident[index];
+
+    	return oldest;
+    }
+
+    /**
+     * Заполняет ячейки фрагмента закрытыми ячейками и минами из MineLayout
+     * @param key номер фрагмента на поле;
+     * @param cells буфер на CHUNK_BYTES байт;
+     */
+    private void fillChunk(int key, byte[] cells) {
+
+    	Arrays.fill(cells, CLOSED_PAIR);
+
+    	for (int local = 0; local < CHUNK_CELLS; local++) {
+    		int index = getCellIndex(key, local);
+    		if (layout.isMine(index & (SIZE - 1), index >>> SIZE_SHIFT))
+    			cells[local >> 1] |= (byte) (1 << ((local & 1) << 2));
+    	}
+    }
+
+    /**
+     * Ищет ячейку хеш-таблицы фрагментов с номером фрагмента или
+     * первую свободную ячейку на пути поиска
+     * @param key номер фрагмента на поле;
+     * @return номер ячейки таблицы
+     */
+    private int findSlot(int key) {
+    	int mask = slots.length - 1;
+    	int slot = (key * 0x9E3779B9) & mask;
+
+    	while (slots[slot] != 0 && chunks[slots[slot] - 1].key != key)
+    		slot = (slot + 1) & mask;
+
+    	return slot;
+    }
+
+    /**
+     * Увеличивает хеш-таблицу фрагментов вдвое
+     */
+    private void growSlots() {
+    	slots = new int[slots.length * 2];
+    	for (int ordinal = 0; ordinal < chunkCount; ordinal++)
+    		slots[findSlot(chunks[ordinal].key)] = ordinal + 1;
+    }
+
+    /**
+     * Возвращает номер фрагмента, в котором лежит ячейка
+     * @param index плоский индекс ячейки;
+     * @return номер фрагмента на поле
+     */
+    private static int getChunkKeyOf(int index) {
+    	int posW = index & (SIZE - 1);
+    	int posH = index >>> SIZE_SHIFT;
+    	return ((posH >> CHUNK_SHIFT) * CHUNK_COUNT) + (posW >> CHUNK_SHIFT);
+    }
+
+    /**
+     * Возвращает индекс ячейки внутри фрагмента
+     * @param index плоский индекс ячейки;
+     * @return индекс внутри фрагмента, построчно
+     */
+    private static int getLocalIndex(int index) {
+    	int posW = index & (CHUNK_SIZE - 1);
+    	int posH = (index >>> SIZE_SHIFT) & (CHUNK_SIZE - 1);
+    	return (posH << CHUNK_SHIFT) | posW;
+    }
+
+    /**
+     * Возвращает плоский индекс ячейки на поле
+     * @param key номер фрагмента на поле;
+     * @param local индекс ячейки внутри фрагмента;
+     * @return плоский индекс ячейки
+     */
+    private static int getCellIndex(int key, int local) {
+    	int posW = ((key % CHUNK_COUNT) << CHUNK_SHIFT) | (local & (CHUNK_SIZE - 1));
+    	int posH = ((key / CHUNK_COUNT) << CHUNK_SHIFT) | (local >> CHUNK_SHIFT);
+    	return (posH << SIZE_SHIFT) | posW;
+    }
+
+    // -= STORAGE =-
+
+    /**
+     * Возвращает упакованное состояние ячейки из ее фрагмента. Если 
+     * фрагмент не изменялся, состояние вычисляется по MineLayout без 
+     * создания фрагмента: ячейка закрыта, а после проигрыша мина открыта
+     */
+    @Override
+    protected int getNibble(int index) {
+
+    	int key = getChunkKeyOf(index);
+    	Chunk chunk = (lastChunk != null && lastChunk.key == key) ? lastChunk : findChunk(key, false);
+
+    	if (chunk == null || (chunk.cells == null && !chunk.changed)) {
+    		boolean mine = layout.isMine(index & (SIZE - 1), index >>> SIZE_SHIFT);
+    		if (!mine) return (CLOSED_UNMARKED_CELLS / 10) << 1;
+    		return (getGameState() == LOSE_GAME_STATE) ? 1 : ((CLOSED_UNMARKED_CELLS / 10) << 1) | 1;
+    	}
+
+    	byte[] cells = getChunk(key).cells;
+    	int local = getLocalIndex(index);
+    	return (cells[local >> 1] >> ((local & 1) << 2)) & 0x0F;
+    }
+
+    /**
+     * Записывает упакованное состояние ячейки в ее фрагмент
+     */
+    @Override
+    protected void setNibble(int index, int nibble) {
+    	Chunk chunk = getChunk(getChunkKeyOf(index));
+    	copyOnWrite(chunk.ordinal + 1);
+    	int local = getLocalIndex(index);
+    	int shift = (local & 1) << 2;
+    	chunk.cells[local >> 1] = (byte) ((chunk.cells[local >> 1] & ~(0x0F << shift))
+    		| (nibble << shift));
+    	chunk.changed = true;
+    }
+
+    /**
+     * Фрагменты создаются по мере надобности, поэтому при создании
+     * поля ничего не делается
+     */
+    @Override
+    protected void makeField() {}
+
+    /**
+     * Чтение ячейки создает фрагменты и подгружает их из файла,
+     * поэтому каскад всегда последовательный
+     */
+    @Override
+    protected boolean canReadConcurrently() {return false;}
+
+    /**
+     * Обход начинается с первой ячейки первого созданного фрагмента
+     */
+    @Override
+    protected int firstStoredCell() {
+    	return (chunkCount > 0) ? getCellIndex(chunks[0].key, 0) : -1;
+    }
+
+    /**
+     * Обходит ячейки созданных фрагментов по порядку их создания,
+     * фрагменты, созданные во время обхода, тоже будут пройдены.
+     * Вытесненные фрагменты читаются обратно по мере обхода
+     */
+    @Override
+    protected int nextStoredCell(int index) {
+
+    	int local = getLocalIndex(index) + 1;
+    	Chunk chunk = findChunk(getChunkKeyOf(index), false);
+
+    	if (local < CHUNK_CELLS) return getCellIndex(chunk.key, local);
+    	if (chunk.ordinal + 1 < chunkCount) return getCellIndex(chunks[chunk.ordinal + 1].key, 0);
+
+    	return -1;
+    }
+
+    /**
+     * Бесконечное поле сохраняется не целиком, а по измененным фрагментам:
+     * зерно, количество измененных фрагментов и для каждого из них номер 
+     * на поле и CHUNK_BYTES байт состояний ячеек (см. GameStorage).
+     * Блок снимка 0 - зерно и количество, блок фрагмента - его порядковый
+     * номер + 1. Фрагменты в памяти пишутся из памяти с копированием при 
+     * записи, вытесненные копируются из файла подкачки при создании 
+     * снимка, так как файл подкачки используется только в игровом потоке
+     */
+    @Override
+    protected CellSnapshot createCellSnapshot() {
+
+    	final int count = chunkCount;
+    	final int[] keys = new int[count];
+    	final byte[][] sources = new byte[count][];
+    	final byte[][] copies = new byte[count][];
+    	int changed = 0;
+
+    	for (int ordinal = 0; ordinal < count; ordinal++) {
+    		Chunk chunk = chunks[ordinal];
+    		keys[ordinal] = -1;
+    		if (!chunk.changed) continue;
+
+    		keys[ordinal] = chunk.key;
+    		sources[ordinal] = chunk.cells;
+    		changed++;
+
+    		if (sources[ordinal] == null) {
+    			sources[ordinal] = new byte[CHUNK_BYTES];
+    			if (!store.read(chunk.key, sources[ordinal])) fillChunk(chunk.key, sources[ordinal]);
+    		}
+    	}
+
+    	final int changedCount = changed;
+
+    	return new CellSnapshot(count + 1) {
+    		protected void copyBlock(int block) {
+    			if (block > 0 && sources[block - 1] != null)
+    				copies[block - 1] = sources[block - 1].clone();
+    		}
+
+    		protected void writeBlock(OutputStream out, int block, boolean copied)
+    			throws IOException {
+
+    			if (block == 0) {
+    				GameStorage.writeVarLong(out, seed);
+    				GameStorage.writeVarLong(out, changedCount);
+    				return;
+    			}
+
+    			int ordinal = block - 1;
+    			if (keys[ordinal] < 0) return;
+
+    			GameStorage.writeVarLong(out, keys[ordinal]);
+    			out.write(copied ? copies[ordinal] : sources[ordinal]);
+    		}
+    	};
+    }
+
+    /**
+     * Для бесконечного поля 3BV не определен, подсчет потребовал бы
+     * создать все поле. История игр записывает его как неизвестный,
+     * и в статистику он не попадает
+     * @return UNKNOWN_3BV
+     */
+    @Override
+    public int get3BV() {return UNKNOWN_3BV;}
+}
@@ -0,0 +1,156 @@
+package com.yvolohov.miner;
+
+import java.util.Random;
+
+/**
+ * Сверка битового поля с байтовым: оба поля получают одну и ту же
+ * расстановку мин и одну и ту же случайную последовательность ходов
+ * (открытия, отметки, открытия вокруг числа, отмены и повторы).
+ * После каждого хода сравниваются все ячейки и счетчики полей.
+ * Вызывается вручную из отладочной сборки или через main
+ * @author yvolohov
+ */
+class EngineCheck {
+
+    private static final int MOVES = 200;
+
+    /**
+     * Выполняет сверку на нескольких случайных полях
+     * @param seed начальное значение генератора;
+     * @param boards количество полей;
+     * @return отчет о сверке, первое расхождение для каждого поля
+     */
+    public static String run(long seed, int boards) {
+
+    	StringBuilder report = new StringBuilder();
+    	Random rand = new Random(seed);
+    	int failures = 0;
+
+    	for (int board = 0; board < boards; board++) {
+    		long boardSeed = rand.nextLong();
+    		String error = checkBoard(boardSeed);
+
+    		if (error != null) {
+    			failures++;
+    			report.append("seed ").append(boardSeed).append(": ").append(error).append('\n');
+    		}
+    	}
+
+    	report.append("engines: ").append(boards - failures).append('/').append(boards)
+    		.append(" boards match\n");
+    	return report.toString();
+    }
+
+    /**
+     * Сверяет поля на одной расстановке
+     * @param seed начальное значение генератора поля и ходов;
+     * @return описание первого расхождения или null
+     */
+    private static String checkBoard(long seed) {
+
+    	Random rand = new Random(seed);
+    	int width = 1 + rand.nextInt(150);
+    	int height = 1 + rand.nextInt(60);
+    	int mines = rand.nextInt((width * height) / 5 + 1);
+    	byte[] layout = createLayout(width, height, mines, rand);
+
+    	GameField bytes = new SquGameField(0, width, height, mines, layout.clone());
+    	GameField bits = new BitGameField(0, width, height, mines, layout.clone());
+    	String error = compare(bytes, bits);
+
+    	for (int move = 0; move < MOVES && error == null; move++) {
+    		int posW = rand.nextInt(width);
+    		int posH = rand.nextInt(height);
+    		int action = rand.nextInt(10);
+
+    		if (action < 4) {
+    			bytes.openCell(posW, posH);
+    			bits.openCell(posW, posH);
+    		}
+    		else if (action < 6) {
+    			bytes.markCell(posW, posH);
+    			bits.markCell(posW, posH);
+    		}
+    		else if (action < 8) {
+    			bytes.chordCell(posW, posH);
+    			bits.chordCell(posW, posH);
+    		}
+    		else if (action < 9) {
+    			bytes.undo();
+    			bits.undo();
+    		}
+    		else {
+    			bytes.redo();
+    			bits.redo();
+    		}
+
+    		error = compare(bytes, bits);
+    		if (error != null) error = "move " + move + ", action " + action + ": " + error;
+    	}
+
+    	return error;
+    }
+
+    /**
+     * Создает упакованную расстановку со всеми закрытыми ячейками
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @param rand генератор;
+     * @return упакованные состояния ячеек
+     */
+    private static byte[] createLayout(int width, int height, int mines, Random rand) {
+
+    	int cells = width * height;
+    	boolean[] mined = new boolean[cells];
+
+    	for (int placed = 0; placed < mines; ) {
+    		int index = rand.nextInt(cells);
+
+    		if (!mined[index]) {
+    			mined[index] = true;
+    			placed++;
+    		}
+    	}
+
+    	byte[] layout = new byte[(cells + 1) / 2];
+    	int closed = (GameField.CLOSED_UNMARKED_CELLS / 10) << 1;
+
+    	for (int index = 0; index < cells; index++) {
+    		int nibble = closed | (mined[index] ? 1 : 0);
+    		layout[index >> 1] |= nibble << ((index & 1) << 2);
+    	}
+
+    	return layout;
+    }
+
+    /**
+     * Сравнивает ячейки и счетчики двух полей
+     * @return описание расхождения или null
+     */
+    private static String compare(GameField expected, GameField actual) {
+
+    	for (int posH = 0; posH < expected.getFHeight(); posH++)
+    		for (int posW = 0; posW < expected.getFWidth(); posW++)
+    			if (expected.getCell(posW, posH) != actual.getCell(posW, posH))
+    				return "cell " + posW + "," + posH + " is " + actual.getCell(posW, posH)
+    					+ ", expected " + expected.getCell(posW, posH);
+
+    	if (expected.getFlags() != actual.getFlags())
+    		return "flags " + actual.getFlags() + ", expected " + expected.getFlags();
+    	if (expected.getClicks() != actual.getClicks())
+    		return "clicks " + actual.getClicks() + ", expected " + expected.getClicks();
+    	if (expected.getGameState() != actual.getGameState())
+    		return "game state " + actual.getGameState() + ", expected " + expected.getGameState();
+    	if (expected.canUndo() != actual.canUndo() || expected.canRedo() != actual.canRedo())
+    		return "history differs";
+
+    	return null;
+    }
+
+    public static void main(String[] args) {
+    	long seed = (args.length > 0) ? Long.parseLong(args[0]) : 1L;
+    	int boards = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+    	System.out.print(run(seed, boards));
+    }
+}
@@ -0,0 +1,26 @@
+package com.yvolohov.miner;
+
+/**
+ * Служебная структура данных, прямоугольная область поля в пикселах 
+ * поля. Координаты хранятся с двойной точностью, чтобы положение 
+ * ячеек и видимой области не теряло точность на очень больших полях
+ * @author yvolohov
+ */
+class FieldArea {
+    public double left, top, right, bottom;
+    
+    public FieldArea() {}
+    
+    /**
+     * @param left левая граница;
+     * @param top верхняя граница;
+     * @param right правая граница;
+     * @param bottom нижняя граница;
+     */
+    public FieldArea(double left, double top, double right, double bottom) {
+    	this.left = left;
+    	this.top = top;
+    	this.right = right;
+    	this.bottom = bottom;
+    }
+}
@@ -0,0 +1,154 @@
+package com.yvolohov.miner;
+
+import android.os.SystemClock;
+
+/**
+ * Замер производительности игрового поля на больших размерах:
+ * время генерации поля, открытия всего поля одним ходом и подсчета 3BV.
+ * Для открытия используется поле без мин, поэтому первый же ход
+ * открывает все ячейки. Результат возвращается строкой, вызывается
+ * вручную из отладочной сборки или через main
+ * @author yvolohov
+ */
+class FieldBenchmark {
+
+    private static final String[] SHAPES = {"squ", "hex", "bit"};
+
+    /* плотная игра со своими настройками для замера генерации без угадывания */
+    private static final int DENSE_SIZE = 24;
+    private static final int DENSE_MINES = 120;
+
+    /**
+     * Выполняет замер для квадратного, шестиугольного и битового полей
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин для замера генерации;
+     * @return отчет о замере
+     */
+    public static String run(int width, int height, int mines) {
+
+    	StringBuilder report = new StringBuilder();
+    	report.append(width).append('x').append(height)
+    		.append(", mines ").append(mines).append('\n');
+
+    	for (int shape = 0; shape < SHAPES.length; shape++) {
+    		long start = SystemClock.uptimeMillis();
+    		GameField field = createField(shape, width, height, mines);
+    		long generation = SystemClock.uptimeMillis() - start;
+
+    		start = SystemClock.uptimeMillis();
+    		int bbbv = field.get3BV();
+    		long counting = SystemClock.uptimeMillis() - start;
+
+    		field = createField(shape, width, height, 0);
+    		start = SystemClock.uptimeMillis();
+    		field.openCell(width / 2, height / 2);
+    		long opening = SystemClock.uptimeMillis() - start;
+
+    		report.append(SHAPES[shape])
+    			.append(": generation ").append(generation)
+    			.append(" ms, 3BV ").append(bbbv).append(" in ").append(counting)
+    			.append(" ms, full opening ").append(opening).append(" ms")
+    			.append((field.getGameState() == GameField.WIN_GAME_STATE) ? "" : " (not finished)")
+    			.append('\n');
+    	}
+
+    	return report.toString();
+    }
+
+    /**
+     * Замер генерации полей без угадывания: для каждого уровня
+     * и для плотной игры со своими настройками генерируется несколько
+     * полей, в отчет попадают доля успешных генераций, среднее
+     * и наибольшее время и количество проверенных расстановок
+     * @param boards количество полей на каждый уровень;
+     * @return отчет о замере
+     */
+    public static String runNoGuess(int boards) {
+
+    	StringBuilder report = new StringBuilder();
+    	report.append("no guess, ").append(WorkerPool.getThreads()).append(" threads, limit ")
+    		.append(NoGuessGenerator.TIME_LIMIT).append(" ms\n");
+
+    	for (int level = GameField.SIMPLE_LEVEL; level <= GameField.HARD_LEVEL_HEX + 1; level++) {
+    		GameField shape;
+    		String name;
+
+    		if (level > GameField.HARD_LEVEL_HEX) {
+    			shape = new SquGameField(DENSE_SIZE, DENSE_SIZE, DENSE_MINES);
+    			name = "squ " + DENSE_SIZE + "x" + DENSE_SIZE + "/" + DENSE_MINES;
+    		}
+    		else if (level >= GameField.SIMPLE_LEVEL_HEX) {
+    			shape = new HexGameField(level);
+    			name = "hex level " + level;
+    		}
+    		else {
+    			shape = new SquGameField(level);
+    			name = "squ level " + level;
+    		}
+
+    		NoGuessGenerator.Stats stats = new NoGuessGenerator.Stats();
+
+    		for (int board = 0; board < boards; board++)
+    			NoGuessGenerator.generate(shape, NoGuessGenerator.TIME_LIMIT, stats);
+
+    		int total = stats.boards + stats.failures;
+    		report.append(name)
+    			.append(": success ").append(stats.boards).append('/').append(total)
+    			.append(", average ").append((total > 0) ? stats.totalTime / total : 0)
+    			.append(" ms, max ").append(stats.maxTime)
+    			.append(" ms, candidates ").append(stats.candidates.get())
+    			.append('\n');
+    	}
+
+    	return report.toString();
+    }
+
+    /**
+     * Замер пакетного подсчета 3BV случайных полей для каждого уровня
+     * @param boards количество полей на каждый уровень;
+     * @return отчет о замере
+     */
+    public static String runMetrics(int boards) {
+
+    	StringBuilder report = new StringBuilder();
+    	report.append("3BV batch, ").append(WorkerPool.getThreads()).append(" threads\n");
+
+    	for (int level = GameField.SIMPLE_LEVEL; level <= GameField.HARD_LEVEL_HEX; level++) {
+    		GameField shape = (level >= GameField.SIMPLE_LEVEL_HEX)
+    			? new HexGameField(level) : new SquGameField(level);
+
+    		long start = SystemClock.uptimeMillis();
+    		BoardMetrics.Summary summary = BoardMetrics.evaluate(shape, boards, start, null);
+    		long time = SystemClock.uptimeMillis() - start;
+
+    		report.append("level ").append(level)
+    			.append(": 3BV ").append(summary.min3BV).append("..").append(summary.max3BV)
+    			.append(", average ").append(summary.total3BV / Math.max(1, summary.boards))
+    			.append(", ").append(boards).append(" boards in ").append(time).append(" ms\n");
+    	}
+
+    	return report.toString();
+    }
+
+    /**
+     * Создает игровое поле нужной формы
+     * @param shape индекс формы в SHAPES;
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @return игровое поле
+     */
+    private static GameField createField(int shape, int width, int height, int mines) {
+    	if (shape == 1) return new HexGameField(width, height, mines);
+    	else if (shape == 2) return new BitGameField(width, height, mines);
+    	else return new SquGameField(width, height, mines);
+    }
+
+    public static void main(String[] args) {
+    	int width = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+    	int height = (args.length > 1) ? Integer.parseInt(args[1]) : width;
+    	int mines = (args.length > 2) ? Integer.parseInt(args[2]) : (width * height) / 8;
+    	System.out.print(run(width, height, mines));
+    }
+}
@@ -0,0 +1,82 @@
+package com.yvolohov.miner;
+
+/**
+ * Служебная структура данных, описывающая изменения игрового поля
+ * за один ход: плоские индексы (posH * ширина + posW) и новые значения
+ * измененных ячеек, ячейку, на которой сделан ход, а также значения 
+ * счетчиков после хода. Количество записанных ячеек ограничено
+ * MAX_CELLS, чтобы открытие большой области на огромном поле не
+ * занимало лишнюю память; если ячеек больше, выставляется флаг
+ * overflow и слушатели должны перечитать поле целиком. Открытие
+ * области, растянутое на несколько кадров, продолжается изменениями
+ * типа CASCADE, которые не относятся к ячейке и не считаются ходами.
+ * Аккорд (CHORD_CELL) записывается одним изменением со всеми открытыми
+ * соседями и областями вокруг них. Отмена и повтор хода (UNDO, REDO)
+ * не относятся к ячейке и не считаются ходами.
+ * Экземпляр принадлежит игровому полю и используется повторно, поэтому
+ * слушатели не должны сохранять ссылку на него после обработки события
+ * @author yvolohov
+ */
+class FieldChange {
+	
+    public static final int OPEN_CELL = 1;
+    public static final int MARK_CELL = 2;
+    public static final int END_GAME = 3;
+    public static final int CASCADE = 4;
+    public static final int CHORD_CELL = 5;
+    public static final int UNDO = 6;
+    public static final int REDO = 7;
+    
+    public static final int MAX_CELLS = 65536;
+    
+    private static final int START_CAPACITY = 16;
+
+    public int type;
+    public int cell;
+    public int[] indices = new int[START_CAPACITY];
+    public byte[] values = new byte[START_CAPACITY];
+    public int count;
+    public boolean overflow;
+    public int restCells, flags, gameState;
+    
+    /**
+     * Подготавливает структуру к записи изменений нового хода
+     * @param type тип хода, значение одной из констант класса;
+     * @param cell плоский индекс ячейки, на которой сделан ход, 
+     * или -1, если ход не относится к конкретной ячейке;
+     */
+    public void clear(int type, int cell) {
+    	this.type = type;
+    	this.cell = cell;
+    	count = 0;
+    	overflow = false;
+    }
+    
+    /**
+     * Добавляет измененную ячейку, при необходимости 
+     * увеличивая размер буферов. После MAX_CELLS ячеек
+     * только выставляет флаг overflow
+     * @param index плоский индекс ячейки;
+     * @param value новое значение ячейки;
+     */
+    public void add(int index, byte value) {
+    	
+    	if (count == MAX_CELLS) {
+    		overflow = true;
+    		return;
+    	}
+    	
+    	if (count == indices.length) {
+    		int[] newIndices = new int[count * 2];
+    		byte[] newValues = new byte[count * 2];
+    		System.arraycopy(indices, 0, newIndices, 0, count);
+    		System.arraycopy(values, 0, newValues, 0, count);
+    		indices = newIndices;
+    		values = newValues;
+    	}
+    	
+    	indices[count] = index;
+    	values[count] = value;
+    	count++;
+    }
+}
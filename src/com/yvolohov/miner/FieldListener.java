@@ -0,0 +1,18 @@
+package com.yvolohov.miner;
+
+/**
+ * Слушатель изменений игрового поля, получает после каждого хода
+ * только измененные ячейки, что избавляет от повторного чтения 
+ * всего поля. Методы слушателя вызываются в игровом потоке
+ * @author yvolohov
+ */
+interface FieldListener {
+
+    /**
+     * Вызывается после хода, изменившего хотя бы одну ячейку
+     * @param gameField игровое поле;
+     * @param change изменения за ход, действительны только
+     * во время вызова;
+     */
+    void onFieldChanged(GameField gameField, FieldChange change);
+}
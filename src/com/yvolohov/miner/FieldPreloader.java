@@ -0,0 +1,114 @@
+package com.yvolohov.miner;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Заготовка следующего игрового поля. Пока идет игра, в фоновом
+ * потоке создается поле с теми же настройками, и перезапуск игры
+ * только подставляет готовое поле вместо того, чтобы генерировать
+ * его в игровом потоке. Большие поля генерируются всеми процессорами,
+ * поэтому они готовятся только после окончания игры, чтобы не мешать
+ * открытию областей. Поля от MAX_CELLS ячеек не готовятся вовсе:
+ * заготовка держала бы в памяти второе такое же поле, а при
+ * перезапуске они создаются в игровом потоке, как и без заготовки.
+ * Бесконечное поле создается мгновенно и делит
+ * файл подкачки с текущим полем, поэтому оно заранее не готовится.
+ * Фоновый поток свой, а не из WorkerPool, так как генерация сама
+ * пользуется пулом и ждет его задач. Вызывается только в игровом потоке
+ * @author yvolohov
+ */
+class FieldPreloader {
+
+    /* поля от этого размера готовятся только после окончания игры */
+    public static final int LATE_CELLS = StripeGenerator.MIN_CELLS;
+
+    /* поля от этого размера не готовятся, около 2 МБ на заготовку */
+    public static final int MAX_CELLS = 1 << 22;
+
+    private static ExecutorService executor;
+
+    private GameField source;
+    private Future<GameField> next;
+
+    /**
+     * Начинает готовить следующее поле, если оно еще не готовится
+     * и его уже можно готовить, вызывается на каждом витке игрового цикла
+     * @param gameField текущее игровое поле;
+     */
+    public void update(final GameField gameField) {
+
+    	if (source == gameField || gameField.getLevel() == GameField.INFINITE_LEVEL) return;
+
+    	long cells = (long) gameField.getFWidth() * gameField.getFHeight();
+
+    	if (cells >= MAX_CELLS) return;
+    	if (cells >= LATE_CELLS && gameField.getGameState() == GameField.ACTION_GAME_STATE)
+    		return;
+
+    	/* заготовка для прежнего поля уже не нужна */
+    	if (next != null) next.cancel(true);
+
+    	source = gameField;
+    	next = getExecutor().submit(new Callable<GameField>() {
+    		public GameField call() {return gameField.reCreate();}
+    	});
+    }
+
+    /**
+     * Возвращает следующее поле: готовое, дожидаясь окончания
+     * генерации, если она уже идет, или созданное сразу
+     * @param gameField текущее игровое поле;
+     * @return новое игровое поле с теми же настройками
+     */
+    public GameField take(GameField gameField) {
+
+    	Future<GameField> ready = (source == gameField) ? next : null;
+    	source = null;
+    	next = null;
+
+    	if (ready == null) return gameField.reCreate();
+
+    	boolean interrupted = false;
+
+    	try {
+    		while (true) {
+    			try {
+    				return ready.get();
+    			}
+    			catch (InterruptedException e) {
+    				interrupted = true;
+    			}
+    			catch (ExecutionException e) {
+    				throw new RuntimeException(e.getCause());
+    			}
+    		}
+    	}
+    	finally {
+    		if (interrupted) Thread.currentThread().interrupt();
+    	}
+    }
+
+    /**
+     * Возвращает фоновый поток, создавая его при первом обращении
+     */
+    private static synchronized ExecutorService getExecutor() {
+
+    	if (executor == null) {
+    		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    			public Thread newThread(Runnable runnable) {
+    				Thread thread = new Thread(runnable, "FieldPreloader");
+    				thread.setDaemon(true);
+    				thread.setPriority(Thread.MIN_PRIORITY);
+    				return thread;
+    			}
+    		});
+    	}
+
+    	return executor;
+    }
+}
@@ -0,0 +1,123 @@
+package com.yvolohov.miner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Параллельное расширение фронта обхода в ширину. Фронт - массив
+ * открытых пустых ячеек - делится на части, которые обрабатываются
+ * потоками общего пула: каждый поток находит соседей своих ячеек,
+ * которые можно открыть, и считает мины вокруг них, но поле не
+ * меняет. Поле записывает найденные ячейки само, в игровом потоке,
+ * после того как все части готовы, поэтому во время работы потоков
+ * поле только читается. Потоки берутся из WorkerPool. Используется
+ * для больших каскадов на полях, ячейки которых можно читать из
+ * нескольких потоков
+ * @author yvolohov
+ */
+class FrontierFill {
+
+    /* каскад, после которого обход продолжается параллельно */
+    public static final int MIN_CASCADE = 1 << 16;
+
+    /* меньшие части фронта обрабатываются в игровом потоке */
+    private static final int MIN_PART = 1024;
+
+    /**
+     * Обработчик части фронта, вызывается из потоков пула
+     */
+    public interface Expander {
+
+        /**
+         * Находит ячейки, которые открываются вокруг ячеек фронта
+         * @param frontier фронт;
+         * @param from первая ячейка части;
+         * @param to ячейка за последней ячейкой части;
+         * @param part найденные ячейки и количество мин вокруг них;
+         */
+        void expand(int[] frontier, int from, int to, Part part);
+    }
+
+    /**
+     * Ячейки, найденные при обработке части фронта
+     */
+    public static class Part {
+
+        public int[] cells = new int[MIN_PART];
+        public byte[] numbers = new byte[MIN_PART];
+        public int count;
+
+        /**
+         * Добавляет ячейку
+         * @param cell плоский индекс ячейки;
+         * @param number количество мин вокруг ячейки;
+         */
+        public void add(int cell, int number) {
+
+        	if (count == cells.length) {
+        		int[] newCells = new int[count * 2];
+        		byte[] newNumbers = new byte[count * 2];
+        		System.arraycopy(cells, 0, newCells, 0, count);
+        		System.arraycopy(numbers, 0, newNumbers, 0, count);
+        		cells = newCells;
+        		numbers = newNumbers;
+        	}
+
+        	cells[count] = cell;
+        	numbers[count] = (byte) number;
+        	count++;
+        }
+    }
+
+    private final int threads;
+    private final List<Part> parts = new ArrayList<Part>();
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    /**
+     * @param threads количество частей, на которые делится фронт;
+     */
+    public FrontierFill(int threads) {
+    	this.threads = threads;
+    }
+
+    /**
+     * Обрабатывает весь фронт частями и дожидается результата
+     * @param frontier фронт;
+     * @param size количество ячеек фронта;
+     * @param expander обработчик частей;
+     * @return количество частей, результаты в порядке частей
+     * доступны через getPart
+     */
+    public int expand(final int[] frontier, int size, final Expander expander) {
+
+    	int count = Math.max(1, Math.min(threads, size / MIN_PART));
+
+    	while (parts.size() < count) parts.add(new Part());
+    	for (int index = 0; index < count; index++) parts.get(index).count = 0;
+
+    	/* последняя часть обрабатывается в игровом потоке */
+    	futures.clear();
+
+    	for (int index = 0; index < count - 1; index++) {
+    		final int from = (int) ((long) size * index / count);
+    		final int to = (int) ((long) size * (index + 1) / count);
+    		final Part part = parts.get(index);
+
+    		futures.add(WorkerPool.getExecutor().submit(new Runnable() {
+    			public void run() {expander.expand(frontier, from, to, part);}
+    		}));
+    	}
+
+    	expander.expand(frontier, (int) ((long) size * (count - 1) / count), size, parts.get(count - 1));
+    	WorkerPool.await(futures);
+    	return count;
+    }
+
+    /**
+     * Возвращает результат обработки части фронта
+     * @param index номер части;
+     * @return найденные ячейки
+     */
+    public Part getPart(int index) {return parts.get(index);}
+}
@@ -0,0 +1,34 @@
+package com.yvolohov.miner;
+
+/**
+ * Команда игрового цикла - действие пользователя, которое изменяет
+ * состояние игры. Команды могут создаваться в любом потоке, но 
+ * выполняются только в игровом потоке
+ * @author yvolohov
+ */
+class GameCommand {
+	
+    public static final int OPEN_CELL = 1;
+    public static final int MARK_CELL = 2;
+    public static final int MOVE_SCREEN = 3;
+    public static final int PRESS_POINT = 4;
+    public static final int CHANGE_SCALE = 5;
+    public static final int CHANGE_SIZE = 6;
+    public static final int RESTART = 7;
+    public static final int UNDO = 8;
+    public static final int REDO = 9;
+	
+    public final int type;
+    public final int x, y;
+    
+    /**
+     * @param type тип команды, значение одной из констант класса;
+     * @param x первый параметр команды (координата или величина по ширине);
+     * @param y второй параметр команды (координата или величина по высоте);
+     */
+    public GameCommand(int type, int x, int y) {
+    	this.type = type;
+    	this.x = x;
+    	this.y = y;
+    }
+}
@@ -1,26 +1,26 @@
 package com.yvolohov.miner;
 
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.RectF;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 
 /**
  * Класс представляет заготовку для модели игры "Сапер"
  * с квадратными или шестиугольными ячейками
  * @author Ярослав Волохов
  */
-@SuppressWarnings("serial")
-abstract class GameField implements Serializable, Runnable {	
+abstract class GameField {	
        
     public static final int SIMPLE_LEVEL = 1;
     public static final int MEDIUM_LEVEL = 2;
@@ -28,6 +28,7 @@ abstract class GameField implements Serializable, Runnable {
     public static final int SIMPLE_LEVEL_HEX = 4;
     public static final int MEDIUM_LEVEL_HEX = 5;
     public static final int HARD_LEVEL_HEX = 6;            
+    public static final int INFINITE_LEVEL = 7;
 	
     public static final int OPENED_CELLS = 0;
     public static final int CLOSED_UNMARKED_CELLS = 10;
@@ -46,15 +47,49 @@ abstract class GameField implements Serializable, Runnable {
     public static final int MSG_UPDATE = 1;
     public static final int MSG_WIN = 2;    
     
-    private byte[][] field;
-    private boolean[][] processedCells;    
+    public static final int UNKNOWN_3BV = -1;
+    
+    public static final long UPD_INTERVAL = 100L;
+    public static final int MAX_TIME_CHARS = 25;
+    
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int SLICE_CHECK_MASK = 0xFF;
+    private static final int SCAN_CHECK_MASK = 0xFFFF;
+    private static final int SNAPSHOT_BLOCK_SHIFT = 15;
+    
+    private byte[] cells;
+    private CellSnapshot snapshot;
+    private CellQueue queue;
+    private RegionIndex regions;
+    private int cascade, scanCell;
+    private boolean cascading, lost;
+    private int[] regionCells;
+    private int regionCount, regionNext;
+    private boolean regionOpening;
+    private int indexRegion, indexStart, indexPosition;
+    private boolean indexChecked;
+    private long deadline;
+    private int[] frontier, nextFrontier;
+    private int frontierSize;
+    private AtomicLongArray visited;
+    private FrontierFill fill;
     private int width, height, mines, flags;
     private int restCells;
+    private int clicks;
+    private boolean noGuess;
+    private boolean assisted;
     private int gameState;
     private long time; 
-    private transient Thread thread;
-    private transient Handler handler;
-    private transient boolean run;    
+    private Handler handler;
+    private long preTime;
+    private int preState;
+    private final GameStatus status = new GameStatus();
+    private long shownSeconds;
+    private int shownFlags;
+    private FieldChange change = new FieldChange();
+    private int changeDepth;
+    private final MoveHistory history = new MoveHistory();
+    private List<FieldListener> fieldListeners = new CopyOnWriteArrayList<FieldListener>();
 	
     /**
      * @param level уровень сложности игры,
@@ -63,33 +98,60 @@ abstract class GameField implements Serializable, Runnable {
      * MEDIUM_LEVEL_HEX и HARD_LEVEL_HEX; 
      */
 	public GameField(int level) {
+		width = getLevelWidth(level);
+		height = getLevelHeight(level);
+		mines = getLevelMines(level);
+
+		restCells = (width * height) - mines;
+		gameState = ACTION_GAME_STATE;
+		makeField();
+	}
+	
+    /**
+     * Возвращает ширину поля для уровня сложности
+     * @param level уровень сложности игры;
+     * @return ширина поля
+     */
+	public static int getLevelWidth(int level) {
+		switch (level) {
+		case MEDIUM_LEVEL:
+		case MEDIUM_LEVEL_HEX: return 16;
+		case HARD_LEVEL:
+		case HARD_LEVEL_HEX: return 30;
+		default: return 9;
+		}
+	}
+
+    /**
+     * Возвращает высоту поля для уровня сложности
+     * @param level уровень сложности игры;
+     * @return высота поля
+     */
+	public static int getLevelHeight(int level) {
 		switch (level) {
-		
 		case MEDIUM_LEVEL:
 		case MEDIUM_LEVEL_HEX:
-			width = 16;
-			height = 16;
-			mines = 40;
-			break;
-		
 		case HARD_LEVEL:
-		case HARD_LEVEL_HEX:
-			width = 30;
-			height = 16;
-			mines = 99;
-			break;
-		
-		default:
-			width = 9;
-			height = 9;
-			mines = 10;
+		case HARD_LEVEL_HEX: return 16;
+		default: return 9;
 		}
+	}
 
-		restCells = (width * height) - mines;
-		gameState = ACTION_GAME_STATE;
-		makeField();
+    /**
+     * Возвращает количество мин для уровня сложности
+     * @param level уровень сложности игры;
+     * @return количество мин
+     */
+	public static int getLevelMines(int level) {
+		switch (level) {
+		case MEDIUM_LEVEL:
+		case MEDIUM_LEVEL_HEX: return 40;
+		case HARD_LEVEL:
+		case HARD_LEVEL_HEX: return 99;
+		default: return 10;
+		}
 	}
-	
+
     /**
      * @param width ширина поля;
      * @param height высота поля;
@@ -104,6 +166,23 @@ abstract class GameField implements Serializable, Runnable {
 		gameState = ACTION_GAME_STATE;
 		makeField();
 	}
+	
+    /**
+     * Восстанавливает сохраненное игровое поле, счетчики 
+     * флажков и закрытых ячеек, а также состояние игры 
+     * вычисляются по состояниям ячеек
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @param packedCells состояния ячеек в формате метода unpackCells;
+     */
+	public GameField(int width, int height, int mines, byte[] packedCells) {
+		this.width = width;
+		this.height = height;
+		this.mines = mines;
+		
+		unpackCells(packedCells);
+	}
         
     /**
      * Делает ход в игре (открывает ячейку) 
@@ -111,6 +190,60 @@ abstract class GameField implements Serializable, Runnable {
      * @param posH индекс ячейки по высоте;
      */
     public void openCell(int posW, int posH) {
+    	openCell(posW, posH, 0);
+    }
+    
+    /**
+     * Делает ход в игре, ограничивая время открытия области. Если
+     * область не открылась за отведенное время, обход останавливается,
+     * а его состояние сохраняется и продолжается вызовами continueCascade
+     * @param posW индекс ячейки по ширине;
+     * @param posH индекс ячейки по высоте;
+     * @param budget время на открытие в миллисекундах, 
+     * 0 - область открывается сразу целиком;
+     */
+    public void openCell(int posW, int posH, long budget) {
+    	finishCascade();
+    	setDeadline(budget);
+    	beginChange(FieldChange.OPEN_CELL, (posH * width) + posW);
+    	openCells(posW, posH);
+    	endChange();
+    }
+    
+    /**
+     * Продолжает незаконченное открытие области. Ячейки, открытые 
+     * за вызов, передаются слушателям изменением типа CASCADE
+     * @param budget время в миллисекундах, 0 - до конца;
+     */
+    public void continueCascade(long budget) {
+    	
+    	if (!cascading) return;
+    	
+    	setDeadline(budget);
+    	beginChange(FieldChange.CASCADE, -1);
+    	runCascade();
+    	endChange();
+    }
+    
+    /**
+     * Заканчивает незаконченное открытие области сразу, вызывается
+     * перед ходами и сохранением игры
+     */
+    public void finishCascade() {continueCascade(0);}
+    
+    /**
+     * Проверяет, есть ли незаконченное открытие области
+     * @return true если открытие области нужно продолжить
+     */
+    public boolean isCascading() {return cascading;}
+    
+    /**
+     * Открывает ячейку и, если она пустая, всю связанную с ней
+     * область, записывая измененные ячейки в текущее изменение поля
+     * @param posW индекс ячейки по ширине;
+     * @param posH индекс ячейки по высоте;
+     */
+    private void openCells(int posW, int posH) {
 
 		/* игра уже закончена, ячейка недоступна */
 		if (gameState != ACTION_GAME_STATE)
@@ -120,64 +253,618 @@ abstract class GameField implements Serializable, Runnable {
 		if (!(isValidCell(posW, posH)))
 			return;
 
+		int index = (posH * width) + posW;
+
 		/* если в ячейке мина, открываем ее и завершаем игру */
-		if (field[posW][posH] == CLOSED_MARKED_QUESTION_CELLS + MINE_CELL
-				|| field[posW][posH] == CLOSED_UNMARKED_CELLS + MINE_CELL) {
-			field[posW][posH] = BLASTED_CELLS + MINE_CELL;
+		if (isMine(index)) {
+			putCell(index, (byte) (BLASTED_CELLS + MINE_CELL));
 			endGame(LOSE_GAME_STATE);
 			return;
 		}
 
-		/* создаем список координат всех ячеек, которые будут открыты
-		 * по щелчку на текущей ячейке */
-		List<Point> coordsList = new ArrayList<Point>();
-		coordsList.add(new Point(posW, posH));
-
-		/* если координаты ячейки попадают в список то делаем
-		 * отметку в служебном массиве, чтобы избежать дублирования в списке */
-		processedCells[posW][posH] = true;
-
-		for (int indexOne = 0; indexOne < coordsList.size(); indexOne++) {
-
-			Point coords = coordsList.get(indexOne);
-
-			/* открываем ячейку, уменьшаем счетчик */
-			if (field[coords.x][coords.y] >= CLOSED_MARKED_QUESTION_CELLS)
-				field[coords.x][coords.y] -= 20; // to OPENED_CELLS
-			else
-				field[coords.x][coords.y] -= 10; // to OPENED_CELLS
-
-			restCells--;
-
-			/* если все ячейки открыты, завершаем игру победой */
-			if (restCells == 0) {
-				endGame(WIN_GAME_STATE);
-				return;
-			}
-
-			if (field[coords.x][coords.y] != EMPTY_CELL)
-				continue;
-			
-			/* получаем соседние ячейки текущей ячейки */
-			int cells[][] = getCoordsAround(coords.x, coords.y);
-
-			for (int indexTwo = 0; indexTwo < cells.length; indexTwo++) {
-
-				int twoW = cells[indexTwo][0];
-				int twoH = cells[indexTwo][1];
-
-				if (!(isValidCell(twoW, twoH)))
-					continue;
+		if (openOneCell(posW, posH) != EMPTY_CELL)
+			return;
+		
+		startCascade(new int[] {index}, 1);
+	}
+    
+    /**
+     * Открывает все неотмеченные флажками соседние ячейки открытой
+     * ячейки с цифрой (аккорд), если флажков вокруг нее столько же,
+     * сколько мин. Все соседи открываются одним ходом: одно изменение
+     * поля для слушателей и одно изменение счетчика закрытых ячеек, 
+     * а области вокруг открытых пустых соседей - одним общим обходом
+     * @param posW индекс ячейки по ширине;
+     * @param posH индекс ячейки по высоте;
+     */
+    public void chordCell(int posW, int posH) {
+    	chordCell(posW, posH, 0);
+    }
+    
+    /**
+     * Делает аккорд, ограничивая время открытия областей так же, 
+     * как openCell
+     * @param posW индекс ячейки по ширине;
+     * @param posH индекс ячейки по высоте;
+     * @param budget время на открытие в миллисекундах, 
+     * 0 - области открываются сразу целиком;
+     */
+    public void chordCell(int posW, int posH, long budget) {
+    	finishCascade();
+    	
+    	if (!canChord(posW, posH))
+    		return;
+    	
+    	setDeadline(budget);
+    	beginChange(FieldChange.CHORD_CELL, (posH * width) + posW);
+    	chordCells(posW, posH);
+    	endChange();
+    }
+    
+    /**
+     * Проверяет, можно ли сделать аккорд на ячейке: игра идет, 
+     * ячейка открыта, в ней цифра и флажков вокруг столько же
+     * @param posW индекс ячейки по ширине;
+     * @param posH индекс ячейки по высоте;
+     * @return true если аккорд возможен
+     */
+    public boolean canChord(int posW, int posH) {
+    	
+    	if (gameState != ACTION_GAME_STATE || !cellExist(posW, posH))
+    		return false;
+    	
+    	/* нулевое состояние - открытая ячейка без мины */
+    	if (getNibble((posH * width) + posW) != 0)
+    		return false;
+    	
+    	int number = countMinesAroundCell(posW, posH);
+    	if (number == EMPTY_CELL)
+    		return false;
+    	
+    	int[] aroundW = getAroundW(posH);
+    	int[] aroundH = getAroundH(posH);
+    	int flagged = 0;
+    	
+    	for (int count = 0; count < aroundW.length; count++) {
+    		int nearW = posW + aroundW[count];
+    		int nearH = posH + aroundH[count];
+    		
+    		if (cellExist(nearW, nearH) && (getNibble((nearH * width) + nearW) >> 1) * 10 
+    				== CLOSED_MARKED_FLAG_CELLS)
+    			flagged++;
+    	}
+    	
+    	return flagged == number;
+    }
+    
+    /**
+     * Открывает соседей ячейки аккорда. Если флажки стоят неверно
+     * и среди соседей есть мины, они взрываются и игра проигрывается
+     * @param posW индекс ячейки по ширине;
+     * @param posH индекс ячейки по высоте;
+     */
+    private void chordCells(int posW, int posH) {
+    	
+    	int[] aroundW = getAroundW(posH);
+    	int[] aroundH = getAroundH(posH);
+    	int[] empty = new int[aroundW.length];
+    	int empties = 0, opened = 0;
+    	boolean blasted = false;
+    	
+    	for (int count = 0; count < aroundW.length; count++) {
+    		int nearW = posW + aroundW[count];
+    		int nearH = posH + aroundH[count];
+    		
+    		if (!isValidCell(nearW, nearH))
+    			continue;
+    		
+    		int index = (nearH * width) + nearW;
+    		
+    		if (isMine(index)) {
+    			putCell(index, (byte) (BLASTED_CELLS + MINE_CELL));
+    			blasted = true;
+    			continue;
+    		}
+    		
+    		int number = countMinesAroundCell(nearW, nearH);
+    		putCell(index, (byte) (OPENED_CELLS + number));
+    		opened++;
+    		
+    		if (number == EMPTY_CELL) 
+    			empty[empties++] = index;
+    	}
+    	
+    	if (blasted) {
+    		restCells -= opened;
+    		endGame(LOSE_GAME_STATE);
+    		return;
+    	}
+    	
+    	addOpenedCells(opened);
+    	
+    	if (gameState != ACTION_GAME_STATE)
+    		return;
+    	
+    	/* области открываются по очереди, а не открывшиеся целиком - общим обходом */
+    	if (empties > 0) startCascade(empty, empties);
+    }
+    
+    /**
+     * Начинает открытие областей вокруг открытых пустых ячеек: сначала
+     * каждая область открывается целиком способом поля (openRegion), 
+     * а ячейки, области которых так не открываются, идут в обход в ширину
+     * @param cells плоские индексы ячеек;
+     * @param count количество ячеек;
+     */
+    private void startCascade(int[] cells, int count) {
+    	
+		if (queue == null) queue = new CellQueue(getQueueCapacity());
+		queue.clear();
+		
+		regionCells = cells;
+		regionCount = count;
+		regionNext = 0;
+		cascade = 0;
+		lost = false;
+		scanCell = -1;
+		cascading = true;
+		runCascade();
+    }
+    
+    /**
+     * Выполняет открытие областей и обход в ширину до конца или до 
+     * истечения времени. Очередь обхода имеет фиксированную емкость,
+     * поэтому ячейки, которые в нее не поместились, находятся повторными
+     * просмотрами поля, и расход памяти не зависит от размеров области.
+     * Состояние открытия - текущая область, очередь, фронт параллельного
+     * обхода и позиция просмотра поля - хранится в полях объекта, поэтому
+     * открытие можно прервать и продолжить
+     */
+    private void runCascade() {
+    	
+    	while (cascading) {
+    		
+    		if (gameState != ACTION_GAME_STATE) {
+    			stopCascade();
+    		}
+    		else if (regionOpening) {
+    			if (!continueRegion()) return;
+    			regionOpening = false;
+    		}
+    		else if (regionNext < regionCount) {
+    			int cell = regionCells[regionNext++];
+    			regionOpening = openRegion(cell % width, cell / width);
+    			if (!regionOpening && !queue.offer(cell)) lost = true;
+    		}
+    		else if (frontier != null) {
+    			if (!openFrontier()) return;
+    		}
+    		else if (!queue.isEmpty()) {
+    			if (!openQueuedCells()) return;
+    		}
+    		else if (scanCell >= 0) {
+    			scanFrontier();
+    			if (scanCell >= 0 && queue.isEmpty()) return;
+    		}
+    		else if (lost) {
+    			/* были ячейки, не поместившиеся в очередь, ищем 
+    			 * открытые пустые ячейки с закрытыми соседями */
+    			lost = false;
+    			scanCell = firstStoredCell();
+    		}
+    		else {
+    			stopCascade();
+    		}
+    	}
+    }
+    
+    /**
+     * Продолжает просмотр поля, добавляя в очередь открытые пустые 
+     * ячейки с закрытыми соседями, пока очередь не заполнится
+     * или не истечет время
+     */
+    private void scanFrontier() {
+    	
+    	for (int scanned = 1; scanCell >= 0; scanCell = nextStoredCell(scanCell), scanned++) {
+    		if ((scanned & SCAN_CHECK_MASK) == 0 && isSliceOver()) return;
+    		if (!isOpenedFrontier(scanCell)) continue;
+    		if (!queue.offer(scanCell)) return;
+    	}
+    }
+    
+    /**
+     * Сбрасывает состояние законченного обхода
+     */
+    private void stopCascade() {
+    	cascading = false;
+    	regionOpening = false;
+    	regionCells = null;
+    	regionCount = 0;
+    	regionNext = 0;
+    	lost = false;
+    	scanCell = -1;
+    	queue.clear();
+    	frontier = null;
+    	nextFrontier = null;
+    	visited = null;
+    	fill = null;
+    }
+    
+    /**
+     * Устанавливает момент, до которого может длиться обход
+     * @param budget время в миллисекундах, 0 - без ограничения;
+     */
+    private void setDeadline(long budget) {
+    	deadline = (budget > 0) ? SystemClock.uptimeMillis() + budget : 0;
+    }
+    
+    /**
+     * Проверяет, истекло ли время, отведенное обходу
+     * @return true если обход нужно прервать
+     */
+    protected boolean isSliceOver() {
+    	return deadline != 0 && SystemClock.uptimeMillis() >= deadline;
+    }
+    
+    /**
+     * Начинает открытие области вокруг только что открытой пустой
+     * ячейки способом, который зависит от хранения поля. Обычное поле 
+     * открывает готовую область из индекса пустых областей. Сама 
+     * область открывается вызовами continueRegion, по частям, если
+     * время хода ограничено
+     * @param posW индекс ячейки по ширине;
+     * @param posH индекс ячейки по высоте;
+     * @return true если область открывается этим способом, false - 
+     * если ее нужно открыть обходом
+     */
+    protected boolean openRegion(int posW, int posH) {
+    	
+    	if (regions == null) return false;
+    	
+    	int start = (posH * width) + posW;
+    	int region = regions.getRegion(start);
+    	if (region < 0) return false;
+    	
+    	indexRegion = region;
+    	indexStart = start;
+    	indexPosition = regions.getStart(region);
+    	indexChecked = false;
+    	return true;
+    }
+    
+    /**
+     * Продолжает открытие области, начатое openRegion. Между частями
+     * поле не меняется, так как каждый ход сначала заканчивает открытие.
+     * Обход в ширину не проходит через отмеченные и уже открытые пустые
+     * ячейки, поэтому если такие есть в области индекса, она передается
+     * обходу: область сначала проверяется, затем открывается
+     * @return false если время истекло и открытие нужно продолжить позже
+     */
+    protected boolean continueRegion() {
+    	
+    	int last = regions.getEnd(indexRegion);
+    	int steps = 0;
+    	
+    	for (; !indexChecked && indexPosition < last; indexPosition++) {
+    		if ((++steps & SLICE_CHECK_MASK) == 0 && isSliceOver()) return false;
+    		
+    		int cell = regions.getMember(indexPosition);
+    		
+    		if (cell != indexStart && regions.isEmpty(indexRegion, cell) 
+    				&& !isValidCell(cell % width, cell / width)) {
+    			if (!queue.offer(indexStart)) lost = true;
+    			return true;
+    		}
+    	}
+    	
+    	if (!indexChecked) {
+    		indexChecked = true;
+    		indexPosition = regions.getStart(indexRegion);
+    	}
+    	
+    	int opened = 0;
+    	
+    	for (; indexPosition < last; indexPosition++) {
+    		if ((++steps & SLICE_CHECK_MASK) == 0 && isSliceOver()) {
+    			addOpenedCells(opened);
+    			return false;
+    		}
+    		
+    		int cell = regions.getMember(indexPosition);
+    		int nearW = cell % width;
+    		int nearH = cell / width;
+    		
+    		if (!isValidCell(nearW, nearH)) continue;
+    		
+    		int number = regions.isEmpty(indexRegion, cell) 
+    			? EMPTY_CELL : countMinesAroundCell(nearW, nearH);
+    		putCell(cell, (byte) (OPENED_CELLS + number));
+    		opened++;
+    	}
+    	
+    	addOpenedCells(opened);
+    	return true;
+    }
+    
+    /**
+     * Добавляет ячейку в текущее изменение поля и в историю ходов,
+     * не записывая ее в поле. Используется полями, которые сами 
+     * записывают состояния многих ячеек сразу
+     * @param index плоский индекс ячейки;
+     * @param value новое значение ячейки;
+     * @param prevNibble упакованное состояние ячейки до хода;
+     * @return false если и изменение переполнено, и история ход
+     * больше не записывает, тогда дальнейшие ячейки можно не добавлять.
+     * Пределы изменения и истории независимы, поэтому переполнение
+     * изменения само по себе запись истории не останавливает
+     */
+    protected boolean recordCell(int index, byte value, int prevNibble) {
+    	int mine = (value % 10 == MINE_CELL) ? 1 : 0;
+    	history.add(index, prevNibble, ((value / 10) << 1) | mine);
+    	change.add(index, value);
+    	return !change.overflow || history.isRecording();
+    }
+    
+    /**
+     * Уменьшает счетчик закрытых ячеек на количество открытых
+     * полем ячеек и завершает игру победой, если закрытых 
+     * ячеек без мин не осталось
+     * @param count количество открытых ячеек;
+     */
+    protected void addOpenedCells(int count) {
+    	restCells -= count;
+    	if (restCells == 0) endGame(WIN_GAME_STATE);
+    }
+    
+    /**
+     * Возвращает емкость очереди обхода. Фронт обхода обычно 
+     * пропорционален периметру поля, поэтому емкость растет с ним,
+     * а не с площадью, и повторные просмотры поля редки
+     * @return емкость очереди
+     */
+    private int getQueueCapacity() {
+    	return Math.max(QUEUE_CAPACITY, 4 * (width + height));
+    }
+    
+    /**
+     * Открывает соседей пустых ячеек из очереди обхода, добавляя
+     * в очередь вновь открытые пустые ячейки. Ячейки, которые не 
+     * поместились в очередь, отмечаются флагом lost. Большой каскад
+     * передается параллельному обходу
+     * @return false если время истекло и обход нужно продолжить позже
+     */
+    private boolean openQueuedCells() {
+    	
+    	int polled = 0;
+    	
+    	while (!queue.isEmpty()) {
+    		
+    		/* большой каскад продолжаем параллельно */
+    		if (cascade >= FrontierFill.MIN_CASCADE && canReadConcurrently() 
+    				&& WorkerPool.getThreads() > 1) {
+    			startFrontier();
+    			return true;
+    		}
+    		
+    		if ((++polled & SLICE_CHECK_MASK) == 0 && isSliceOver())
+    			return false;
+    		
+    		int cell = queue.poll();
+    		int posW = cell % width;
+    		int posH = cell / width;
+    		int[] aroundW = getAroundW(posH);
+    		int[] aroundH = getAroundH(posH);
+    		
+    		for (int count = 0; count < aroundW.length; count++) {
+    			int nearW = posW + aroundW[count];
+    			int nearH = posH + aroundH[count];
+    			
+    			if (!(isValidCell(nearW, nearH)))
+    				continue;
+    			
+    			int number = openOneCell(nearW, nearH);
+    			cascade++;
+    			
+    			/* игра завершена победой */
+    			if (number < 0) {
+    				queue.clear();
+    				return true;
+    			}
+    			
+    			if (number == EMPTY_CELL && !queue.offer((nearH * width) + nearW)) 
+    				lost = true;
+    		}
+    	}
+    	
+    	return true;
+    }
+    
+    /**
+     * Переносит ячейки очереди во фронт параллельного обхода
+     */
+    private void startFrontier() {
+    	
+    	frontierSize = queue.size();
+    	frontier = new int[Math.max(frontierSize, 1)];
+    	nextFrontier = new int[frontier.length];
+    	
+    	for (int position = 0; position < frontierSize; position++) 
+    		frontier[position] = queue.poll();
+    	
+    	visited = new AtomicLongArray(((width * height) + 63) >> 6);
+    	fill = new FrontierFill(WorkerPool.getThreads());
+    }
+    
+    /**
+     * Продолжает обход от фронта параллельно, по уровням: потоки 
+     * находят ячейки следующего уровня вокруг фронта, отмечая их 
+     * в общем битовом массиве атомарно, чтобы каждая ячейка была 
+     * найдена один раз, а открываются ячейки в игровом потоке. 
+     * Открывается то же множество ячеек, что и при последовательном 
+     * обходе, так как оно не зависит от порядка обхода
+     * @return false если время истекло и обход нужно продолжить позже
+     */
+    private boolean openFrontier() {
+    	
+    	final AtomicLongArray marks = visited;
+    	
+    	FrontierFill.Expander expander = new FrontierFill.Expander() {
+    		public void expand(int[] frontier, int from, int to, FrontierFill.Part part) {
+    			expandFrontier(frontier, from, to, marks, part);
+    		}
+    	};
+    	
+    	while (frontierSize > 0) {
+    		
+    		if (isSliceOver()) return false;
+    		
+    		int parts = fill.expand(frontier, frontierSize, expander);
+    		int total = 0;
+    		
+    		for (int index = 0; index < parts; index++) 
+    			total += fill.getPart(index).count;
+    		
+    		if (nextFrontier.length < total) nextFrontier = new int[total];
+    		int size = 0;
+    		
+    		for (int index = 0; index < parts; index++) {
+    			FrontierFill.Part part = fill.getPart(index);
+    			
+    			for (int position = 0; position < part.count; position++) {
+    				int cell = part.cells[position];
+    				int number = part.numbers[position];
+    				
+    				putCell(cell, (byte) (OPENED_CELLS + number));
+    				restCells--;
+    				
+    				/* если все ячейки открыты, завершаем игру победой */
+    				if (restCells == 0) {
+    					endGame(WIN_GAME_STATE);
+    					return true;
+    				}
+    				
+    				if (number == EMPTY_CELL) nextFrontier[size++] = cell;
+    			}
+    		}
+    		
+    		int[] swap = frontier;
+    		frontier = nextFrontier;
+    		nextFrontier = swap;
+    		frontierSize = size;
+    	}
+    	
+    	frontier = null;
+    	nextFrontier = null;
+    	visited = null;
+    	fill = null;
+    	return true;
+    }
+    
+    /**
+     * Находит ячейки, которые открываются вокруг части фронта, 
+     * вызывается из потоков пула и поле не меняет
+     * @param frontier фронт;
+     * @param from первая ячейка части;
+     * @param to ячейка за последней ячейкой части;
+     * @param visited отметки найденных ячеек, по биту на ячейку;
+     * @param part найденные ячейки;
+     */
+    private void expandFrontier(int[] frontier, int from, int to, 
+    		AtomicLongArray visited, FrontierFill.Part part) {
+    	
+    	for (int position = from; position < to; position++) {
+    		int cell = frontier[position];
+    		int posW = cell % width;
+    		int posH = cell / width;
+    		int[] aroundW = getAroundW(posH);
+    		int[] aroundH = getAroundH(posH);
+    		
+    		for (int count = 0; count < aroundW.length; count++) {
+    			int nearW = posW + aroundW[count];
+    			int nearH = posH + aroundH[count];
+    			
+    			if (!isValidCell(nearW, nearH) || !mark(visited, (nearH * width) + nearW))
+    				continue;
+    			
+    			part.add((nearH * width) + nearW, countMinesAroundCell(nearW, nearH));
+    		}
+    	}
+    }
+    
+    /**
+     * Атомарно отмечает ячейку в битовом массиве
+     * @param visited отметки ячеек;
+     * @param cell плоский индекс ячейки;
+     * @return true если ячейка отмечена этим вызовом
+     */
+    private static boolean mark(AtomicLongArray visited, int cell) {
+    	
+    	int word = cell >> 6;
+    	long bit = 1L << cell;
+    	
+    	while (true) {
+    		long value = visited.get(word);
+    		if ((value & bit) != 0) return false;
+    		if (visited.compareAndSet(word, value, value | bit)) return true;
+    	}
+    }
+    
+    /**
+     * Проверяет, можно ли читать ячейки поля из нескольких потоков 
+     * одновременно, пока поле не меняется. Поля, чтение ячеек 
+     * которых меняет их внутреннее состояние, возвращают false, 
+     * и каскад для них всегда последовательный
+     * @return true если параллельное чтение безопасно
+     */
+    protected boolean canReadConcurrently() {return true;}
+    
+    /**
+     * Открывает одну закрытую ячейку без мины и уменьшает счетчик
+     * @param posW индекс ячейки по ширине;
+     * @param posH индекс ячейки по высоте;
+     * @return количество мин вокруг ячейки или -1, если
+     * открыта последняя ячейка и игра завершена победой
+     */
+    private int openOneCell(int posW, int posH) {
+    	
+    	int number = countMinesAroundCell(posW, posH);
+    	putCell((posH * width) + posW, (byte) (OPENED_CELLS + number));
+		restCells--;
 
-				/* если ячейки с такими координатами еще нет с списке,  
-				 * то добавляем ее координаты туда */
-				if (!(processedCells[twoW][twoH])) {
-					coordsList.add(new Point(twoW, twoH));
-					processedCells[twoW][twoH] = true;
-				}
-			}
+		/* если все ячейки открыты, завершаем игру победой */
+		if (restCells == 0) {
+			endGame(WIN_GAME_STATE);
+			return -1;
 		}
-	}
+		
+		return number;
+    }
+    
+    /**
+     * Проверяет, что ячейка открыта, пустая и граничит с ячейками,
+     * которые еще можно открыть
+     * @param cell плоский индекс ячейки;
+     * @return true если ячейка на границе открытой области
+     */
+    private boolean isOpenedFrontier(int cell) {
+    	
+    	/* нулевое состояние - открытая ячейка без мины */
+    	if (getNibble(cell) != 0) return false;
+    	
+    	int posW = cell % width;
+    	int posH = cell / width;
+    	
+    	if (countMinesAroundCell(posW, posH) != EMPTY_CELL) return false;
+    	
+		int[] aroundW = getAroundW(posH);
+		int[] aroundH = getAroundH(posH);
+		
+		for (int count = 0; count < aroundW.length; count++)
+			if (isValidCell(posW + aroundW[count], posH + aroundH[count])) 
+				return true;
+		
+		return false;
+    }
     
     /**
      * Устанавливает или снимает отметку в ячейке 
@@ -186,23 +873,121 @@ abstract class GameField implements Serializable, Runnable {
      */
 	public void markCell(int posW, int posH) {
 		
+		finishCascade();
+		
 		if (gameState != ACTION_GAME_STATE)
 			return;
 		if (!(cellExist(posW, posH)))
 			return;
 
-		if (field[posW][posH] >= CLOSED_MARKED_FLAG_CELLS) {
-			field[posW][posH] -= 10; // to CLOSED_MARKED_QUESTION_CELLS
+		int index = (posH * width) + posW;
+		byte value = getCell(posW, posH);
+		beginChange(FieldChange.MARK_CELL, index);
+		
+		if (value >= CLOSED_MARKED_FLAG_CELLS) {
+			putCell(index, (byte) (value - 10)); // to CLOSED_MARKED_QUESTION_CELLS
 			flags--;
-		} else if (field[posW][posH] >= CLOSED_MARKED_QUESTION_CELLS) {
-			field[posW][posH] -= 10; // to CLOSED_UNMARKED_CELLS
-		} else if (field[posW][posH] >= CLOSED_UNMARKED_CELLS) {
-			field[posW][posH] += 20; // to CLOSED_MARKED_FLAG_CELLS
+		} else if (value >= CLOSED_MARKED_QUESTION_CELLS) {
+			putCell(index, (byte) (value - 10)); // to CLOSED_UNMARKED_CELLS
+		} else if (value >= CLOSED_UNMARKED_CELLS) {
+			putCell(index, (byte) (value + 20)); // to CLOSED_MARKED_FLAG_CELLS
 			flags++;
-		} else
-			return;
+		}
+		
+		endChange();
 	}
 
+    /**
+     * Отменяет последний ход: возвращает измененные им ячейки и
+     * счетчики поля в состояние до хода. Ход включает открытую им
+     * область и завершение игры. Игра, в которой был отменен
+     * завершивший ее ход, отмечается как игра с подсказкой и больше
+     * не считается ни в рекордах, ни в истории игр. Отмена передается
+     * слушателям изменением типа UNDO
+     */
+    public void undo() {
+    	
+    	finishCascade();
+    	
+    	if (!history.canUndo())
+    		return;
+    	
+    	beginChange(FieldChange.UNDO, -1);
+    	long move = history.undo();
+    	
+    	if (history.getCounter(move, MoveHistory.AFTER + MoveHistory.GAME_STATE) != ACTION_GAME_STATE)
+    		assisted = true;
+    	
+    	/* в обратном порядке, так как ячейка могла меняться за ход дважды */
+    	for (int position = history.getCount(move) - 1; position >= 0; position--)
+    		restoreCell(history.getIndex(move, position), history.getNibble(move, position, false));
+    	
+    	restoreCounters(move, 0);
+    	endChange();
+    }
+    
+    /**
+     * Повторяет последний отмененный ход. Повтор передается 
+     * слушателям изменением типа REDO
+     */
+    public void redo() {
+    	
+    	finishCascade();
+    	
+    	if (!history.canRedo())
+    		return;
+    	
+    	beginChange(FieldChange.REDO, -1);
+    	long move = history.redo();
+    	int count = history.getCount(move);
+    	
+    	for (int position = 0; position < count; position++)
+    		restoreCell(history.getIndex(move, position), history.getNibble(move, position, true));
+    	
+    	restoreCounters(move, MoveHistory.AFTER);
+    	endChange();
+    }
+    
+    /**
+     * Очищает историю ходов, чтобы открытую при создании поля
+     * стартовую область нельзя было отменить
+     */
+    public void clearHistory() {history.clear();}
+    
+    /**
+     * Проверяет, есть ли ход для отмены
+     * @return true если undo что-то изменит
+     */
+    public boolean canUndo() {return history.canUndo();}
+    
+    /**
+     * Проверяет, есть ли отмененный ход для повтора
+     * @return true если redo что-то изменит
+     */
+    public boolean canRedo() {return history.canRedo();}
+    
+    /**
+     * Записывает состояние ячейки из истории в поле и в текущее изменение
+     * @param index плоский индекс ячейки;
+     * @param nibble упакованное состояние ячейки;
+     */
+    private void restoreCell(int index, int nibble) {
+    	setNibble(index, nibble);
+    	change.add(index, getCell(index % width, index / width));
+    }
+    
+    /**
+     * Восстанавливает счетчики поля из истории
+     * @param move номер хода;
+     * @param offset 0 - значения до хода, MoveHistory.AFTER - после;
+     */
+    private void restoreCounters(long move, int offset) {
+    	restCells = history.getCounter(move, offset + MoveHistory.REST_CELLS);
+    	flags = history.getCounter(move, offset + MoveHistory.FLAGS);
+    	gameState = history.getCounter(move, offset + MoveHistory.GAME_STATE);
+    	clicks = history.getCounter(move, offset + MoveHistory.CLICKS);
+    }
+
     /**
      * Завершает игру, устанавливая статус выигрыша WIN_GAME_STATE или
      * проигрыша LOSE_GAME_STATE, обрабатывает поле
@@ -213,40 +998,156 @@ abstract class GameField implements Serializable, Runnable {
 		if (gameState != ACTION_GAME_STATE)
 			return;
 
+		beginChange(FieldChange.END_GAME, -1);
 		gameState = state;
 
-		for (int countHeight = 0; countHeight < height; countHeight++) {
-			for (int countWidth = 0; countWidth < width; countWidth++) {
-				int value = (int) field[countWidth][countHeight];
-
-				if (value == CLOSED_UNMARKED_CELLS + MINE_CELL
-						&& state == LOSE_GAME_STATE)
-					field[countWidth][countHeight] = OPENED_CELLS + MINE_CELL;
-				else if (value == CLOSED_MARKED_QUESTION_CELLS + MINE_CELL
-						&& state == LOSE_GAME_STATE)
-					field[countWidth][countHeight] = OPENED_CELLS + MINE_CELL;
-				else if (value == CLOSED_UNMARKED_CELLS + MINE_CELL
-						&& state == WIN_GAME_STATE)
-					field[countWidth][countHeight] = CLOSED_MARKED_FLAG_CELLS
-							+ MINE_CELL;
-				else if (value == CLOSED_MARKED_QUESTION_CELLS + MINE_CELL
-						&& state == WIN_GAME_STATE)
-					field[countWidth][countHeight] = CLOSED_MARKED_FLAG_CELLS
-							+ MINE_CELL;
-			}
+		for (int index = firstStoredCell(); index >= 0; index = nextStoredCell(index)) {
+			
+			/* изменяются только закрытые ячейки с минами */
+			if (!isMine(index)) 
+				continue;
+			
+			int value = ((getNibble(index) >> 1) * 10) + MINE_CELL;
+
+			if (value == CLOSED_UNMARKED_CELLS + MINE_CELL
+					&& state == LOSE_GAME_STATE)
+				putCell(index, (byte) (OPENED_CELLS + MINE_CELL));
+			else if (value == CLOSED_MARKED_QUESTION_CELLS + MINE_CELL
+					&& state == LOSE_GAME_STATE)
+				putCell(index, (byte) (OPENED_CELLS + MINE_CELL));
+			else if (value == CLOSED_UNMARKED_CELLS + MINE_CELL
+					&& state == WIN_GAME_STATE)
+				putCell(index, (byte) (CLOSED_MARKED_FLAG_CELLS
+						+ MINE_CELL));
+			else if (value == CLOSED_MARKED_QUESTION_CELLS + MINE_CELL
+					&& state == WIN_GAME_STATE)
+				putCell(index, (byte) (CLOSED_MARKED_FLAG_CELLS
+						+ MINE_CELL));
 		}
+		
+		endChange();
 	}	
 
     /**
-     * Возвращает значение ячейки
+     * Добавляет слушателя изменений игрового поля
+     * @param listener слушатель;
+     */
+    public void addFieldListener(FieldListener listener) {
+    	fieldListeners.add(listener);
+    }
+    
+    /**
+     * Удаляет слушателя изменений игрового поля
+     * @param listener слушатель;
+     */
+    public void removeFieldListener(FieldListener listener) {
+    	fieldListeners.remove(listener);
+    }
+    
+    /**
+     * Записывает новое значение ячейки и добавляет ее
+     * в текущее изменение поля. В поле сохраняется только
+     * отметка и признак мины
+     * @param index плоский индекс ячейки;
+     * @param value новое значение ячейки;
+     */
+    private void putCell(int index, byte value) {
+    	int mine = (value % 10 == MINE_CELL) ? 1 : 0;
+    	int nibble = ((value / 10) << 1) | mine;
+    	history.add(index, getNibble(index), nibble);
+    	setNibble(index, nibble);
+    	change.add(index, value);
+    }
+    
+    /**
+     * Возвращает упакованное состояние ячейки: отметку
+     * (значение / 10), сдвинутую на бит, и признак мины.
+     * Поля, которые хранят ячейки иначе, переопределяют этот 
+     * метод вместе с setNibble, makeField и обходом ячеек
+     * @param index плоский индекс ячейки;
+     * @return состояние ячейки от 0 до 15
+     */
+    protected int getNibble(int index) {
+    	return (cells[index >> 1] >> ((index & 1) << 2)) & 0x0F;
+    }
+    
+    /**
+     * Записывает упакованное состояние ячейки
+     * @param index плоский индекс ячейки;
+     * @param nibble состояние ячейки от 0 до 15;
+     */
+    protected void setNibble(int index, int nibble) {
+    	copyOnWrite(index >> (SNAPSHOT_BLOCK_SHIFT + 1));
+    	int shift = (index & 1) << 2;
+    	cells[index >> 1] = (byte) ((cells[index >> 1] & ~(0x0F << shift)) | (nibble << shift));
+    }
+    
+    /**
+     * Проверяет, есть ли в ячейке мина
+     * @param index плоский индекс ячейки;
+     * @return true если мина есть
+     */
+    private boolean isMine(int index) {
+    	return (getNibble(index) & 1) == 1;
+    }
+    
+    /**
+     * Начинает запись изменений поля. Вложенные вызовы (например
+     * завершение игры во время открытия ячейки) дополняют 
+     * уже начатое изменение
+     * @param type тип хода, значение одной из констант класса FieldChange;
+     * @param cell плоский индекс ячейки, на которой сделан ход, или -1;
+     */
+    private void beginChange(int type, int cell) {
+    	if (changeDepth++ > 0) return;
+    	change.clear(type, cell);
+    	
+    	/* записанный снимок больше не нуждается в копиях блоков */
+    	if (snapshot != null && snapshot.isFinished()) snapshot = null;
+    	
+    	/* отмена и повтор сами в историю не записываются */
+    	if (type != FieldChange.UNDO && type != FieldChange.REDO)
+    		history.begin(type == FieldChange.CASCADE, restCells, flags, gameState, clicks);
+    }
+    
+    /**
+     * Заканчивает запись изменений поля и, если это внешний вызов
+     * и хотя бы одна ячейка изменилась, уведомляет слушателей
+     */
+    private void endChange() {
+    	if (--changeDepth > 0) return;
+    	
+    	if (change.count > 0 && (change.type == FieldChange.OPEN_CELL 
+    			|| change.type == FieldChange.MARK_CELL || change.type == FieldChange.CHORD_CELL)) 
+    		clicks++;
+    	
+    	if (change.type != FieldChange.UNDO && change.type != FieldChange.REDO)
+    		history.end(restCells, flags, gameState, clicks);
+    	
+    	if (change.count == 0) return;
+    	
+    	change.restCells = restCells;
+    	change.flags = flags;
+    	change.gameState = gameState;
+    	
+    	for (FieldListener listener : fieldListeners)
+    		listener.onFieldChanged(this, change);
+    }
+
+    /**
+     * Возвращает значение ячейки, количество мин вокруг
+     * ячейки вычисляется при каждом вызове
      * @param posW индекс ячейки по ширине;
      * @param posH индекс ячейки по высоте;
      * @return значение ячейки или -1, если 
      * ячейки с такими координатами не существует
      */
     public byte getCell(int posW, int posH) {
-        if (cellExist(posW, posH)) return field[posW][posH];		
-        else return CELL_NOT_EXIST;		
+        if (!cellExist(posW, posH)) return CELL_NOT_EXIST;
+        
+        int nibble = getNibble((posH * width) + posW);
+        int number = ((nibble & 1) == 1) ? MINE_CELL : countMinesAroundCell(posW, posH);
+        return (byte) (((nibble >> 1) * 10) + number);
     }
 
     /**
@@ -275,6 +1176,87 @@ abstract class GameField implements Serializable, Runnable {
      */
     public int getFlags() {return flags;}
     
+    /**
+     * Возвращает количество ходов, изменивших поле
+     * @return количество ходов
+     */
+    public int getClicks() {return clicks;}
+    
+    /**
+     * Устанавливает количество ходов, изменивших поле,
+     * используется при восстановлении игры
+     * @param clicks количество ходов;
+     */
+    public void setClicks(int clicks) {this.clicks = clicks;}
+    
+    /**
+     * Проверяет, создано ли поле в режиме игры без угадывания
+     * @return true если новые поля нужно создавать без угадывания
+     */
+    public boolean isNoGuess() {return noGuess;}
+    
+    /**
+     * Устанавливает режим игры без угадывания, используется
+     * фабриками полей и при пересоздании поля
+     * @param noGuess true для режима без угадывания;
+     */
+    public void setNoGuess(boolean noGuess) {this.noGuess = noGuess;}
+    
+    /**
+     * Проверяет, отменялось ли в этой игре ее завершение. Победа
+     * в такой игре не дает рекорда и не попадает в историю игр
+     * @return true если игра продолжена после отмены завершения
+     */
+    public boolean isAssisted() {return assisted;}
+    
+    /**
+     * Отмечает игру как продолженную после отмены завершения,
+     * используется при восстановлении игры
+     * @param assisted true для игры с подсказкой;
+     */
+    public void setAssisted(boolean assisted) {this.assisted = assisted;}
+    
+    /**
+     * Вычисляет 3BV поля - минимальное количество щелчков, необходимое
+     * для открытия всех ячеек без мин: по одному на каждую связную
+     * область пустых ячеек и на каждую ячейку с цифрой, которая не 
+     * граничит ни с одной пустой ячейкой. Если индекса областей нет,
+     * поле проходится один раз по строкам, см. BoardMetrics
+     * @return 3BV поля или UNKNOWN_3BV, если поле не может его посчитать
+     */
+    public int get3BV() {
+    	
+    	/* области уже посчитаны индексом */
+    	if (regions != null) 
+    		return regions.getRegions() + regions.getIsolated();
+    	
+    	BoardMetrics metrics = new BoardMetrics(this);
+    	metrics.compute(this);
+    	return metrics.get3BV();
+    }
+    
+    /**
+     * Проверяет, что в ячейке нет мины и вокруг нее нет мин
+     * @param cell плоский индекс ячейки;
+     * @return true если ячейка пустая
+     */
+    private boolean isEmptyCell(int cell) {
+    	return !isMine(cell) && countMinesAroundCell(cell % width, cell / width) == EMPTY_CELL;
+    }
+    
+    /**
+     * Возвращает прошедшее игровое время
+     * @return время в миллисекундах
+     */
+    public long getTime() {return time;}
+    
+    /**
+     * Устанавливает прошедшее игровое время,
+     * используется при восстановлении игры
+     * @param time время в миллисекундах;
+     */
+    public void setTime(long time) {this.time = time;}
+    
     /**
      * Возвращает текущее состояние игры, одно из значений констант:
      * LOSE_GAME_STATE, ACTION_GAME_STATE, WIN_GAME_STATE при 
@@ -295,21 +1277,22 @@ abstract class GameField implements Serializable, Runnable {
     }
 
     /**
-     * Возвращает количество мин в 8 смежных ячейках 
+     * Возвращает количество мин в смежных ячейках 
      * вокруг указанной ячейки
      * @param posW индекс ячейки по ширине;
      * @param posH индекс ячейки по высоте;
      * @return количество мин
      */
 	private byte countMinesAroundCell(int posW, int posH) {
-		byte mine = (byte) (CLOSED_UNMARKED_CELLS + MINE_CELL);
 		byte result = 0;
-		int coords[][] = getCoordsAround(posW, posH);
+		int[] aroundW = getAroundW(posH);
+		int[] aroundH = getAroundH(posH);
 
-		for (int count = 0; count < coords.length; count++) {
-			boolean cellExist = cellExist(coords[count][0], coords[count][1]);
-			boolean cellIsMine = (getCell(coords[count][0], coords[count][1]) == mine);
-			if (cellExist && cellIsMine)
+		for (int count = 0; count < aroundW.length; count++) {
+			int nearW = posW + aroundW[count];
+			int nearH = posH + aroundH[count];
+			
+			if (cellExist(nearW, nearH) && isMine((nearH * width) + nearW))
 				result++;
 		}
 
@@ -317,39 +1300,221 @@ abstract class GameField implements Serializable, Runnable {
 	}
 
     /**
-     * Создает игровое поле
+     * Создает игровое поле. Мины расставляются прямо в упакованном
+     * поле, без вспомогательных списков ячеек. Большие поля 
+     * заполняются параллельно, полосами
      */
-	private void makeField() {
+	protected void makeField() {
 		
-		field = new byte[width][height];
-		processedCells = new boolean[width][height];
-		
-		Random rand = new Random();
-		byte mine = (byte) (CLOSED_UNMARKED_CELLS + MINE_CELL);
-		List<Point> coordsList = new LinkedList<Point>(); 
-
-		for (int countHeight = 0; countHeight < height; countHeight++)
-			for (int countWidth = 0; countWidth < width; countWidth++)
-				coordsList.add(new Point(countWidth, countHeight));
+		int size = width * height;
+		cells = new byte[(size + 1) / 2];
 		
-		// set mines
-		for (int countMines = 0; countMines < mines; countMines++) {
-			int index = rand.nextInt(coordsList.size());
-			Point cellCoords = coordsList.get(index);
-			field[cellCoords.x][cellCoords.y] = mine;
-			coordsList.remove(index);
+		if (size >= StripeGenerator.MIN_CELLS) {
+			StripeGenerator.generate(new Random().nextLong(), width, height, mines, 
+				new StripeGenerator.Stripe() {
+					public void fill(int from, int to, int count, Random rand) {
+						placeMines(from, to, count, rand);
+					}
+				}, WorkerPool.getThreads());
+		} else {
+			placeMines(0, size, mines, new Random());
 		}
 		
-		// set other cells
-		for (int countHeight = 0; countHeight < height; countHeight++) {
-			for (int countWidth = 0; countWidth < width; countWidth++) {
-				if (field[countWidth][countHeight] == mine)
-					continue;
-				byte minesAround = countMinesAroundCell(countWidth, countHeight);
-				field[countWidth][countHeight] = (byte) (GameField.CLOSED_UNMARKED_CELLS + minesAround);
-			}
+		buildRegions();
+	}
+	
+    /**
+     * Расставляет мины в части поля: если мин не больше половины 
+     * ячеек, случайные ячейки выбираются до попадания в свободную, 
+     * иначе часть заполняется минами и так же убираются лишние. 
+     * Части, заполняемые параллельно, начинаются с четной ячейки 
+     * и не делят байтов упакованного поля
+     * @param from плоский индекс первой ячейки части;
+     * @param to плоский индекс ячейки за последней ячейкой части;
+     * @param count количество мин в части;
+     * @param rand генератор случайных чисел;
+     */
+	private void placeMines(int from, int to, int count, Random rand) {
+		
+		int size = to - from;
+		boolean dense = count > size / 2;
+		int fill = ((CLOSED_UNMARKED_CELLS / 10) << 1) | (dense ? 1 : 0);
+		
+		Arrays.fill(cells, from >> 1, (to + 1) >> 1, (byte) (fill | (fill << 4)));
+		
+		int changes = dense ? size - count : count;
+		
+		while (changes > 0) {
+			int index = from + rand.nextInt(size);
+			if (isMine(index) != dense) continue;
+			setNibble(index, fill ^ 1);
+			changes--;
 		}
 	}
+	
+    /**
+     * Строит индекс пустых областей поля. Ячейки области 
+     * добавляются в индекс по мере обхода, поэтому сам массив
+     * ячеек области служит очередью обхода в ширину
+     */
+    private void buildRegions() {
+    	
+    	int size = width * height;
+    	
+    	if (size > RegionIndex.MAX_CELLS) {
+    		regions = null;
+    		return;
+    	}
+    	
+    	RegionIndex index = new RegionIndex(size);
+    	
+    	for (int cell = 0; cell < size; cell++) {
+    		
+    		if (index.getRegion(cell) >= 0 || !isEmptyCell(cell)) 
+    			continue;
+    		
+    		int region = index.startRegion(cell);
+    		
+    		for (int position = index.getStart(region); position < index.getEnd(region); position++) {
+    			int member = index.getMember(position);
+    			if (!index.isEmpty(region, member)) continue;
+    			
+    			int posW = member % width;
+    			int posH = member / width;
+    			int[] aroundW = getAroundW(posH);
+    			int[] aroundH = getAroundH(posH);
+    			
+    			for (int count = 0; count < aroundW.length; count++) {
+    				int nearW = posW + aroundW[count];
+    				int nearH = posH + aroundH[count];
+    				int near = (nearH * width) + nearW;
+    				
+    				if (cellExist(nearW, nearH)) 
+    					index.addMember(region, near, isEmptyCell(near));
+    			}
+    		}
+    	}
+    	
+    	int isolated = 0;
+    	
+    	for (int cell = 0; cell < size; cell++)
+    		if (!index.isIndexed(cell) && !isMine(cell)) isolated++;
+    	
+    	index.finish(isolated);
+    	regions = index;
+    }
+
+    /**
+     * Возвращает первую ячейку, хранящуюся в памяти, с нее начинается
+     * обход поля при повторном просмотре, завершении игры и подсчете
+     * счетчиков. Обычное поле хранит все ячейки
+     * @return плоский индекс ячейки или -1, если ячеек нет
+     */
+    protected int firstStoredCell() {
+    	return (width * height > 0) ? 0 : -1;
+    }
+    
+    /**
+     * Возвращает следующую ячейку, хранящуюся в памяти. Порядок обхода
+     * определяется полем, каждая хранящаяся ячейка встречается один раз
+     * @param index плоский индекс текущей ячейки;
+     * @return плоский индекс следующей ячейки или -1 в конце обхода
+     */
+    protected int nextStoredCell(int index) {
+    	return (index + 1 < width * height) ? index + 1 : -1;
+    }
+
+    /**
+     * Делает снимок ячеек для записи в фоновом потоке: ячейки не
+     * копируются, пока игровой поток их не меняет, см. CellSnapshot.
+     * Вызывается в потоке, который изменяет поле
+     * @return снимок ячеек или null, если предыдущий снимок 
+     * еще не записан
+     */
+    CellSnapshot snapshotCells() {
+    	if (snapshot != null && !snapshot.isFinished()) return null;
+    	snapshot = createCellSnapshot();
+    	return snapshot;
+    }
+    
+    /**
+     * Создает снимок ячеек, поля, которые хранят ячейки иначе,
+     * переопределяют этот метод
+     * @return снимок ячеек в формате unpackCells
+     */
+    protected CellSnapshot createCellSnapshot() {
+    	
+    	final byte[] source = cells;
+    	final int blockSize = 1 << SNAPSHOT_BLOCK_SHIFT;
+    	final int blocks = (source.length + blockSize - 1) >> SNAPSHOT_BLOCK_SHIFT;
+    	final byte[][] copies = new byte[blocks][];
+    	
+    	return new CellSnapshot(blocks) {
+    		protected void copyBlock(int block) {
+    			int from = block << SNAPSHOT_BLOCK_SHIFT;
+    			copies[block] = new byte[Math.min(blockSize, source.length - from)];
+    			System.arraycopy(source, from, copies[block], 0, copies[block].length);
+    		}
+    		
+    		protected void writeBlock(OutputStream out, int block, boolean copied) 
+    			throws IOException {
+    			int from = block << SNAPSHOT_BLOCK_SHIFT;
+    			if (copied) out.write(copies[block]);
+    			else out.write(source, from, Math.min(blockSize, source.length - from));
+    		}
+    	};
+    }
+    
+    /**
+     * Сохраняет для незаписанного снимка копию блока ячеек перед
+     * его изменением, вызывается перед каждой записью в ячейки
+     * @param block номер блока в нумерации снимка поля;
+     */
+    protected final void copyOnWrite(int block) {
+    	if (snapshot != null) snapshot.beforeWrite(block);
+    }
+    
+    /**
+     * Принимает упакованные состояния ячеек и пересчитывает по ним
+     * счетчики поля. Ячейки упакованы построчно по две в байт, первая
+     * в младшей половине. Для каждой ячейки хранится только отметка
+     * (значение / 10) и признак мины, количество мин вокруг вычисляется
+     * при распаковке. Поле хранит ячейки в памяти в том же формате
+     * @param packed упакованные состояния ячеек, массив 
+     * используется полем без копирования;
+     */
+    protected void unpackCells(byte[] packed) {
+    	cells = packed;
+    	countCells();
+    	buildRegions();
+    }
+    
+    /**
+     * Пересчитывает счетчики флажков и закрытых ячеек, а также
+     * состояние игры по состояниям ячеек. Ячейки, которые поле
+     * не хранит в памяти, считаются закрытыми и неотмеченными
+     */
+    protected void countCells() {
+    	
+    	boolean blasted = false;
+    	int opened = 0;
+    	flags = 0;
+    	
+    	for (int index = firstStoredCell(); index >= 0; index = nextStoredCell(index)) {
+    		int state = (getNibble(index) >> 1) * 10;
+    		
+			if (state == BLASTED_CELLS) blasted = true;
+			if (state == CLOSED_MARKED_FLAG_CELLS) flags++;
+			if (isMine(index)) continue;
+			if (state < CLOSED_UNMARKED_CELLS) opened++;
+    	}
+		
+    	restCells = (width * height) - mines - opened;
+    	
+		if (blasted) gameState = LOSE_GAME_STATE;
+		else if (restCells == 0) gameState = WIN_GAME_STATE;
+		else gameState = ACTION_GAME_STATE;
+    }
 
 	/**
 	 * Проверяет, что ячейка с указанными координатами существует,
@@ -360,13 +1525,14 @@ abstract class GameField implements Serializable, Runnable {
 	 */
 	private boolean isValidCell(int posW, int posH) {
 
-		byte value = getCell(posW, posH);
-
-		if (value == CELL_NOT_EXIST)
+		if (!cellExist(posW, posH))
 			return false;
-		if (value < CLOSED_UNMARKED_CELLS)
+		
+		int state = (getNibble((posH * width) + posW) >> 1) * 10;
+
+		if (state < CLOSED_UNMARKED_CELLS)
 			return false;
-		if (value >= CLOSED_MARKED_FLAG_CELLS)
+		if (state >= CLOSED_MARKED_FLAG_CELLS)
 			return false;
 
 		return true;
@@ -400,101 +1566,116 @@ abstract class GameField implements Serializable, Runnable {
     }
             
     /**
-     * Запускает поток, который отсчитывает время игры
-     * и обновляет занчения счетчиков времени и установленных
-     * флажков в интерфейсе
+     * Выполняет обрезку области поля согласно шаблону, так же
+     * как clipArea для областей экрана
+     * @param area область для обрезки;
+     * @param template шаблон;
+     * @return обрезанная область или null, если области не пересекаются
+     */
+    public FieldArea clipArea(FieldArea area, FieldArea template) {
+        
+        if (template.bottom < area.top || template.top > area.bottom ||
+            template.right < area.left || template.left > area.right)
+           return null;
+        
+        return new FieldArea(Math.max(area.left, template.left), 
+            Math.max(area.top, template.top), Math.min(area.right, template.right), 
+            Math.min(area.bottom, template.bottom));
+    }
+    
+    /**
+     * Включает отсчет времени игры и обновление значений счетчиков 
+     * времени и установленных флажков в интерфейсе. Должен быть 
+     * вызван до запуска игрового потока
      * @param handler объект для связи с TextViews на
      * которые выводится значение пройденного времени и 
      * установленных флажков
      */
     public void startTiming(Handler handler) {    	
-    	if (thread != null) return;
     	this.handler = handler;
-    	thread = new Thread(this);
-    	run = true;
-    	thread.start();
+    	preTime = System.currentTimeMillis();
+    	preState = gameState;
+    	shownSeconds = -1;
+    	shownFlags = -1;
     }
     
     /**
-     * Останавливает поток, который отсчитывает время игры
-     * и обновляет значения счетчиков времени и установленных
-     * флажков в интерфейсе 
+     * Выключает отсчет времени игры и обновление значений счетчиков
+     * времени и установленных флажков в интерфейсе. Должен быть 
+     * вызван после остановки игрового потока
      */
     public void stopTiming() {
-    	
-    	if (thread == null) return;
-    	run = false;
-
-        while (thread.isAlive()) {
-            try {thread.join();} 
-            catch (InterruptedException e) {}
-        }
-        thread = null;
+    	handler = null;
+    }
+    
+    /**
+     * Передает отсчет времени другому экземпляру игрового поля,
+     * используется при перезапуске игры в игровом потоке
+     * @param gameField игровое поле, которое продолжит отсчет; 
+     */
+    public void moveTiming(GameField gameField) {
+    	if (handler == null) return;
+    	gameField.startTiming(handler);
+    	stopTiming();
     }
     
     /**
-     * Выполняется в отдельном потоке,
-     * отвечает за подсчет времени и передачу
-     * данных TextViews в интерфейсе игры
+     * Выполняется в игровом потоке на каждом витке игрового цикла,
+     * отвечает за подсчет времени и передачу данных TextViews 
+     * в интерфейсе игры не чаще одного раза за UPD_INTERVAL. 
+     * Сообщение отправляется только тогда, когда изменилась
+     * отображаемая секунда или количество флажков
      */
-    public void run() {
+    public void updateTiming() {
     	
-    	final long UPD_INTERVAL = 100L;
-
-		long preTime = System.currentTimeMillis();		
-		long curTime, interval;
-		
-		int preState = gameState;
-		int curState;
-			
-		while (run) {
-			curTime = System.currentTimeMillis();
-			interval = curTime - preTime;
+    	if (handler == null) return;
+    	
+		long curTime = System.currentTimeMillis();
+		long interval = curTime - preTime;
 			
-			if (interval < UPD_INTERVAL) 
-				continue;
+		if (interval < UPD_INTERVAL) 
+			return;
 			
-			preTime = curTime;
+		preTime = curTime;
 			
-			if (gameState == ACTION_GAME_STATE) 
-				addTime(interval);
+		if (gameState == ACTION_GAME_STATE) 
+			addTime(interval);
 			
+		long seconds = time / 1000L;
+		
+		if (seconds != shownSeconds || flags != shownFlags) {
+			shownSeconds = seconds;
+			shownFlags = flags;
 			sendMessageToHandler(MSG_UPDATE);
-			curState = gameState;
+		}
+		
+		int curState = gameState;
 			
-			/* отправлено сообщение о победе */
-			if (preState == ACTION_GAME_STATE && curState == WIN_GAME_STATE) {
-				if (getLevel() > 0) sendMessageToHandler(MSG_WIN);
-			}
+		/* отправлено сообщение о победе, победа после отмены 
+		 * завершения игры рекордом не считается */
+		if (preState == ACTION_GAME_STATE && curState == WIN_GAME_STATE && !assisted)
+			sendMessageToHandler(MSG_WIN);
 			
-			preState = curState;
-		}		
+		preState = curState;
     }
     
     /**
-     * Отправляет сообщение объекту Handler в главном потоке 
+     * Отправляет сообщение объекту Handler в главном потоке. 
+     * Сообщение несет объект GameStatus этого поля, поэтому если 
+     * предыдущее обновление счетчиков еще не обработано, новое 
+     * не отправляется - главный поток и так прочитает свежие значения
      * @param msgType тип сообщения: MSD_UPDATE - обновление
      * значений счетчиков времени и флажков или MSG_WIN - сообщение
      * о победе в игре 
      */
     private void sendMessageToHandler(int msgType) {
 
-    	Map<String, String> params = new HashMap<String, String>();
-    	params.put("time", getTimeAsString(time));
-    	
-    	switch (msgType) {
+    	status.set(this);
     	
-    	case MSG_UPDATE:
-    		params.put("flags", String.format("%03d", getFlags()));
-    		break;
-    		
-    	case MSG_WIN:
-    		params.put("level", String.valueOf(getLevel()));
-    		params.put("time_msec", String.valueOf(time));
-    		break;
-    	}
+    	if (msgType == MSG_UPDATE && handler.hasMessages(MSG_UPDATE, status))
+    		return;
     	  	
-		Message msg = handler.obtainMessage(msgType, params);
+		Message msg = handler.obtainMessage(msgType, status);
 		handler.sendMessage(msg);    	
     }  
     
@@ -515,25 +1696,53 @@ abstract class GameField implements Serializable, Runnable {
      * @return время в виде отформатированной строки
      */
     public static String getTimeAsString(long time) {
-    	
-    	final String fs = "%02d";
-    	final String divider = ":";
+    	char[] buffer = new char[MAX_TIME_CHARS];
+    	return new String(buffer, 0, formatTime(time, buffer));
+    }
+    
+    /**
+     * Записывает время в буфер в виде "HH:mm:ss", не создавая объектов
+     * @param time время в миллисекундах;
+     * @param buffer буфер длиной не менее MAX_TIME_CHARS;
+     * @return количество записанных символов
+     */
+    public static int formatTime(long time, char[] buffer) {
     	
     	long fullSeconds = time / 1000L;
     	long fullMinutes = fullSeconds / 60L;
     	long fullHours = fullMinutes / 60L;
     	long seconds = fullSeconds - (fullMinutes * 60L);
-    	long minutes = fullMinutes - (fullHours * 60L);    	   	
+    	long minutes = fullMinutes - (fullHours * 60L);
+    	
+    	int pos = formatNumber(fullHours, 2, buffer, 0);
+    	buffer[pos++] = ':';
+    	pos = formatNumber(minutes, 2, buffer, pos);
+    	buffer[pos++] = ':';
+    	return formatNumber(seconds, 2, buffer, pos);
+    }
+    
+    /**
+     * Записывает неотрицательное число в буфер, дополняя
+     * его слева нулями до нужного количества цифр
+     * @param value число;
+     * @param digits минимальное количество цифр;
+     * @param buffer буфер;
+     * @param pos позиция записи в буфере;
+     * @return позиция после записанного числа
+     */
+    public static int formatNumber(long value, int digits, char[] buffer, int pos) {
     	
-    	StringBuilder builder = new StringBuilder();
-    	builder.append(String.format(fs, fullHours));
-    	builder.append(divider);
-    	builder.append(String.format(fs, minutes));
-    	builder.append(divider);
-    	builder.append(String.format(fs, seconds));
+    	int length = 1;
+    	for (long rest = value / 10L; rest > 0; rest /= 10L) length++;
+    	if (length < digits) length = digits;
     	
-    	return builder.toString();
-    }     
+    	for (int count = pos + length - 1; count >= pos; count--) {
+    		buffer[count] = (char) ('0' + (value % 10L));
+    		value /= 10L;
+    	}
+    	
+    	return pos + length;
+    }
            
     // -= ABSTRACT METHODS =-
 
@@ -559,37 +1768,44 @@ abstract class GameField implements Serializable, Runnable {
      * в которой было сделано нажатие на поле. Метод абстрактный, так как для 
      * поля из квадратных и поля из шестиугольных ячеек вычисление происходит 
      * по разному
-     * @param pointCoords координаты точки нажатия на поле, в пикселах;
+     * @param posW координата точки нажатия по ширине поля, в пикселах;
+     * @param posH координата точки нажатия по высоте поля, в пикселах;
      * @param cellSizes размеры ячейки поля;
      * @return координаты ячейки поля или null в случае, если нажатие было
      * сделано в области поля без ячейки
      */
-    public abstract Point fieldPointToFieldCell(PointF pointCoords, PointF cellSizes);    
+    public abstract Point fieldPointToFieldCell(double posW, double posH, PointF cellSizes);    
     
     /**
-     * Возвращает координаты ячеек вокруг текущей ячейки, для квадратной 
-     * ячейки их восемь пар а для шестиугольной - шесть, поэтому метод 
-     * абстрактный, и должен быть реализован в потомках по разному, 
-     * зависимо от типа поля
-     * @param posW индекс ячейки по ширине;
-     * @param posH индекс ячейки по высоте;
-     * @return двумерный массив с координатами
+     * Возвращает смещения по ширине ячеек вокруг ячейки из указанной 
+     * строки, для квадратной ячейки их восемь а для шестиугольной - шесть.
+     * Возвращаемый массив общий и не должен изменяться
+     * @param posH индекс строки;
+     * @return смещения по ширине
+     */
+    protected abstract int[] getAroundW(int posH);
+    
+    /**
+     * Возвращает смещения по высоте ячеек вокруг ячейки из указанной 
+     * строки, в том же порядке, что и getAroundW
+     * @param posH индекс строки;
+     * @return смещения по высоте
      */
-    public abstract int[][] getCoordsAround(int posW, int posH);    
+    protected abstract int[] getAroundH(int posH);
     
     /**
      * Возвращает ширину поля в пикселях:
      * @param cellWidth размер ячейки по ширине в пикселях; 
      * @return размер поля
      */     
-    public abstract float getFWidthInPixels(float cellWidth);
+    public abstract double getFWidthInPixels(float cellWidth);
    
     /**
      * Возвращает высоту поля в пикселях:
      * @param cellHeight размер ячейки по высоте в пикселях; 
      * @return размер поля
      */     
-    public abstract float getFHeightInPixels(float cellHeight);
+    public abstract double getFHeightInPixels(float cellHeight);
     
     /**
      * Возвращает диапазоны номеров ячеек, отображаемых на экране
@@ -597,7 +1813,7 @@ abstract class GameField implements Serializable, Runnable {
      * @param cellSizes размеры ячейки поля; 
      * @return диапазоны номеров ячеек, отображаемых на экране
      */
-    public abstract DrawableCells getDrawableCells(RectF fieldArea, PointF cellSizes);
+    public abstract DrawableCells getDrawableCells(FieldArea fieldArea, PointF cellSizes);
     
     /**
      * Функция определяет границы отрисовки ячейки на поле:
@@ -607,5 +1823,5 @@ abstract class GameField implements Serializable, Runnable {
      * @return левая, верхняя, правая и нижняя границы области 
      * поля, в которой будет отрисована ячейка
      */
-    public abstract RectF getCellArea(Point cellCoords, PointF cellSizes, boolean overlap);
+    public abstract FieldArea getCellArea(Point cellCoords, PointF cellSizes, boolean overlap);
 }
\ No newline at end of file
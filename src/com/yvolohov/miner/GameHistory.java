@@ -0,0 +1,348 @@
+package com.yvolohov.miner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.os.Process;
+
+/**
+ * История сыгранных игр. Каждая законченная игра дописывается в файл
+ * истории записью фиксированной длины RECORD_SIZE, а статистика по
+ * конфигурациям поля (GameStats) обновляется сразу и хранится в
+ * отдельном файле вместе с количеством учтенных записей истории.
+ * Если файл статистики отсутствует или отстает от истории, недостающие
+ * записи дочитываются потоком, без загрузки всей истории в память.
+ * Конец игры замечается по изменению поля, поэтому учитывается и игра,
+ * закончившаяся при открытии области по частям между командами.
+ * Вся работа с файлами выполняется по порядку в одном фоновом потоке
+ * @author yvolohov
+ */
+class GameHistory implements GameListener, FieldListener {
+
+	public static final int RECORD_SIZE = 22;
+
+	private static final int WIN_FLAG = 0x01;
+	private static final int HEX_FLAG = 0x02;
+	private static final int STATS_MAGIC = 0x4D535431;
+
+	private final Context context;
+	private final String fileName;
+	private final String statsName;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	private final Map<Long, GameStats> stats = new HashMap<Long, GameStats>();
+	private long records;
+
+	private GameField gameField;
+	private int gameState;
+
+	/**
+	 * @param context контекст приложения, в папку которого пишутся файлы;
+	 * @param fileName имя файла истории, статистика получает то же имя
+	 * с расширением .stats;
+	 */
+	public GameHistory(Context context, String fileName) {
+		this.context = context;
+		this.fileName = fileName;
+		this.statsName = fileName + ".stats";
+	}
+
+	/**
+	 * Загружает статистику в фоновом потоке, при необходимости
+	 * дочитывая ее из файла истории
+	 */
+	public void load() {
+		executor.execute(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				loadStats();
+			}
+		});
+	}
+
+	/**
+	 * Начинает наблюдение за игрой, вызывается игровым потоком до первого витка
+	 * @param screen игровой экран;
+	 */
+	public void attach(GameScreen screen) {
+		screen.addGameListener(this);
+		watchField(screen.getGameField());
+	}
+
+	/**
+	 * Прекращает наблюдение за игрой, вызывается после остановки
+	 * игрового потока
+	 * @param screen игровой экран;
+	 */
+	public void detach(GameScreen screen) {
+		screen.removeGameListener(this);
+		watchField(null);
+	}
+
+	/**
+	 * После перезапуска игры переключается на новое поле,
+	 * вызывается в игровом потоке
+	 */
+	public void onCommandProcessed(GameCommand command, GameField gameField) {
+		if (gameField != this.gameField) watchField(gameField);
+	}
+
+	/**
+	 * Записывает игру в историю, если ход ее завершил. Игра,
+	 * продолженная после отмены завершения, уже записана и повторно
+	 * не учитывается. Вызывается в игровом потоке
+	 */
+	public void onFieldChanged(GameField gameField, FieldChange change) {
+
+		int state = gameField.getGameState();
+
+		if (gameState == GameField.ACTION_GAME_STATE && state != gameState
+			&& !gameField.isAssisted())
+			addGame(gameField);
+
+		gameState = state;
+	}
+
+	/**
+	 * Возвращает копию статистики для конфигурации поля
+	 * @param hex true для поля с шестиугольными ячейками;
+	 * @param level уровень сложности или 0 для игры со своими настройками;
+	 * @param width ширина поля;
+	 * @param height высота поля;
+	 * @param mines количество мин;
+	 * @return статистика, пустая если игр с такой конфигурацией не было
+	 */
+	public synchronized GameStats getStats(boolean hex, int level, int width,
+		int height, int mines) {
+
+		long key = GameStats.getKey(hex, level, width, height, mines);
+		GameStats result = stats.get(key);
+		return (result != null) ? new GameStats(result) : new GameStats(key);
+	}
+
+	/**
+	 * Формирует запись истории в игровом потоке и передает
+	 * ее на запись в фоновый поток. 3BV считается в фоновом потоке:
+	 * на большом поле без индекса областей это проход по всем ячейкам.
+	 * Он читает только признаки мин, которые после создания поля
+	 * не меняются, поэтому игровой поток может продолжать работу с полем
+	 * @param field законченная игра;
+	 */
+	private void addGame(final GameField field) {
+
+		final byte[] record = new byte[RECORD_SIZE];
+		boolean hex = field instanceof HexGameField;
+		boolean win = field.getGameState() == GameField.WIN_GAME_STATE;
+
+		record[0] = (byte) ((win ? WIN_FLAG : 0) | (hex ? HEX_FLAG : 0));
+		record[1] = (byte) field.getLevel();
+		putInt(record, 2, field.getFWidth(), 2);
+		putInt(record, 4, field.getFHeight(), 2);
+		putInt(record, 6, field.getMines(), 4);
+		putInt(record, 10, (int) Math.min(field.getTime(), Integer.MAX_VALUE), 4);
+		putInt(record, 14, field.getClicks(), 4);
+
+		executor.execute(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				putInt(record, 18, field.get3BV(), 4);
+
+				try {
+					FileOutputStream fos = context.openFileOutput(fileName, Context.MODE_APPEND);
+					try {fos.write(record);}
+					finally {fos.close();}
+				}
+				catch (IOException e) {return;}
+
+				synchronized (GameHistory.this) {
+					addRecord(record);
+					records++;
+				}
+
+				writeStats();
+			}
+		});
+	}
+
+	/**
+	 * Читает файл статистики и дочитывает из истории записи,
+	 * которые в нем еще не учтены
+	 */
+	private void loadStats() {
+
+		long historyRecords = context.getFileStreamPath(fileName).length() / RECORD_SIZE;
+		boolean loaded = readStats();
+
+		synchronized (this) {
+			if (loaded && records == historyRecords) return;
+
+			/* статистика повреждена или относится к другой истории */
+			if (!loaded || records > historyRecords) {
+				stats.clear();
+				records = 0;
+			}
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+				context.openFileInput(fileName)));
+
+			try {
+				long skip = records * RECORD_SIZE;
+				while (skip > 0) skip -= in.skip(skip);
+
+				byte[] record = new byte[RECORD_SIZE];
+
+				while (true) {
+					try {in.readFully(record);}
+					catch (EOFException e) {break;}
+
+					synchronized (this) {
+						addRecord(record);
+						records++;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {}
+
+		writeStats();
+	}
+
+	/**
+	 * Добавляет запись истории в статистику
+	 * @param record запись;
+	 */
+	private void addRecord(byte[] record) {
+
+		boolean win = (record[0] & WIN_FLAG) != 0;
+		boolean hex = (record[0] & HEX_FLAG) != 0;
+		long key = GameStats.getKey(hex, record[1], getInt(record, 2, 2),
+			getInt(record, 4, 2), getInt(record, 6, 4));
+
+		GameStats item = stats.get(key);
+
+		if (item == null) {
+			item = new GameStats(key);
+			stats.put(key, item);
+		}
+
+		item.add(win, getInt(record, 10, 4) & 0xFFFFFFFFL, getInt(record, 14, 4),
+			getInt(record, 18, 4));
+	}
+
+	/**
+	 * Читает файл статистики
+	 * @return true если файл прочитан
+	 */
+	private boolean readStats() {
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+				context.openFileInput(statsName)));
+
+			try {
+				if (in.readInt() != STATS_MAGIC) return false;
+
+				long count = in.readLong();
+				int size = in.readInt();
+				Map<Long, GameStats> loaded = new HashMap<Long, GameStats>();
+
+				for (int item = 0; item < size; item++) {
+					GameStats value = GameStats.read(in);
+					loaded.put(value.key, value);
+				}
+
+				synchronized (this) {
+					stats.clear();
+					stats.putAll(loaded);
+					records = count;
+				}
+
+				return true;
+			} finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {return false;}
+	}
+
+	/**
+	 * Записывает статистику во временный файл и заменяет им файл статистики
+	 */
+	private void writeStats() {
+
+		String tempName = statsName + ".tmp";
+
+		try {
+			FileOutputStream fos = context.openFileOutput(tempName, Context.MODE_PRIVATE);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+
+			try {
+				synchronized (this) {
+					out.writeInt(STATS_MAGIC);
+					out.writeLong(records);
+					out.writeInt(stats.size());
+
+					for (GameStats item : stats.values())
+						item.write(out);
+				}
+
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				out.close();
+			}
+
+			File tempFile = context.getFileStreamPath(tempName);
+			tempFile.renameTo(context.getFileStreamPath(statsName));
+		}
+		catch (IOException e) {}
+	}
+
+	/**
+	 * Переключает наблюдение на другое игровое поле
+	 * @param gameField новое поле или null;
+	 */
+	private void watchField(GameField gameField) {
+		if (this.gameField != null) this.gameField.removeFieldListener(this);
+		this.gameField = gameField;
+		if (gameField == null) return;
+		
+		gameState = gameField.getGameState();
+		gameField.addFieldListener(this);
+	}
+
+	/**
+	 * Записывает число в буфер в порядке big-endian
+	 */
+	private static void putInt(byte[] data, int offset, int value, int size) {
+		for (int count = size - 1; count >= 0; count--) {
+			data[offset + count] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	/**
+	 * Читает из буфера неотрицательное число в порядке big-endian
+	 */
+	private static int getInt(byte[] data, int offset, int size) {
+		int value = 0;
+		for (int count = 0; count < size; count++)
+			value = (value << 8) | (data[offset + count] & 0xFF);
+		return value;
+	}
+}
@@ -0,0 +1,16 @@
+package com.yvolohov.miner;
+
+/**
+ * Слушатель игрового цикла, получает уведомления о выполненных
+ * командах. Методы слушателя вызываются в игровом потоке
+ * @author yvolohov
+ */
+interface GameListener {
+
+    /**
+     * Вызывается после выполнения команды
+     * @param command выполненная команда;
+     * @param gameField игровое поле после выполнения команды;
+     */
+    void onCommandProcessed(GameCommand command, GameField gameField);
+}
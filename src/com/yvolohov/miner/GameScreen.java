@@ -1,11 +1,11 @@
 package com.yvolohov.miner;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
 import java.lang.ref.SoftReference;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -22,11 +22,12 @@ import android.util.DisplayMetrics;
 /**
  * Класс отвечает за вывод игры "Сапер" на экран устройства
  * а также за взаимодействие с пользователем
- * Если gameField реализует Model игры, то этот класс View+Controller
+ * Если gameField реализует Model игры, то этот класс View+Controller.
+ * Все изменения состояния игры выполняются в одном игровом потоке:
+ * другие потоки только помещают команды в неблокирующую очередь
  * @author yvolohov
  */
-@SuppressWarnings("serial")
-abstract class GameScreen implements Serializable {
+abstract class GameScreen {
     
     public static final int LOW_DENSITY = 0;
     public static final int MEDIUM_DENSITY = 1;
@@ -38,18 +39,25 @@ abstract class GameScreen implements Serializable {
     
     public static final int BACKGROUND_COLOR = 0xFF505050;
     
-    private GameField gameField;
+    /* время на открытие области за один виток игрового цикла, мс */
+    public static final long CASCADE_BUDGET = 8L;
+    
+    /* читается и из других потоков, заменяется только в игровом */
+    private volatile GameField gameField;
     private int densityGroup, scale;      
-    private transient PointF cellSizes;
+    private PointF cellSizes;
     
-    private transient Point screen;
-    private transient Rect borders;
-    private transient Rect scrollbars;
-    private transient Point scrollbox;
-    private transient RectF fieldbox;
-    private transient Point presspoint;
+    private Point screen;
+    private Rect borders;
+    private Rect scrollbars;
+    private Point scrollbox;
+    private FieldArea fieldbox;
+    private Point presspoint;
     
-    private transient HashMap<Integer, SoftReference<Bitmap>> bitmaps;
+    private HashMap<Integer, SoftReference<Bitmap>> bitmaps;
+    private Queue<GameCommand> commands;
+    private List<GameListener> listeners;
+    private FieldPreloader preloader = new FieldPreloader();
     
     /**
      * @param gameField игровое поле;
@@ -66,25 +74,142 @@ abstract class GameScreen implements Serializable {
 		borders = getBorders(densityGroup);
 		scrollbars = getScrollbars();
 		scrollbox = getScrollbox();
-		fieldbox = new RectF(0f, 0f, (float) (scrollbox.x - 1),
-				(float) (scrollbox.y - 1));
+		fieldbox = new FieldArea(0.0, 0.0, scrollbox.x - 1, scrollbox.y - 1);
 
 		bitmaps = new HashMap<Integer, SoftReference<Bitmap>>();
+		commands = new ConcurrentLinkedQueue<GameCommand>();
+		listeners = new CopyOnWriteArrayList<GameListener>();
 		centerScreen(true, true);
 	}
     
+    // -= GAME LOOP =-
+    
+    /**
+     * Помещает команду в очередь игрового цикла, может быть 
+     * вызван из любого потока
+     * @param type тип команды, значение одной из констант класса GameCommand;
+     * @param x первый параметр команды;
+     * @param y второй параметр команды;
+     */
+    public void postCommand(int type, int x, int y) {
+    	commands.offer(new GameCommand(type, x, y));
+    }
+    
+    /**
+     * Продолжает незаконченное открытие области, выполняет команды, 
+     * накопившиеся в очереди, уведомляет слушателей о результатах и 
+     * начинает готовить следующее поле для перезапуска игры.
+     * Пока область открывается, очередь останавливается на первом 
+     * ходе, так как координаты хода пересчитываются в ячейку по 
+     * текущему положению экрана и порядок команд нужно сохранить. 
+     * Вызывается только в игровом потоке
+     */
+    public void processCommands() {
+    	
+    	gameField.continueCascade(CASCADE_BUDGET);
+    	
+    	GameCommand command;
+    	
+    	while ((command = commands.peek()) != null) {
+    		
+    		if (gameField.isCascading() && (command.type == GameCommand.OPEN_CELL 
+    				|| command.type == GameCommand.MARK_CELL)) 
+    			break;
+    		
+    		commands.poll();
+    		processCommand(command);
+    		
+    		for (GameListener listener : listeners)
+    			listener.onCommandProcessed(command, gameField);
+    	}
+    	
+    	preloader.update(gameField);
+    }
+    
+    /**
+     * Добавляет слушателя игрового цикла
+     * @param listener слушатель;
+     */
+    public void addGameListener(GameListener listener) {
+    	listeners.add(listener);
+    }
+    
+    /**
+     * Удаляет слушателя игрового цикла
+     * @param listener слушатель;
+     */
+    public void removeGameListener(GameListener listener) {
+    	listeners.remove(listener);
+    }
+    
+    /**
+     * Передает команду соответствующему обработчику
+     * @param command команда;
+     */
+    private void processCommand(GameCommand command) {
+    	
+    	switch (command.type) {
+    	
+    	case GameCommand.OPEN_CELL:
+    		onShortClickScreen(new Point(command.x, command.y));
+    		break;
+    		
+    	case GameCommand.MARK_CELL:
+    		onLongClickScreen(new Point(command.x, command.y));
+    		break;
+    		
+    	case GameCommand.MOVE_SCREEN:
+    		onMoveScreen(new Point(command.x, command.y));
+    		break;
+    		
+    	case GameCommand.PRESS_POINT:
+    		onShortToLongClickScreen(new Point(command.x, command.y));
+    		break;
+    		
+    	case GameCommand.CHANGE_SCALE:
+    		int newScale = scale + command.x;
+    		if (newScale >= LOW_SCALE && newScale <= HIGH_SCALE) 
+    			onScaleChangedScreen(newScale);
+    		break;
+    		
+    	case GameCommand.CHANGE_SIZE:
+    		onSizeChangedScreen(new Point(command.x, command.y));
+    		break;
+    		
+    	case GameCommand.RESTART:
+    		onRestartScreen();
+    		break;
+    		
+    	case GameCommand.UNDO:
+    		gameField.undo();
+    		break;
+    		
+    	case GameCommand.REDO:
+    		gameField.redo();
+    		break;
+    	}
+    }
+    
     // -= EVENT PROCESSING =-
     
+    /**
+     * Обработчик перезапуска игры, заменяет игровое поле новым
+     * с теми же настройками. Новое поле обычно уже подготовлено 
+     * в фоновом потоке
+     */
+    private void onRestartScreen() {
+    	setGameField(preloader.take(gameField));
+    }
+    
     /**
      * Обработчик изменения размеров экрана
      * @param newSizes новые размеры экрана в пикселах; 
      */
-    public synchronized void onSizeChangedScreen(Point newSizes) {
+    private void onSizeChangedScreen(Point newSizes) {
  
         // Запоминаем центр старого экрана
-        Point centerScreen = new Point();
-        centerScreen.x = (int)(fieldbox.left + (scrollbox.x / 2f));
-        centerScreen.y = (int)(fieldbox.top + (scrollbox.y / 2f));        
+        double centerW = Math.floor(fieldbox.left + (scrollbox.x / 2.0));
+        double centerH = Math.floor(fieldbox.top + (scrollbox.y / 2.0));        
  
         // Устанавливаем размеры нового экрана, рассчитываем полосы прокрутки
         screen = newSizes;
@@ -92,10 +217,10 @@ abstract class GameScreen implements Serializable {
         scrollbox = getScrollbox();
 
         // Совмещаем центры старого и нового экранов
-        fieldbox.left = (float)(centerScreen.x - (scrollbox.x / 2));
-        fieldbox.top = (float)(centerScreen.y - (scrollbox.y / 2));
-        fieldbox.right = (float)(fieldbox.left + scrollbox.x - 1);
-        fieldbox.bottom = (float)(fieldbox.top + scrollbox.y - 1);
+        fieldbox.left = centerW - (scrollbox.x / 2);
+        fieldbox.top = centerH - (scrollbox.y / 2);
+        fieldbox.right = fieldbox.left + scrollbox.x - 1;
+        fieldbox.bottom = fieldbox.top + scrollbox.y - 1;
         
         // Подгоняем экран под новые параметры
         adjustScreen();
@@ -105,22 +230,15 @@ abstract class GameScreen implements Serializable {
      * Обработчик изменения масштаба игрового поля
      * @param newScale новый масштаб игрового поля; 
      */
-    public synchronized void onScaleChangedScreen(int newScale) {
+    private void onScaleChangedScreen(int newScale) {
         
         // Получаем координаты точки поля в центре экрана
-        PointF centerPoint = new PointF();
-        centerPoint.x = (fieldbox.right + fieldbox.left) / 2.0f;
-        centerPoint.y = (fieldbox.bottom + fieldbox.top) / 2.0f;
-        
-        // Получаем размеры поля
-        PointF fieldSizes = new PointF();
-        fieldSizes.x = gameField.getFWidthInPixels(cellSizes.x);
-        fieldSizes.y = gameField.getFHeightInPixels(cellSizes.y);
+        double centerW = (fieldbox.right + fieldbox.left) / 2.0;
+        double centerH = (fieldbox.bottom + fieldbox.top) / 2.0;
         
         // Определяем относительное положение точки в центре экрана
-        PointF relativePos = new PointF();
-        relativePos.x = centerPoint.x / fieldSizes.x;
-        relativePos.y = centerPoint.y / fieldSizes.y;
+        double relativeW = centerW / gameField.getFWidthInPixels(cellSizes.x);
+        double relativeH = centerH / gameField.getFHeightInPixels(cellSizes.y);
         
         // Изменяем масштаб и размеры ячеек
         scale = newScale;
@@ -128,17 +246,13 @@ abstract class GameScreen implements Serializable {
         scrollbars = getScrollbars();  
         scrollbox = getScrollbox();        
         
-        // Получаем новые размеры игрового поля
-        fieldSizes.x = gameField.getFWidthInPixels(cellSizes.x);
-        fieldSizes.y = gameField.getFHeightInPixels(cellSizes.y);
-        
         // Пересчитываем координаты точки поля в центре экрана
-        centerPoint.x = (float) Math.floor(relativePos.x * fieldSizes.x);
-        centerPoint.y = (float) Math.floor(relativePos.y * fieldSizes.y);
+        centerW = Math.floor(relativeW * gameField.getFWidthInPixels(cellSizes.x));
+        centerH = Math.floor(relativeH * gameField.getFHeightInPixels(cellSizes.y));
         
         // Устанавливаем новые значения в fieldbox
-        fieldbox.left = (float) Math.floor(centerPoint.x - (scrollbox.x / 2));
-        fieldbox.top = (float) Math.floor(centerPoint.y - (scrollbox.y / 2));
+        fieldbox.left = Math.floor(centerW - (scrollbox.x / 2));
+        fieldbox.top = Math.floor(centerH - (scrollbox.y / 2));
         fieldbox.right = fieldbox.left + (scrollbox.x - 1);
         fieldbox.bottom = fieldbox.top + (scrollbox.y - 1);
         
@@ -148,15 +262,21 @@ abstract class GameScreen implements Serializable {
     
     /**
      * Обработчик короткого нажатия на экран, срабатывает 
-     * в момент отпускания
+     * в момент отпускания. Нажатие на открытую цифру, вокруг 
+     * которой стоит столько же флажков, делает аккорд
      * @param pointCoords координаты нажатия в пикселах;
      */
-    public synchronized void onShortClickScreen(Point pointCoords) {
+    private void onShortClickScreen(Point pointCoords) {
         Point cellCoords = screenPointToFieldCell(pointCoords);
         presspoint = null;
         
-        if (cellCoords != null) 
-            gameField.openCell(cellCoords.x, cellCoords.y);
+        if (cellCoords == null) 
+        	return;
+        
+        if (gameField.canChord(cellCoords.x, cellCoords.y))
+        	gameField.chordCell(cellCoords.x, cellCoords.y, CASCADE_BUDGET);
+        else
+        	gameField.openCell(cellCoords.x, cellCoords.y, CASCADE_BUDGET);
     }
     
     /**
@@ -164,7 +284,7 @@ abstract class GameScreen implements Serializable {
      * на экран, срабатывает в этот момент
      * @param pointCoords координаты нажатия в пикселах;
      */
-    public synchronized void onShortToLongClickScreen(Point pointCoords) {
+    private void onShortToLongClickScreen(Point pointCoords) {
         presspoint = new Point(pointCoords.x, pointCoords.y);
     }
     
@@ -173,7 +293,7 @@ abstract class GameScreen implements Serializable {
      * в момент отпускания
      * @param pointCoords координаты нажатия в пикселах;
      */
-    public synchronized void onLongClickScreen(Point pointCoords) {
+    private void onLongClickScreen(Point pointCoords) {
         Point cellCoords = screenPointToFieldCell(pointCoords);
         presspoint = null;
         
@@ -186,13 +306,13 @@ abstract class GameScreen implements Serializable {
      * @param moveSizes величины протягивания в пикселах 
      * по горизонтали и вертикали;
      */
-    public synchronized void onMoveScreen(Point moveSizes) {
+    private void onMoveScreen(Point moveSizes) {
         
         presspoint = null;
         
-        float moveW = calcScreenMoving((float) moveSizes.x, fieldbox.left, 
+        double moveW = calcScreenMoving(moveSizes.x, fieldbox.left, 
             fieldbox.right, gameField.getFWidthInPixels(cellSizes.x));
-        float moveH = calcScreenMoving((float) moveSizes.y, fieldbox.top,
+        double moveH = calcScreenMoving(moveSizes.y, fieldbox.top,
             fieldbox.bottom, gameField.getFHeightInPixels(cellSizes.y));
         
         fieldbox.left += moveW;
@@ -211,16 +331,16 @@ abstract class GameScreen implements Serializable {
      * @return максимально допустимый размер протягивания, может быть 
      * <= параметра pixels
      */
-    private float calcScreenMoving(float pixels, float beginScrPos, 
-        float endScrPos, float fieldSize) {
+    private double calcScreenMoving(double pixels, double beginScrPos, 
+        double endScrPos, double fieldSize) {
         
-        float screenSize = (endScrPos - beginScrPos) + 1f;
+        double screenSize = (endScrPos - beginScrPos) + 1.0;
         if (screenSize >= fieldSize) return 0;
    
-        float beginField = 0f;
-	float endField = fieldSize - 1f;        
-        float beginNextScrPos = beginScrPos + pixels;
-        float endNextScrPos = endScrPos + pixels;        
+        double beginField = 0.0;
+	double endField = fieldSize - 1.0;        
+        double beginNextScrPos = beginScrPos + pixels;
+        double endNextScrPos = endScrPos + pixels;        
         
 	if (beginNextScrPos < beginField) return (- beginScrPos);
 	else if (endNextScrPos > endField) return (endField - endScrPos); 
@@ -231,12 +351,12 @@ abstract class GameScreen implements Serializable {
     // -= DRAWING METHODS =-
     
     /**
-     * Выполняет перерисовку экрана, должен быть вызван, если один из 
-     * обработчиков событий возвращает true
+     * Выполняет перерисовку экрана, вызывается в игровом потоке
+     * после выполнения накопившихся команд
      * @param canvas холст экрана;
      * @param res ссылка на ресурсы проекта; 
      */
-    public synchronized void redrawScreen(Canvas canvas, Resources res) {   
+    public void redrawScreen(Canvas canvas, Resources res) {   
     	
     	if (canvas == null) return;
     	
@@ -284,7 +404,7 @@ abstract class GameScreen implements Serializable {
                 
                 // Получаем координаты сторон ячейки на поле
                 Point cellCoords = new Point(col, row);
-                RectF cellArea = gameField.getCellArea(cellCoords, cellSizes, false);
+                FieldArea cellArea = gameField.getCellArea(cellCoords, cellSizes, false);
                 
                 // Проверяем исходные данные
                 if (cellArea == null) continue;
@@ -361,8 +481,8 @@ abstract class GameScreen implements Serializable {
         Rect rightRunner = null, bottomRunner = null;
                
         // Получаем размеры игрового поля
-        float fieldWidth = gameField.getFWidthInPixels(cellSizes.x);
-        float fieldHeight = gameField.getFHeightInPixels(cellSizes.y);
+        double fieldWidth = gameField.getFWidthInPixels(cellSizes.x);
+        double fieldHeight = gameField.getFHeightInPixels(cellSizes.y);
         
         // Рассчитываем позиции бегунков
         int beginHrz = borders.left + scrollbars.left +
@@ -465,10 +585,24 @@ abstract class GameScreen implements Serializable {
     public GameField getGameField() {return gameField;}    
 
     /**
-     * Устанавливает игровое поле
-     * @param gameField игровое поле;
+     * Заменяет игровое поле, не останавливая игровой поток и сохраняя 
+     * масштаб и кэш битовых карт: отсчет времени переходит к новому 
+     * полю, а экран центрируется по его размерам. Поле заменяется одной
+     * записью, поэтому другие потоки видят либо старое, либо новое поле. 
+     * Вызывается в игровом потоке или тогда, когда он остановлен
+     * @param newField новое игровое поле;
      */
-    public void setGameField(GameField gameField) {this.gameField = gameField;}    
+    public void setGameField(GameField newField) {
+    	
+    	gameField.moveTiming(newField);
+    	presspoint = null;
+    	gameField = newField;
+    	
+        scrollbars = getScrollbars();
+        scrollbox = getScrollbox();
+        fieldbox = new FieldArea(0.0, 0.0, scrollbox.x - 1, scrollbox.y - 1);
+        centerScreen(true, true);
+    }    
     
     /**
      * Возвращает размер экрана по ширине
@@ -495,6 +629,39 @@ abstract class GameScreen implements Serializable {
      */
     public int getScale() {return scale;}        
     
+    /**
+     * Возвращает положение видимой области по ширине поля
+     * @return левая граница видимой области в пикселах поля
+     */
+    public double getViewLeft() {return fieldbox.left;}
+    
+    /**
+     * Возвращает положение видимой области по высоте поля
+     * @return верхняя граница видимой области в пикселах поля
+     */
+    public double getViewTop() {return fieldbox.top;}
+    
+    /**
+     * Восстанавливает масштаб и положение видимой области
+     * сохраненной игры
+     * @param scale масштаб, одна из констант LOW_SCALE, 
+     * MEDIUM_SCALE, HIGH_SCALE;
+     * @param left левая граница видимой области в пикселах поля;
+     * @param top верхняя граница видимой области в пикселах поля;
+     */
+    public void restoreView(int scale, double left, double top) {
+    	this.scale = scale;
+        cellSizes = getCellSizes(densityGroup, scale);
+        scrollbars = getScrollbars();  
+        scrollbox = getScrollbox();
+        
+        fieldbox.left = left;
+        fieldbox.top = top;
+        fieldbox.right = fieldbox.left + (scrollbox.x - 1);
+        fieldbox.bottom = fieldbox.top + (scrollbox.y - 1);
+        adjustScreen();
+    }
+    
     /**
      * Возвращает усредненный размер ячейки (ширина + высота) / 2
      * @return усредненный размер ячейки в пикселах
@@ -522,13 +689,13 @@ abstract class GameScreen implements Serializable {
             pointCoords.y >= topBorder && pointCoords.y < bottomBorder))
             return null;
         
-        float posW = fieldbox.left + (float)(pointCoords.x - leftBorder);
-        float posH = fieldbox.top + (float)(pointCoords.y - topBorder);        
-        float fieldWidth = gameField.getFWidthInPixels(cellSizes.x);
-        float fieldHeight = gameField.getFHeightInPixels(cellSizes.y);
+        double posW = fieldbox.left + (pointCoords.x - leftBorder);
+        double posH = fieldbox.top + (pointCoords.y - topBorder);        
+        double fieldWidth = gameField.getFWidthInPixels(cellSizes.x);
+        double fieldHeight = gameField.getFHeightInPixels(cellSizes.y);
         
         if (posW >= 0 && posW < fieldWidth && posH >= 0 && posH < fieldHeight) 
-            return gameField.fieldPointToFieldCell(new PointF(posW, posH), cellSizes);
+            return gameField.fieldPointToFieldCell(posW, posH, cellSizes);
         
         // Точка вне поля
         return null;
@@ -541,22 +708,22 @@ abstract class GameScreen implements Serializable {
     private void adjustScreen() {
         
         // Если экран по одному из измерений больше поля
-        float fieldWidth = gameField.getFWidthInPixels(cellSizes.x);
-        float fieldHeight = gameField.getFHeightInPixels(cellSizes.y);
+        double fieldWidth = gameField.getFWidthInPixels(cellSizes.x);
+        double fieldHeight = gameField.getFHeightInPixels(cellSizes.y);
         boolean centerWidth = (scrollbox.x >= fieldWidth) ? true : false;
         boolean centerHeight = (scrollbox.y >= fieldHeight) ? true : false;
 
         // Корректируем позицию экрана (если он выходит за границы поля)
         if (!centerWidth) 
         {
-            float moveW = calcScreenMoving(0f, fieldbox.left, fieldbox.right, fieldWidth);
+            double moveW = calcScreenMoving(0.0, fieldbox.left, fieldbox.right, fieldWidth);
             fieldbox.left += moveW;
             fieldbox.right += moveW;
         }        
 
         if (!centerHeight) 
         {
-            float moveH = calcScreenMoving(0f, fieldbox.top, fieldbox.bottom, fieldHeight);
+            double moveH = calcScreenMoving(0.0, fieldbox.top, fieldbox.bottom, fieldHeight);
             fieldbox.top += moveH;
             fieldbox.bottom += moveH;
         }
@@ -574,14 +741,14 @@ abstract class GameScreen implements Serializable {
         
         if (width)
         {
-            float fieldWidth = gameField.getFWidthInPixels(cellSizes.x);
+            double fieldWidth = gameField.getFWidthInPixels(cellSizes.x);
             fieldbox.left = (fieldWidth - scrollbox.x) / 2;
             fieldbox.right = fieldbox.left + (scrollbox.x - 1);
         }
         
         if (height) 
         {
-            float fieldHeight = gameField.getFHeightInPixels(cellSizes.y);
+            double fieldHeight = gameField.getFHeightInPixels(cellSizes.y);
             fieldbox.top = (fieldHeight - scrollbox.y) / 2;
             fieldbox.bottom = fieldbox.top + (scrollbox.y - 1);
         }        
@@ -594,13 +761,13 @@ abstract class GameScreen implements Serializable {
      * @param cellValue значение рисуемой ячейки;
      * @return массив участков битовой карты 
      */
-    private Rect[] getSourceAreas(RectF cellArea, int cellValue) {
+    private Rect[] getSourceAreas(FieldArea cellArea, int cellValue) {
         
         // Получаем массив смещений для испольуемых участков битовой карты
         int[] shifts = getMapShifts(cellValue);
         
         // Получаем отображаемую на экране область ячейки
-        RectF clipArea = gameField.clipArea(cellArea, fieldbox);       
+        FieldArea clipArea = gameField.clipArea(cellArea, fieldbox);       
         if (clipArea == null) return null; 
         
         // Получаем положение отображаемой области относительно ячейки
@@ -692,19 +859,21 @@ abstract class GameScreen implements Serializable {
      * @param cellArea область ячейки относительно поля;
      * @return область экрана, где нужно нарисовать ячейку
      */
-    private RectF getDestinationArea(RectF cellArea) {
+    private RectF getDestinationArea(FieldArea cellArea) {
     
-        RectF clipArea = gameField.clipArea(cellArea, fieldbox);                
+        FieldArea clipArea = gameField.clipArea(cellArea, fieldbox);                
         if (clipArea == null) return null;
         
         float leftShift = (float)(borders.left + scrollbars.left);
         float topShift = (float)(borders.top + scrollbars.top);
         
+        /* разности считаются с двойной точностью, на экран 
+         * передаются уже небольшие координаты */
         RectF dst = new RectF();
-        dst.left = (clipArea.left - fieldbox.left) + leftShift;
-        dst.top = (clipArea.top - fieldbox.top) + topShift;        
-        dst.right = (clipArea.right - fieldbox.left) + leftShift;
-        dst.bottom = (clipArea.bottom - fieldbox.top) + topShift;
+        dst.left = (float) (clipArea.left - fieldbox.left) + leftShift;
+        dst.top = (float) (clipArea.top - fieldbox.top) + topShift;        
+        dst.right = (float) (clipArea.right - fieldbox.left) + leftShift;
+        dst.bottom = (float) (clipArea.bottom - fieldbox.top) + topShift;
         
         dst.right++;
         dst.bottom++;        
@@ -736,10 +905,10 @@ abstract class GameScreen implements Serializable {
     private Rect getScrollbars() {
         
         // получаем размеры поля и размеры экрана за вычетом границ
-        float fieldWidth = gameField.getFWidthInPixels(cellSizes.x);
-        float fieldHeight = gameField.getFHeightInPixels(cellSizes.y);
-        float screenWidth = (float)(screen.x - borders.left - borders.right);
-        float screenHeight = (float)(screen.y - borders.top - borders.bottom);
+        double fieldWidth = gameField.getFWidthInPixels(cellSizes.x);
+        double fieldHeight = gameField.getFHeightInPixels(cellSizes.y);
+        double screenWidth = screen.x - borders.left - borders.right;
+        double screenHeight = screen.y - borders.top - borders.bottom;
  
         int[][] sizes = new int[][] {
             {0, 0, 6, 6},
@@ -779,59 +948,6 @@ abstract class GameScreen implements Serializable {
         return bords;
     }
     
-    // -= SERIALIZATION METHODS =-
-    
-    /**
-     * Здесь происходит ручная сериализация некоторых объектов,
-     * которые не могут сериализироватся автоматом и поэтому были помечены
-     * как transient
-     * @param stream поток для записи;
-     * @throws IOException
-     */
-    private void writeObject(ObjectOutputStream out) throws IOException {
-    	out.defaultWriteObject();
-        out.writeFloat(cellSizes.x);
-        out.writeFloat(cellSizes.y);
-        out.writeInt(screen.x);
-        out.writeInt(screen.y);
-        out.writeInt(borders.left);
-        out.writeInt(borders.top);
-        out.writeInt(borders.right);
-        out.writeInt(borders.bottom);
-        out.writeInt(scrollbars.left);
-        out.writeInt(scrollbars.top);
-        out.writeInt(scrollbars.right);
-        out.writeInt(scrollbars.bottom);
-        out.writeInt(scrollbox.x);
-        out.writeInt(scrollbox.y);
-        out.writeFloat(fieldbox.left);
-        out.writeFloat(fieldbox.top);
-        out.writeFloat(fieldbox.right);
-        out.writeFloat(fieldbox.bottom);   	
-    }
- 
-    /**
-     * Здесь происходит ручная десериализация некоторых объектов,
-     * которые не могут сериализироватся автоматом и поэтому были помечены
-     * как transient
-     * @param stream поток для записи;
-     * @throws IOException
-     */    
-	private void readObject(ObjectInputStream in) throws IOException,
-			ClassNotFoundException {
-		in.defaultReadObject();
-		cellSizes = new PointF(in.readFloat(), in.readFloat());
-		screen = new Point(in.readInt(), in.readInt());
-		borders = new Rect(in.readInt(), in.readInt(), in.readInt(),
-				in.readInt());
-		scrollbars = new Rect(in.readInt(), in.readInt(), in.readInt(),
-				in.readInt());
-		scrollbox = new Point(in.readInt(), in.readInt());
-		fieldbox = new RectF(in.readFloat(), in.readFloat(), in.readFloat(),
-				in.readFloat());
-		bitmaps = new HashMap<Integer, SoftReference<Bitmap>>();
-	}
-    
     // -= ABSTRACT METHODS =-
 
     /**
@@ -0,0 +1,188 @@
+package com.yvolohov.miner;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Накопленная статистика сыгранных игр для одной конфигурации поля
+ * (форма ячеек, уровень или размеры и количество мин). Время выигранных
+ * игр хранится в гистограмме с логарифмическими интервалами, поэтому
+ * медиана и 90-й процентиль вычисляются без хранения всех результатов,
+ * с погрешностью не более BUCKET_RATIO
+ * @author yvolohov
+ */
+class GameStats {
+
+    public static final int BUCKETS = 128;
+    public static final double BUCKET_RATIO = 1.1;
+    public static final long BUCKET_BASE = 100L;
+
+    public final long key;
+    public int games, wins;
+    public long bestTime;
+    public long clicks, bbbv;
+    private final int[] histogram = new int[BUCKETS];
+
+    /**
+     * @param key ключ конфигурации, см. метод getKey;
+     */
+    public GameStats(long key) {
+    	this.key = key;
+    }
+
+    /**
+     * Создает копию статистики
+     * @param source исходная статистика;
+     */
+    public GameStats(GameStats source) {
+    	key = source.key;
+    	games = source.games;
+    	wins = source.wins;
+    	bestTime = source.bestTime;
+    	clicks = source.clicks;
+    	bbbv = source.bbbv;
+    	System.arraycopy(source.histogram, 0, histogram, 0, BUCKETS);
+    }
+
+    /**
+     * Вычисляет ключ конфигурации поля. Размеры поля уровня сложности
+     * определяются самим уровнем и в ключ не входят
+     * @param hex true для поля с шестиугольными ячейками;
+     * @param level уровень сложности или 0 для игры со своими настройками;
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @return ключ конфигурации
+     */
+    public static long getKey(boolean hex, int level, int width, int height, int mines) {
+    	if (level > 0) width = height = mines = 0;
+    	return ((hex ? 1L : 0L) << 63) | ((long) (level & 0x07) << 60)
+    		| ((long) (width & 0x7FFF) << 45) | ((long) (height & 0x7FFF) << 30)
+    		| (mines & 0x3FFFFFFFL);
+    }
+
+    /**
+     * Добавляет результат одной игры
+     * @param win true если игра выиграна;
+     * @param time время игры в миллисекундах;
+     * @param gameClicks количество ходов;
+     * @param gameBBBV 3BV поля или GameField.UNKNOWN_3BV;
+     */
+    public void add(boolean win, long time, int gameClicks, int gameBBBV) {
+
+    	games++;
+    	clicks += gameClicks;
+    	if (gameBBBV != GameField.UNKNOWN_3BV) bbbv += gameBBBV;
+
+    	if (!win) return;
+
+    	wins++;
+    	histogram[getBucket(time)]++;
+    	if (bestTime == 0 || time < bestTime) bestTime = time;
+    }
+
+    /**
+     * Возвращает долю выигранных игр
+     * @return число от 0 до 1
+     */
+    public float getWinRate() {
+    	return (games > 0) ? (float) wins / games : 0f;
+    }
+
+    /**
+     * Возвращает приблизительное время, за которое была выиграна
+     * указанная доля игр
+     * @param fraction доля игр, например 0.5 для медианы
+     * или 0.9 для 90-го процентиля;
+     * @return время в миллисекундах или 0, если выигранных игр нет
+     */
+    public long getPercentile(double fraction) {
+
+    	if (wins == 0) return 0;
+
+    	int target = (int) Math.ceil(fraction * wins);
+    	int sum = 0;
+
+    	for (int bucket = 0; bucket < BUCKETS; bucket++) {
+    		sum += histogram[bucket];
+    		if (sum >= target) return Math.max(bestTime, getBucketLimit(bucket));
+    	}
+
+    	return getBucketLimit(BUCKETS - 1);
+    }
+
+    /**
+     * Записывает статистику, из гистограммы записываются
+     * только непустые интервалы
+     * @param out поток для записи;
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+
+    	out.writeLong(key);
+    	out.writeInt(games);
+    	out.writeInt(wins);
+    	out.writeLong(bestTime);
+    	out.writeLong(clicks);
+    	out.writeLong(bbbv);
+
+    	int used = 0;
+    	for (int bucket = 0; bucket < BUCKETS; bucket++)
+    		if (histogram[bucket] > 0) used++;
+
+    	out.writeByte(used);
+
+    	for (int bucket = 0; bucket < BUCKETS; bucket++) {
+    		if (histogram[bucket] == 0) continue;
+    		out.writeByte(bucket);
+    		out.writeInt(histogram[bucket]);
+    	}
+    }
+
+    /**
+     * Читает статистику, записанную методом write
+     * @param in поток для чтения;
+     * @return статистика
+     * @throws IOException
+     */
+    public static GameStats read(DataInput in) throws IOException {
+
+    	GameStats stats = new GameStats(in.readLong());
+    	stats.games = in.readInt();
+    	stats.wins = in.readInt();
+    	stats.bestTime = in.readLong();
+    	stats.clicks = in.readLong();
+    	stats.bbbv = in.readLong();
+
+    	int used = in.readUnsignedByte();
+
+    	for (int count = 0; count < used; count++) {
+    		int bucket = in.readUnsignedByte();
+    		if (bucket >= BUCKETS) throw new IOException("Bad statistics");
+    		stats.histogram[bucket] = in.readInt();
+    	}
+
+    	return stats;
+    }
+
+    /**
+     * Возвращает номер интервала гистограммы для времени игры
+     * @param time время в миллисекундах;
+     * @return номер интервала
+     */
+    private static int getBucket(long time) {
+    	if (time <= BUCKET_BASE) return 0;
+    	int bucket = (int) Math.ceil(Math.log((double) time / BUCKET_BASE) / Math.log(BUCKET_RATIO));
+    	return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * Возвращает верхнюю границу интервала гистограммы
+     * @param bucket номер интервала;
+     * @return время в миллисекундах
+     */
+    private static long getBucketLimit(int bucket) {
+    	return (long) (BUCKET_BASE * Math.pow(BUCKET_RATIO, bucket));
+    }
+}
@@ -0,0 +1,54 @@
+package com.yvolohov.miner;
+
+/**
+ * Состояние счетчиков игры, которое GameField передает в главный
+ * поток через Handler. У каждого игрового поля один экземпляр,
+ * который переиспользуется для всех сообщений, поэтому обновление
+ * счетчиков не создает объектов. Игровой поток записывает значения
+ * методом set, главный поток копирует их методом copyTo
+ * @author yvolohov
+ */
+class GameStatus {
+
+    public long time;
+    public int flags;
+    public int level;
+    public boolean hex;
+    public int width, height, mines;
+
+    /**
+     * Записывает новые значения, вызывается в игровом потоке
+     * @param field игровое поле;
+     */
+    public synchronized void set(GameField field) {
+    	time = field.getTime();
+    	flags = field.getFlags();
+    	level = field.getLevel();
+    	hex = field instanceof HexGameField;
+    	width = field.getFWidth();
+    	height = field.getFHeight();
+    	mines = field.getMines();
+    }
+
+    /**
+     * Копирует значения в другой экземпляр, вызывается в главном потоке
+     * @param status экземпляр, в который копируются значения;
+     */
+    public synchronized void copyTo(GameStatus status) {
+    	status.time = time;
+    	status.flags = flags;
+    	status.level = level;
+    	status.hex = hex;
+    	status.width = width;
+    	status.height = height;
+    	status.mines = mines;
+    }
+
+    /**
+     * Возвращает ключ конфигурации поля для таблицы рекордов
+     * @return ключ, см. GameStats.getKey
+     */
+    public long getKey() {
+    	return GameStats.getKey(hex, level, width, height, mines);
+    }
+}
@@ -0,0 +1,406 @@
+package com.yvolohov.miner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import android.graphics.Point;
+
+/**
+ * Компактный двоичный формат сохранения игры. Файл состоит из
+ * сигнатуры, заголовка из чисел переменной длины (varint), упакованных
+ * состояний ячеек (две ячейки в байте) и контрольной суммы CRC32.
+ * Количество мин вокруг ячеек не сохраняется, а вычисляется при чтении.
+ * Версия 2 добавила в заголовок количество ходов, версия 3 - бесконечное
+ * поле, для которого вместо всех ячеек записываются зерно генератора
+ * и только измененные фрагменты поля. В версии 4 мины бесконечного поля
+ * расставляются MineLayout, сохранения версии 3 с бесконечным полем
+ * не читаются. Версия 5 добавила в заголовок признак игры, 
+ * продолженной после отмены ее завершения
+ * @author yvolohov
+ */
+class GameStorage {
+
+    public static final int VERSION = 5;
+
+    private static final int MAGIC_FIRST = 'M';
+    private static final int MAGIC_SECOND = 'S';
+
+    private static final int SQU_SHAPE = 0;
+    private static final int HEX_SHAPE = 1;
+    private static final int CHUNKED_SHAPE = 2;
+
+    private static final int MAX_SIZE = ChunkedGameField.SIZE;
+
+    private static final int MAX_HEADER_SIZE = 64;
+
+    /**
+     * Краткие сведения о сохраненной игре, которые можно прочитать
+     * из заголовка сохранения, не загружая поле
+     */
+    public static class Header {
+    	public boolean hex;
+    	public int level, width, height, mines;
+    	public long time;
+    }
+
+    /**
+     * Снимок игры, готовый к записи: заголовок и снимок ячеек поля.
+     * Снимок делается в игровом потоке без копирования ячеек, а ячейки
+     * упаковываются, контрольная сумма считается и данные пишутся
+     * в файл в фоновом потоке
+     */
+    public static class Snapshot {
+    	final byte[] header;
+    	final CellSnapshot cells;
+    	
+    	Snapshot(byte[] header, CellSnapshot cells) {
+    		this.header = header;
+    		this.cells = cells;
+    	}
+    	
+    	/**
+    	 * Записывает снимок в поток в формате сохранения
+    	 * @param out поток для записи;
+    	 * @return контрольная сумма сохранения, см. getChecksum
+    	 * @throws IOException
+    	 */
+    	public long writeTo(OutputStream out) throws IOException {
+    		
+    		CheckedOutputStream checked = new CheckedOutputStream(out, new CRC32());
+    		checked.write(header);
+    		cells.writeTo(checked);
+    		
+    		long checksum = checked.getChecksum().getValue();
+    		out.write(new byte[] {(byte) (checksum >>> 24), (byte) (checksum >>> 16),
+    			(byte) (checksum >>> 8), (byte) checksum});
+    		out.flush();
+    		return checksum;
+    	}
+    }
+
+    private GameStorage() {}
+
+    /**
+     * Записывает игру в поток
+     * @param screen игровой экран вместе с игровым полем;
+     * @param out поток для записи;
+     * @throws IOException
+     */
+    public static void writeScreen(GameScreen screen, OutputStream out)
+    	throws IOException {
+    	Snapshot snapshot = takeSnapshot(screen);
+    	if (snapshot == null) throw new IOException("Previous snapshot is not written");
+    	snapshot.writeTo(out);
+    }
+
+    /**
+     * Делает снимок игры: записывает заголовок и делает снимок ячеек
+     * поля, ячейки при этом не копируются, см. CellSnapshot. Вызывается
+     * в потоке, который изменяет поле
+     * @param screen игровой экран вместе с игровым полем;
+     * @return снимок игры или null, если предыдущий снимок поля
+     * еще не записан
+     * @throws IOException
+     */
+    public static Snapshot takeSnapshot(GameScreen screen) throws IOException {
+
+    	GameField field = screen.getGameField();
+    	CellSnapshot cells = field.snapshotCells();
+
+    	if (cells == null) return null;
+
+    	ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    	buffer.write(MAGIC_FIRST);
+    	buffer.write(MAGIC_SECOND);
+    	writeVarLong(buffer, VERSION);
+    	writeVarLong(buffer, getShape(field));
+    	writeVarLong(buffer, field.getLevel());
+    	writeVarLong(buffer, field.getFWidth());
+    	writeVarLong(buffer, field.getFHeight());
+    	writeVarLong(buffer, field.getMines());
+    	writeVarLong(buffer, field.getTime());
+    	writeVarLong(buffer, field.getClicks());
+    	writeVarLong(buffer, screen.getDensityGroup());
+    	writeVarLong(buffer, screen.getScale());
+    	writeVarLong(buffer, screen.getSWidth());
+    	writeVarLong(buffer, screen.getSHeight());
+    	writeVarLong(buffer, zigZag(Math.round(screen.getViewLeft())));
+    	writeVarLong(buffer, zigZag(Math.round(screen.getViewTop())));
+    	writeVarLong(buffer, field.isAssisted() ? 1 : 0);
+
+    	/* ячейки бесконечного поля пишутся измененными фрагментами,
+    	 * см. ChunkedGameField.createCellSnapshot */
+    	return new Snapshot(buffer.toByteArray(), cells);
+    }
+
+    /**
+     * Читает из потока только заголовок сохранения. Контрольная
+     * сумма при этом не проверяется
+     * @param in поток для чтения;
+     * @return сведения о сохраненной игре
+     * @throws IOException если это не сохранение игры или заголовок
+     * записан в неподдерживаемой версии формата
+     */
+    public static Header readHeader(InputStream in) throws IOException {
+
+    	byte[] data = new byte[MAX_HEADER_SIZE];
+    	int length = 0, count;
+
+    	while (length < data.length && (count = in.read(data, length, data.length - length)) != -1)
+    		length += count;
+
+    	if (length < 2 || data[0] != MAGIC_FIRST || data[1] != MAGIC_SECOND)
+    		throw new IOException("Not a saved game");
+
+    	int[] pos = new int[] {2};
+
+    	long version = readVarLong(data, pos, length);
+
+    	if (version < 1 || version > VERSION)
+    		throw new IOException("Unsupported saved game version");
+
+    	Header header = new Header();
+    	header.hex = readInt(data, pos, length, CHUNKED_SHAPE) == HEX_SHAPE;
+    	header.level = readInt(data, pos, length, GameField.INFINITE_LEVEL);
+    	header.width = readInt(data, pos, length, MAX_SIZE);
+    	header.height = readInt(data, pos, length, MAX_SIZE);
+    	header.mines = readInt(data, pos, length, header.width * header.height);
+    	header.time = readVarLong(data, pos, length);
+    	return header;
+    }
+
+    /**
+     * Читает игру из потока
+     * @param in поток для чтения;
+     * @return игровой экран вместе с игровым полем;
+     * @throws IOException если данные повреждены или записаны
+     * в неподдерживаемой версии формата
+     */
+    public static GameScreen readScreen(InputStream in) throws IOException {
+    	return readScreen(readAll(in));
+    }
+
+    /**
+     * Читает игру из буфера
+     * @param data данные в формате сохранения;
+     * @return игровой экран вместе с игровым полем;
+     * @throws IOException если данные повреждены или записаны
+     * в неподдерживаемой версии формата
+     */
+    public static GameScreen readScreen(byte[] data) throws IOException {
+
+    	if (data.length < 6 || data[0] != MAGIC_FIRST || data[1] != MAGIC_SECOND)
+    		throw new IOException("Not a saved game");
+
+    	int length = data.length - 4;
+    	CRC32 crc = new CRC32();
+    	crc.update(data, 0, length);
+
+    	if (crc.getValue() != getChecksum(data))
+    		throw new IOException("Saved game is damaged");
+
+    	int[] pos = new int[] {2};
+
+    	long version = readVarLong(data, pos, length);
+
+    	if (version < 1 || version > VERSION)
+    		throw new IOException("Unsupported saved game version");
+
+    	int shape = readInt(data, pos, length, CHUNKED_SHAPE);
+    	int level = readInt(data, pos, length, GameField.INFINITE_LEVEL);
+    	int width = readInt(data, pos, length, MAX_SIZE);
+    	int height = readInt(data, pos, length, MAX_SIZE);
+    	int mines = readInt(data, pos, length, width * height);
+    	long time = readVarLong(data, pos, length);
+    	int clicks = (version >= 2) ? readInt(data, pos, length, Integer.MAX_VALUE) : 0;
+    	int densityGroup = readInt(data, pos, length, GameScreen.HIGH_DENSITY);
+    	int scale = readInt(data, pos, length, GameScreen.HIGH_SCALE);
+    	Point screenSizes = new Point(readInt(data, pos, length, MAX_SIZE),
+    		readInt(data, pos, length, MAX_SIZE));
+    	double left = unZigZag(readVarLong(data, pos, length));
+    	double top = unZigZag(readVarLong(data, pos, length));
+    	boolean assisted = (version >= 5) && readInt(data, pos, length, 1) == 1;
+
+    	if (shape == CHUNKED_SHAPE) {
+    		if (version < 4) throw new IOException("Unsupported saved game version");
+    		
+    		ChunkedGameField field = readChunks(data, pos, length);
+    		field.setTime(time);
+    		field.setClicks(clicks);
+    		field.setAssisted(assisted);
+    		GameScreen screen = new SquGameScreen(field, screenSizes, densityGroup);
+    		screen.restoreView(scale, left, top);
+    		return screen;
+    	}
+
+    	int cellsLength = ((width * height) + 1) / 2;
+
+    	if (width == 0 || height == 0 || length - pos[0] != cellsLength)
+    		throw new IOException("Saved game is damaged");
+
+    	byte[] cells = new byte[cellsLength];
+    	System.arraycopy(data, pos[0], cells, 0, cellsLength);
+
+    	GameScreen screen;
+
+    	if (shape == HEX_SHAPE) {
+    		HexGameField field = new HexGameField(level, width, height, mines, cells);
+    		field.setTime(time);
+    		field.setClicks(clicks);
+    		field.setAssisted(assisted);
+    		screen = new HexGameScreen(field, screenSizes, densityGroup);
+    	} else {
+    		SquGameField field = (width * height >= BitGameField.MIN_CELLS)
+    			? new BitGameField(level, width, height, mines, cells)
+    			: new SquGameField(level, width, height, mines, cells);
+    		field.setTime(time);
+    		field.setClicks(clicks);
+    		field.setAssisted(assisted);
+    		screen = new SquGameScreen(field, screenSizes, densityGroup);
+    	}
+
+    	screen.restoreView(scale, left, top);
+    	return screen;
+    }
+
+    /**
+     * Возвращает форму поля для заголовка сохранения
+     * @param field игровое поле;
+     * @return значение одной из констант SQU_SHAPE, HEX_SHAPE, CHUNKED_SHAPE
+     */
+    private static int getShape(GameField field) {
+    	if (field instanceof ChunkedGameField) return CHUNKED_SHAPE;
+    	else if (field instanceof HexGameField) return HEX_SHAPE;
+    	else return SQU_SHAPE;
+    }
+
+    /**
+     * Читает бесконечное поле, записанное снимком ячеек ChunkedGameField
+     * @param data буфер;
+     * @param pos позиция чтения в буфере, изменяется;
+     * @param limit граница данных в буфере;
+     * @return бесконечное поле
+     * @throws IOException если данные повреждены
+     */
+    private static ChunkedGameField readChunks(byte[] data, int[] pos, int limit)
+    	throws IOException {
+
+    	int maxKey = (ChunkedGameField.CHUNK_COUNT * ChunkedGameField.CHUNK_COUNT) - 1;
+    	ChunkedGameField field = new ChunkedGameField(readVarLong(data, pos, limit));
+    	int count = readInt(data, pos, limit, maxKey + 1);
+
+    	for (int chunk = 0; chunk < count; chunk++) {
+    		int key = readInt(data, pos, limit, maxKey);
+
+    		if (limit - pos[0] < ChunkedGameField.CHUNK_BYTES)
+    			throw new IOException("Saved game is damaged");
+
+    		byte[] cells = new byte[ChunkedGameField.CHUNK_BYTES];
+    		System.arraycopy(data, pos[0], cells, 0, cells.length);
+    		pos[0] += cells.length;
+    		field.putChunk(key, cells);
+    	}
+
+    	if (pos[0] != limit) throw new IOException("Saved game is damaged");
+
+    	field.countCells();
+    	return field;
+    }
+
+    /**
+     * Возвращает контрольную сумму, записанную в конце сохранения,
+     * она же служит идентификатором сохранения для журнала ходов
+     * @param data данные в формате сохранения;
+     * @return контрольная сумма CRC32
+     */
+    public static long getChecksum(byte[] data) {
+    	int length = data.length - 4;
+    	return ((data[length] & 0xFFL) << 24) | ((data[length + 1] & 0xFFL) << 16)
+    		| ((data[length + 2] & 0xFFL) << 8) | (data[length + 3] & 0xFFL);
+    }
+
+    /**
+     * Записывает неотрицательное число в формате varint
+     * (по 7 бит в байте, старший бит - признак продолжения)
+     * @param out поток для записи;
+     * @param value число;
+     */
+    static void writeVarLong(OutputStream out, long value) throws IOException {
+    	while ((value & ~0x7FL) != 0) {
+    		out.write((int) ((value & 0x7F) | 0x80));
+    		value >>>= 7;
+    	}
+    	out.write((int) value);
+    }
+
+    /**
+     * Читает число в формате varint
+     * @param data буфер;
+     * @param pos позиция чтения в буфере, изменяется;
+     * @param limit граница данных в буфере;
+     * @return число
+     * @throws IOException при выходе за границу данных
+     */
+    static long readVarLong(byte[] data, int[] pos, int limit) throws IOException {
+    	long value = 0;
+
+    	for (int shift = 0; shift < 64; shift += 7) {
+    		if (pos[0] >= limit) throw new IOException("Saved game is damaged");
+    		int b = data[pos[0]++];
+    		value |= (long) (b & 0x7F) << shift;
+    		if ((b & 0x80) == 0) return value;
+    	}
+
+    	throw new IOException("Saved game is damaged");
+    }
+
+    /**
+     * Читает число в формате varint и проверяет его диапазон
+     * @param data буфер;
+     * @param pos позиция чтения в буфере, изменяется;
+     * @param limit граница данных в буфере;
+     * @param maxValue максимально допустимое значение;
+     * @return число от 0 до maxValue
+     * @throws IOException если число вне диапазона
+     */
+    private static int readInt(byte[] data, int[] pos, int limit, int maxValue)
+    	throws IOException {
+    	long value = readVarLong(data, pos, limit);
+    	if (value < 0 || value > maxValue) throw new IOException("Saved game is damaged");
+    	return (int) value;
+    }
+
+    /**
+     * Отображает число со знаком в неотрицательное (0, -1, 1, -2 ...
+     * в 0, 1, 2, 3 ...), чтобы небольшие отрицательные числа
+     * занимали в формате varint мало места
+     */
+    private static long zigZag(long value) {return (value << 1) ^ (value >> 63);}
+
+    /**
+     * Обратное преобразование к zigZag
+     */
+    private static long unZigZag(long value) {return (value >>> 1) ^ -(value & 1);}
+
+    /**
+     * Читает поток до конца
+     * @param in поток;
+     * @return прочитанные данные
+     * @throws IOException
+     */
+    static byte[] readAll(InputStream in) throws IOException {
+    	ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    	byte[] chunk = new byte[8192];
+    	int count;
+
+    	while ((count = in.read(chunk)) != -1)
+    		buffer.write(chunk, 0, count);
+
+    	return buffer.toByteArray();
+    }
+}
@@ -1,9 +1,8 @@
 package com.yvolohov.miner;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import android.app.Application;
 import android.content.SharedPreferences;
@@ -16,36 +15,124 @@ import android.content.SharedPreferences.Editor;
 public class GlobalData extends Application {
 
 	public static final String SAVE_FILE = "miner_saves";
+	public static final String HISTORY_FILE = "miner_history";
+	public static final String RECORDS_FILE = "miner_records";
+	public static final String CHUNKS_FILE = "miner_chunks";
 	public static final String PRE_FILE = "miner_prefs";
 	public static final String PRE_DEF_WIDTH = "pre_def_width";
 	public static final String PRE_DEF_HEIGHT = "pre_def_height";
 	public static final String PRE_DEF_MINES = "pre_def_mines";
+	public static final String PRE_NO_GUESS = "pre_no_guess";
 	public static final String PRE_RECORD = "pre_record_";
 
 	public static final int DEF_WIDTH = 16;
 	public static final int DEF_HEIGHT = 16;
 	public static final int DEF_MINES = 40;	
+	public static final int RESIDENT_CHUNKS = 256;
 	
-	private GameScreen screen;
+	private volatile GameScreen screen;
+	private Future<GameScreen> restoring;
+	private GameStorage.Header savedHeader;
+	private AutoSaver autoSaver;
+	private GameHistory gameHistory;
+	private RecordTable recordTable;
+	private ChunkStore chunkStore;
 
 	private int defWidth;
 	private int defHeight;
 	private int defMines;
+	private boolean noGuess;
 	private int menuGroup = Menu.HEAD_MENU;
 	
-	private long[] records = new long[6];	
+	/**
+	 * При создании приложения
+	 */
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		autoSaver = new AutoSaver(this, SAVE_FILE);
+		gameHistory = new GameHistory(this, HISTORY_FILE);
+		gameHistory.load();
+		recordTable = new RecordTable(this, RECORDS_FILE);
+		recordTable.load();
+		chunkStore = new ChunkStore(new File(getCacheDir(), CHUNKS_FILE));
+		BoardLibrary.setDirectory(getFilesDir(), getAssets());
+	}
+	
+	/**
+	 * Возвращает объект, выполняющий автоматическое сохранение игры
+	 * @return объект автосохранения;
+	 */
+	public AutoSaver getAutoSaver() {return autoSaver;}
 	
 	/**
-	 * Возвращает объект игрового экрана
-	 * @return игровой экран;
+	 * Возвращает историю сыгранных игр со статистикой
+	 * @return история игр;
 	 */
-	public GameScreen getScreen() {return screen;}
+	public GameHistory getGameHistory() {return gameHistory;}
+	
+	/**
+	 * Возвращает таблицу рекордов для всех конфигураций поля
+	 * @return таблица рекордов;
+	 */
+	public RecordTable getRecordTable() {return recordTable;}
+	
+	/**
+	 * Возвращает файл подкачки фрагментов бесконечного поля
+	 * @return файл подкачки;
+	 */
+	public ChunkStore getChunkStore() {return chunkStore;}
+	
+	/**
+	 * Возвращает объект игрового экрана. Не ждет восстановления
+	 * сохраненной игры: пока оно идет в фоновом потоке, возвращает
+	 * null, см. isRestoring
+	 * @return игровой экран или null;
+	 */
+	public GameScreen getScreen() {
+		
+		if (screen == null && restoring != null && restoring.isDone()) {
+			try {screen = restoring.get();}
+			catch (InterruptedException e) {Thread.currentThread().interrupt();}
+			catch (ExecutionException e) {}
+			
+			restoring = null;
+			savedHeader = null;
+		}
+		
+		return screen;
+	}
 
 	/**
-	 * Устанавливает объект игрового экрана
+	 * Устанавливает объект игрового экрана, сохраненная игра
+	 * при этом больше не нужна
 	 * @param screen игровой экран;
 	 */
-	public void setScreen(GameScreen screen) {this.screen = screen;}
+	public void setScreen(GameScreen screen) {
+		this.screen = screen;
+		restoring = null;
+		savedHeader = null;
+	}
+	
+	/**
+	 * Проверяет, есть ли игра, которую можно продолжить, 
+	 * не дожидаясь ее восстановления
+	 * @return true если игра есть
+	 */
+	public boolean hasScreen() {return screen != null || savedHeader != null;}
+	
+	/**
+	 * Проверяет, восстанавливается ли еще сохраненная игра
+	 * @return true если восстановление не закончено
+	 */
+	public boolean isRestoring() {return screen == null && restoring != null && !restoring.isDone();}
+	
+	/**
+	 * Возвращает сведения о сохраненной игре, которая
+	 * еще не восстановлена
+	 * @return заголовок сохранения или null
+	 */
+	public GameStorage.Header getSavedHeader() {return savedHeader;}
 
 	/**
 	 * Возвращает ширину игрового поля для режима игры
@@ -89,6 +176,18 @@ public class GlobalData extends Application {
 	 */	
 	public void setDefMines(int defMines) {this.defMines = defMines;}
 
+	/**
+	 * Проверяет, создаются ли новые игры в режиме без угадывания
+	 * @return true если режим без угадывания включен;
+	 */
+	public boolean isNoGuess() {return noGuess;}
+
+	/**
+	 * Включает или выключает режим без угадывания для новых игр
+	 * @param noGuess true для режима без угадывания;
+	 */
+	public void setNoGuess(boolean noGuess) {this.noGuess = noGuess;}
+
 	/**
 	 * Возвращает идентификатор активной группы пунктов меню
 	 * @return группа пунктов меню;
@@ -111,7 +210,7 @@ public class GlobalData extends Application {
 	 */
 	public void setRecord(int level, long record) {
 		if (level < 1 || level > 6) return;
-		records[level - 1] = record;
+		recordTable.put(getLevelKey(level), record);
 	}
 	
 	/**
@@ -124,19 +223,29 @@ public class GlobalData extends Application {
 	 */
 	public long getRecord(int level) {
 		if (level < 1 || level > 6) return 0;
-		else return records[level - 1];
+		else return recordTable.get(getLevelKey(level));
 	}
 	
 	/**
 	 * Очищает все игровые рекорды
 	 */
 	public void clearRecords() {
-		for (int count = 0; count < records.length; count++)
-			records[count] = 0;
+		recordTable.clear();
+		recordTable.save();
 	}
 	
 	/**
-	 * Записывает состояние игры на внутреннюю память устройства
+	 * Возвращает ключ таблицы рекордов для уровня игры
+	 * @param level уровень игры;
+	 * @return ключ конфигурации поля
+	 */
+	private long getLevelKey(int level) {
+		return GameStats.getKey(level >= GameField.SIMPLE_LEVEL_HEX, level, 0, 0, 0);
+	}
+	
+	/**
+	 * Записывает настройки и рекорды на внутреннюю память устройства,
+	 * сама игра записывается автоматически объектом AutoSaver
 	 */
 	public void saveGlobalData() {
     	SharedPreferences prefs = getSharedPreferences(GlobalData.PRE_FILE, MODE_PRIVATE);
@@ -145,39 +254,35 @@ public class GlobalData extends Application {
     	editor.putInt(PRE_DEF_WIDTH, defWidth);
     	editor.putInt(PRE_DEF_HEIGHT, defHeight);
     	editor.putInt(PRE_DEF_MINES, defMines);
+    	editor.putBoolean(PRE_NO_GUESS, noGuess);
 
-    	for (int count = 0; count < records.length; count++)
-    		editor.putLong(PRE_RECORD + String.valueOf(count), records[count]);
+    	/* рекорды уровней перенесены в таблицу рекордов */
+    	for (int level = GameField.SIMPLE_LEVEL; level <= GameField.HARD_LEVEL_HEX; level++)
+    		editor.remove(PRE_RECORD + String.valueOf(level - 1));
     	
     	editor.commit();
-    	
-    	try {
-    		FileOutputStream fos = openFileOutput(SAVE_FILE, MODE_PRIVATE);
-    		ObjectOutputStream oos = new ObjectOutputStream(fos);
-    		oos.writeObject(screen);
-    		oos.close();
-    	}
-    	catch (Exception e) {}	
+    	recordTable.save();
     }
     
 	/**
-	 * Считывает состояние игры из внутренней памяти устройства
+	 * Считывает состояние игры из внутренней памяти устройства.
+	 * Сразу читается только заголовок сохранения, а сама игра 
+	 * восстанавливается из последнего снимка и журнала ходов 
+	 * в фоновом потоке
 	 */
     public void loadGlobalData() {
     	SharedPreferences prefs = getSharedPreferences(PRE_FILE, MODE_PRIVATE);
     	defWidth = prefs.getInt(PRE_DEF_WIDTH, DEF_WIDTH);
     	defHeight = prefs.getInt(PRE_DEF_HEIGHT, DEF_HEIGHT);
     	defMines = prefs.getInt(PRE_DEF_MINES, DEF_MINES);
+    	noGuess = prefs.getBoolean(PRE_NO_GUESS, false);
+    	
+    	for (int level = GameField.SIMPLE_LEVEL; level <= GameField.HARD_LEVEL_HEX; level++)
+    		setRecord(level, prefs.getLong(PRE_RECORD + String.valueOf(level - 1), 0));
     	
-    	for (int count = 0; count < records.length; count++)
-    		records[count] = prefs.getLong(PRE_RECORD + String.valueOf(count), 0);
+    	if (screen != null || restoring != null) return;
     	
-    	try {
-    		FileInputStream fis = openFileInput(SAVE_FILE);
-    		ObjectInputStream ois = new ObjectInputStream(fis);
-    		screen = (GameScreen) ois.readObject();
-    		ois.close();
-    	}
-    	catch (Exception e) {}
+    	savedHeader = autoSaver.readHeader();
+    	if (savedHeader != null) restoring = autoSaver.restoreLater();
     }   
 }
@@ -7,9 +7,12 @@ import android.graphics.*;
  * шестиугольными ячейками
  * @author Ярослав Волохов
  */
-@SuppressWarnings("serial")
 public class HexGameField extends GameField {
 
+    private static final int[] AROUND_W_EVEN = new int[] {0, -1, 1, -1, 0, -1};
+    private static final int[] AROUND_W_ODD = new int[] {0, 1, 1, 1, 0, -1};
+    private static final int[] AROUND_H = new int[] {-1, -1, 0, 1, 1, 0};
+    
 	private int level;
 	
     /**
@@ -33,6 +36,76 @@ public class HexGameField extends GameField {
         this.level = 0;
     }
 
+    /**
+     * Восстанавливает сохраненное игровое поле
+     * @param level уровень сложности игры или 0 для
+     * игры со своими настройками;
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @param packedCells упакованные состояния ячеек;
+     */
+    public HexGameField(int level, int width, int height, int mines, byte[] packedCells) {
+        super(width, height, mines, packedCells);
+        this.level = level;
+    }
+
+    /**
+     * Создает поле, которое решается без угадывания от открытой
+     * центральной ячейки. Поле берется из библиотеки BoardLibrary,
+     * а если ее нет - генерируется. Если такое поле не найдено за 
+     * отведенное время, возвращается обычное поле
+     * @param level уровень сложности игры;
+     * @return игровое поле в режиме без угадывания
+     */
+    public static HexGameField createNoGuess(int level) {
+    	int width = getLevelWidth(level);
+    	int height = getLevelHeight(level);
+    	int mines = getLevelMines(level);
+    	GameField ready = BoardLibrary.pickField(BoardLibrary.HEX_SHAPE, level, BoardLibrary.getLevelBucket(level),
+    		width, height, mines);
+    	
+    	if (ready != null) return (HexGameField) ready;
+    	
+    	HexGameField field = new HexGameField(level);
+    	byte[] packed = NoGuessGenerator.generate(field, NoGuessGenerator.TIME_LIMIT, null);
+    	
+    	if (packed != null) {
+    		field = new HexGameField(level, width, height, mines, packed);
+    		NoGuessGenerator.openStart(field);
+    	}
+    	
+    	field.setNoGuess(true);
+    	return field;
+    }
+    
+    /**
+     * Создает поле со своими настройками, которое решается без
+     * угадывания от открытой центральной ячейки. Поле берется из 
+     * библиотеки BoardLibrary, а если ее нет - генерируется. Если 
+     * такое поле не найдено за отведенное время, возвращается обычное поле
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @return игровое поле в режиме без угадывания
+     */
+    public static HexGameField createNoGuess(int width, int height, int mines) {
+    	GameField ready = BoardLibrary.pickField(BoardLibrary.HEX_SHAPE, 0, BoardLibrary.ANY_BUCKET,
+    		width, height, mines);
+    	if (ready != null) return (HexGameField) ready;
+    	
+    	HexGameField field = new HexGameField(width, height, mines);
+    	byte[] packed = NoGuessGenerator.generate(field, NoGuessGenerator.TIME_LIMIT, null);
+    	
+    	if (packed != null) {
+    		field = new HexGameField(0, width, height, mines, packed);
+    		NoGuessGenerator.openStart(field);
+    	}
+    	
+    	field.setNoGuess(true);
+    	return field;
+    }
+
     // -= ABSTRACT METHODS IMPLEMENTATION =-    
 
     /**
@@ -41,7 +114,9 @@ public class HexGameField extends GameField {
      * @return новый экземпляр игрового поля
      */
 	public GameField reCreate() {
-		if (level > 0)
+		if (isNoGuess())
+			return (level > 0) ? createNoGuess(level) : createNoGuess(getFWidth(), getFHeight(), getMines());
+		else if (level > 0)
 			return new HexGameField(level);
 		else
 			return new HexGameField(getFWidth(), getFHeight(), getMines());
@@ -87,18 +162,18 @@ public class HexGameField extends GameField {
      * Возвращает координаты ячейки поля, соответствующие определенной точке, 
      * в которой было сделано нажатие на поле. Реализация абстрактного метода
      * для поля с шестиугольными ячейками
-     * @param pointCoords координаты точки нажатия на поле, в пикселах;
+     * @param posW координата точки нажатия по ширине поля, в пикселах;
+     * @param posH координата точки нажатия по высоте поля, в пикселах;
      * @param cellSizes размеры ячейки поля;
      * @return координаты ячейки поля или null в случае, если нажатие было
      * сделано в области поля без ячейки
      */    
     @Override
-    public Point fieldPointToFieldCell(PointF pointCoords, PointF cellSizes) {
+    public Point fieldPointToFieldCell(double posW, double posH, PointF cellSizes) {
                
         /* Небольшой фокус, получаем все ячейки, которые попадают
            в область, состоящую из единственной точки */
-        RectF fieldArea = new RectF(pointCoords.x, pointCoords.y, 
-            pointCoords.x, pointCoords.y);
+        FieldArea fieldArea = new FieldArea(posW, posH, posW, posH);
         DrawableCells dc = getDrawableCells(fieldArea, cellSizes);
         
         float width50 = cellSizes.x * 0.50f;
@@ -113,15 +188,20 @@ public class HexGameField extends GameField {
                                 
                 // Получаем координаты сторон ячейки на поле
                 Point cellCoords = new Point(col, row);
-                RectF cellArea = getCellArea(cellCoords, cellSizes, false);
+                FieldArea cellArea = getCellArea(cellCoords, cellSizes, false);
                 
                 // Проверяем исходные данные
                 if (cellArea == null) continue;
                 
+                // Переходим к координатам относительно ячейки, чтобы
+                // не терять точность на больших полях
+                PointF pointCoords = new PointF((float) (posW - cellArea.left), 
+                    (float) (posH - cellArea.top));
+                
                 // Определяем три опорные точки на вершинах гексагона            
-                PointF firstPoint = new PointF(cellArea.left + width50, cellArea.top);
-                PointF secondPoint = new PointF(cellArea.left, cellArea.top + height75);
-                PointF thirdPoint = new PointF(cellArea.right, cellArea.top + height75);
+                PointF firstPoint = new PointF(width50, 0f);
+                PointF secondPoint = new PointF(0f, height75);
+                PointF thirdPoint = new PointF((float) (cellArea.right - cellArea.left), height75);
                 
                 // Определяем углы между опорными точками и точкой нажатия 
                 float firstAngle = getDirection(pointCoords, firstPoint);
@@ -145,46 +225,32 @@ public class HexGameField extends GameField {
     }     
     
     /**
-     * Этот метод возвращает координаты ячеек вокруг текущей ячейки,
-     * для шестиугольной ячейки их шесть пар
-     * @param posW индекс ячейки по ширине;
-     * @param posH индекс ячейки по высоте;
-     * @return двумерный массив с координатами
+     * Возвращает смещения по ширине шести ячеек вокруг ячейки,
+     * они зависят от четности строки
+     * @param posH индекс строки;
+     * @return смещения по ширине
      */
     @Override
-    public int[][] getCoordsAround(int posW, int posH) {
-        
-        int coords[][];
-        
-        // pair rows
-        if (posH % 2 == 0) {
-            coords = new int[][] {
-                {posW, posH - 1}, {posW - 1, posH - 1},
-                {posW + 1, posH}, {posW - 1, posH + 1},
-                {posW, posH + 1}, {posW - 1, posH}
-            };          
-        }
-                
-        // non pair rows
-        else {
-            coords = new int[][] {
-                {posW, posH - 1}, {posW + 1, posH - 1},
-                {posW + 1, posH}, {posW + 1, posH + 1},
-                {posW, posH + 1}, {posW - 1, posH}
-            };       
-        } 
-        
-        return coords;
+    protected int[] getAroundW(int posH) {
+    	return (posH % 2 == 0) ? AROUND_W_EVEN : AROUND_W_ODD;
     }
     
+    /**
+     * Возвращает смещения по высоте шести ячеек вокруг ячейки
+     * @param posH индекс строки;
+     * @return смещения по высоте
+     */
+    @Override
+    protected int[] getAroundH(int posH) {return AROUND_H;}
+    
     /**
      * Возвращает ширину поля в пикселях:
      * @param cellWidth размер ячейки по ширине в пикселях; 
      * @return размер поля
      */
     @Override
-    public float getFWidthInPixels(float cellWidth) {
-        return (getFWidth() * cellWidth) + (cellWidth * 0.5f);  
+    public double getFWidthInPixels(float cellWidth) {
+        return ((double) getFWidth() * cellWidth) + (cellWidth * 0.5);  
     }
 
     /**
@@ -193,8 +259,8 @@ public class HexGameField extends GameField {
      * @return размер поля
      */    
     @Override
-    public float getFHeightInPixels(float cellHeight) {
-        return (getFHeight() * cellHeight * 0.75f) + (cellHeight * 0.25f);
+    public double getFHeightInPixels(float cellHeight) {
+        return ((double) getFHeight() * cellHeight * 0.75) + (cellHeight * 0.25);
     }
 
     /**
@@ -205,20 +271,20 @@ public class HexGameField extends GameField {
      * @return диапазоны номеров ячеек, отображаемых на экране
      */    
     @Override
-    public DrawableCells getDrawableCells(RectF fieldArea, PointF cellSizes) {
+    public DrawableCells getDrawableCells(FieldArea fieldArea, PointF cellSizes) {
         
         // если fieldArea выходит за границы поля, выполним ее обрезку 
-        float indW = getFWidthInPixels(cellSizes.x) - 1f;
-        float indH = getFHeightInPixels(cellSizes.y) - 1f;
-        RectF template = new RectF(0f, 0f, indW, indH);       
-        RectF area = clipArea(fieldArea, template);        
+        double indW = getFWidthInPixels(cellSizes.x) - 1.0;
+        double indH = getFHeightInPixels(cellSizes.y) - 1.0;
+        FieldArea template = new FieldArea(0.0, 0.0, indW, indH);       
+        FieldArea area = clipArea(fieldArea, template);        
         
         // получим координаты ячеек в fieldArea
         DrawableCells drawableCells = new DrawableCells();
         
         // координаты первой и последней строки
-        float height25 = cellSizes.y * 0.25f;
-        float height75 = cellSizes.y * 0.75f;
+        double height25 = cellSizes.y * 0.25;
+        double height75 = cellSizes.y * 0.75;
         
         drawableCells.firstRow = (area.top >= height25) 
             ? (int) Math.floor((area.top - height25) / height75) : 0;
@@ -227,7 +293,7 @@ public class HexGameField extends GameField {
             ? (int) Math.floor(area.bottom / height75) : (getFHeight() - 1);
 
         // координаты первого и последнего столбцов в нечетной строке
-        float width50 = cellSizes.x * 0.50f;
+        double width50 = cellSizes.x * 0.50;
         
         drawableCells.firstOddCol = (area.left >= width50)
             ? (int) Math.floor((area.left - width50) / cellSizes.x) : 0;
@@ -236,7 +302,7 @@ public class HexGameField extends GameField {
             ? (int) Math.floor((area.right - width50) / cellSizes.x) : 0;
         
         // координаты первого и последнего столбцов в четной строке 
-        float cellsLengthPx = getFWidth() * cellSizes.x;
+        double cellsLengthPx = (double) getFWidth() * cellSizes.x;
         int cellsIndex = getFWidth() - 1;
         
         drawableCells.firstEvenCol = (area.left < cellsLengthPx)
@@ -257,16 +323,16 @@ public class HexGameField extends GameField {
      * поля, в которой будет отрисована ячейка
      */    
     @Override
-    public RectF getCellArea(Point cellCoords, PointF cellSizes, boolean overlap) {
+    public FieldArea getCellArea(Point cellCoords, PointF cellSizes, boolean overlap) {
         if (!cellExist(cellCoords.x, cellCoords.y)) return null;
         
         float shift = (cellCoords.y % 2 > 0) ? (cellSizes.x / 2f) : 0f;
         float overlapValue = (!overlap) ? 1f : 0f;
         
-        RectF cellArea = new RectF();
-        cellArea.left = (cellCoords.x * cellSizes.x) + shift;
+        FieldArea cellArea = new FieldArea();
+        cellArea.left = ((double) cellCoords.x * cellSizes.x) + shift;
         cellArea.right = cellArea.left + (cellSizes.x - overlapValue);        
-        cellArea.top = cellCoords.y * (cellSizes.y * 0.75f);
+        cellArea.top = (double) cellCoords.y * (cellSizes.y * 0.75f);
         cellArea.bottom = cellArea.top + (cellSizes.y - overlapValue);
         
         return cellArea;
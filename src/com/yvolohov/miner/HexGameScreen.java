@@ -9,7 +9,6 @@ import android.graphics.PointF;
  * Если gameField реализует Model игры, то этот класс View+Controller.
  * @author yvolohov
  */
-@SuppressWarnings("serial")
 public class HexGameScreen extends GameScreen {
     
     /**
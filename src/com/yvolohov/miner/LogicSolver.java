@@ -0,0 +1,362 @@
+package com.yvolohov.miner;
+
+/**
+ * Решатель "Сапера" без угадывания. Открывает стартовую ячейку и
+ * дальше делает только ходы, которые следуют из открытых цифр:
+ * по одной цифре (все мины вокруг найдены или все закрытые соседи
+ * - мины), по паре цифр, закрытые соседи одной из которых входят
+ * в закрытые соседи другой, и по общему количеству мин. Поле
+ * считается решаемым, если так открываются все ячейки без мин.
+ * Цифры, которые нужно проверить, хранятся в очереди, и после
+ * каждого хода в нее попадают только соседи измененной ячейки.
+ * Форма ячеек берется у игрового поля. Экземпляр не потокобезопасен,
+ * но многократно используется одним потоком для разных расстановок
+ * @author yvolohov
+ */
+class LogicSolver {
+
+    private static final byte UNKNOWN = 0;
+    private static final byte OPENED = 1;
+    private static final byte MINE = 2;
+
+    private static final int MAX_AROUND = 8;
+
+    private final GameField shape;
+    private final int width, height, size;
+    private final byte[] numbers, states;
+    private final int[] work, stack;
+    private final boolean[] queued;
+    private final int[] unknownA = new int[MAX_AROUND];
+    private final int[] unknownB = new int[MAX_AROUND];
+    private boolean[] mines;
+    private int workHead, workCount, stackCount;
+    private int opened, flagged, mineCount;
+    private int difficulty;
+
+    /**
+     * @param shape игровое поле, задающее размеры и соседство ячеек;
+     */
+    public LogicSolver(GameField shape) {
+    	this.shape = shape;
+    	width = shape.getFWidth();
+    	height = shape.getFHeight();
+    	size = width * height;
+    	numbers = new byte[size];
+    	states = new byte[size];
+    	work = new int[size];
+    	stack = new int[size];
+    	queued = new boolean[size];
+    }
+
+    /**
+     * Проверяет, решается ли расстановка мин без угадывания
+     * @param mines признаки мин по плоским индексам ячеек;
+     * @param mineCount количество мин;
+     * @param start плоский индекс стартовой ячейки, без мины;
+     * @return true если все ячейки без мин открываются логически
+     */
+    public boolean solve(boolean[] mines, int mineCount, int start) {
+
+    	this.mines = mines;
+    	this.mineCount = mineCount;
+    	opened = flagged = difficulty = 0;
+    	workHead = workCount = 0;
+
+    	for (int cell = 0; cell < size; cell++) {
+    		states[cell] = UNKNOWN;
+    		queued[cell] = false;
+    		numbers[cell] = countMines(cell);
+    	}
+
+    	open(start);
+
+    	while (true) {
+
+    		while (workCount > 0) {
+    			int cell = work[workHead];
+    			workHead = (workHead + 1) % size;
+    			workCount--;
+    			queued[cell] = false;
+    			checkNumber(cell);
+    		}
+
+    		if (opened == size - mineCount) return true;
+    		if (checkPairs() || checkTotal()) {
+    			difficulty++;
+    			continue;
+    		}
+    		
+    		return false;
+    	}
+    }
+
+    /**
+     * Возвращает сложность последней решенной расстановки - сколько
+     * раз одиночного правила не хватило и понадобились правило пар
+     * или общее количество мин
+     * @return сложность, 0 - поле решается одиночным правилом
+     */
+    public int getDifficulty() {return difficulty;}
+
+    /**
+     * Проверяет цифру по одиночному правилу
+     * @param cell плоский индекс открытой ячейки с цифрой;
+     */
+    private void checkNumber(int cell) {
+
+    	int unknown = collectUnknown(cell, unknownA);
+    	if (unknown == 0) return;
+
+    	int rest = numbers[cell] - countFlagged(cell);
+
+    	if (rest == 0) {
+    		for (int index = 0; index < unknown; index++) open(unknownA[index]);
+    	}
+    	else if (rest == unknown) {
+    		for (int index = 0; index < unknown; index++) flag(unknownA[index]);
+    	}
+    }
+
+    /**
+     * Ищет пару цифр A и B, в которой закрытые соседи A входят
+     * в закрытые соседи B: разница оставшихся мин приходится на
+     * соседей B, которых нет у A
+     * @return true если сделан хотя бы один ход
+     */
+    private boolean checkPairs() {
+
+    	for (int cellA = 0; cellA < size; cellA++) {
+
+    		if (states[cellA] != OPENED || numbers[cellA] == 0) continue;
+
+    		int countA = collectUnknown(cellA, unknownA);
+    		if (countA == 0) continue;
+
+    		int restA = numbers[cellA] - countFlagged(cellA);
+    		int posW = unknownA[0] % width;
+    		int posH = unknownA[0] / width;
+    		int[] aroundW = shape.getAroundW(posH);
+    		int[] aroundH = shape.getAroundH(posH);
+
+    		/* B обязательно соседствует с первым закрытым соседом A */
+    		for (int count = 0; count < aroundW.length; count++) {
+    			int nearW = posW + aroundW[count];
+    			int nearH = posH + aroundH[count];
+    			if (!shape.cellExist(nearW, nearH)) continue;
+
+    			int cellB = (nearH * width) + nearW;
+    			if (cellB == cellA || states[cellB] != OPENED || numbers[cellB] == 0) continue;
+
+    			int countB = collectUnknown(cellB, unknownB);
+    			if (countB <= countA || !contains(unknownB, countB, unknownA, countA)) continue;
+
+    			int rest = numbers[cellB] - countFlagged(cellB) - restA;
+    			int extra = countB - countA;
+    			if (rest != 0 && rest != extra) continue;
+
+    			for (int index = 0; index < countB; index++) {
+    				if (contains(unknownA, countA, unknownB[index])) continue;
+    				if (rest == 0) open(unknownB[index]);
+    				else flag(unknownB[index]);
+    			}
+
+    			return true;
+    		}
+    	}
+
+    	return false;
+    }
+
+    /**
+     * Проверяет общее количество мин: если все мины найдены,
+     * остальные ячейки открываются, если закрытых ячеек столько же,
+     * сколько осталось мин, все они отмечаются
+     * @return true если сделан хотя бы один ход
+     */
+    private boolean checkTotal() {
+
+    	int rest = mineCount - flagged;
+    	int unknown = size - opened - flagged;
+
+    	if (unknown == 0 || (rest != 0 && rest != unknown)) return false;
+
+    	for (int cell = 0; cell < size; cell++) {
+    		if (states[cell] != UNKNOWN) continue;
+    		if (rest == 0) open(cell);
+    		else flag(cell);
+    	}
+
+    	return true;
+    }
+
+    /**
+     * Открывает ячейку и, если она пустая, всю связанную с ней область
+     * @param cell плоский индекс ячейки без мины;
+     */
+    private void open(int cell) {
+
+    	if (states[cell] != UNKNOWN) return;
+
+    	stack[0] = cell;
+    	stackCount = 1;
+    	states[cell] = OPENED;
+
+    	while (stackCount > 0) {
+    		int current = stack[--stackCount];
+
+    		/* логика решателя ошибиться не может */
+    		if (mines[current]) throw new IllegalStateException("Solver opened a mine");
+
+    		opened++;
+    		touch(current);
+
+    		if (numbers[current] != 0) continue;
+
+    		int posW = current % width;
+    		int posH = current / width;
+    		int[] aroundW = shape.getAroundW(posH);
+    		int[] aroundH = shape.getAroundH(posH);
+
+    		for (int count = 0; count < aroundW.length; count++) {
+    			int nearW = posW + aroundW[count];
+    			int nearH = posH + aroundH[count];
+    			if (!shape.cellExist(nearW, nearH)) continue;
+
+    			int near = (nearH * width) + nearW;
+    			if (states[near] != UNKNOWN) continue;
+
+    			states[near] = OPENED;
+    			stack[stackCount++] = near;
+    		}
+    	}
+    }
+
+    /**
+     * Отмечает ячейку как мину
+     * @param cell плоский индекс ячейки;
+     */
+    private void flag(int cell) {
+    	if (states[cell] != UNKNOWN) return;
+    	states[cell] = MINE;
+    	flagged++;
+    	touch(cell);
+    }
+
+    /**
+     * Ставит в очередь проверки ячейку и ее открытых соседей с цифрами
+     * @param cell плоский индекс измененной ячейки;
+     */
+    private void touch(int cell) {
+
+    	enqueue(cell);
+
+    	int posW = cell % width;
+    	int posH = cell / width;
+    	int[] aroundW = shape.getAroundW(posH);
+    	int[] aroundH = shape.getAroundH(posH);
+
+    	for (int count = 0; count < aroundW.length; count++) {
+    		int nearW = posW + aroundW[count];
+    		int nearH = posH + aroundH[count];
+    		if (shape.cellExist(nearW, nearH)) enqueue((nearH * width) + nearW);
+    	}
+    }
+
+    /**
+     * Ставит открытую ячейку с цифрой в очередь проверки
+     * @param cell плоский индекс ячейки;
+     */
+    private void enqueue(int cell) {
+    	if (queued[cell] || states[cell] != OPENED || numbers[cell] == 0) return;
+    	queued[cell] = true;
+    	work[(workHead + workCount++) % size] = cell;
+    }
+
+    /**
+     * Собирает закрытые неотмеченные соседние ячейки
+     * @param cell плоский индекс ячейки;
+     * @param result массив для соседей;
+     * @return количество соседей
+     */
+    private int collectUnknown(int cell, int[] result) {
+
+    	int posW = cell % width;
+    	int posH = cell / width;
+    	int[] aroundW = shape.getAroundW(posH);
+    	int[] aroundH = shape.getAroundH(posH);
+    	int count = 0;
+
+    	for (int index = 0; index < aroundW.length; index++) {
+    		int nearW = posW + aroundW[index];
+    		int nearH = posH + aroundH[index];
+    		if (!shape.cellExist(nearW, nearH)) continue;
+
+    		int near = (nearH * width) + nearW;
+    		if (states[near] == UNKNOWN) result[count++] = near;
+    	}
+
+    	return count;
+    }
+
+    /**
+     * Считает соседние ячейки, отмеченные как мины
+     * @param cell плоский индекс ячейки;
+     * @return количество отмеченных соседей
+     */
+    private int countFlagged(int cell) {
+
+    	int posW = cell % width;
+    	int posH = cell / width;
+    	int[] aroundW = shape.getAroundW(posH);
+    	int[] aroundH = shape.getAroundH(posH);
+    	int result = 0;
+
+    	for (int index = 0; index < aroundW.length; index++) {
+    		int nearW = posW + aroundW[index];
+    		int nearH = posH + aroundH[index];
+    		if (shape.cellExist(nearW, nearH) && states[(nearH * width) + nearW] == MINE) result++;
+    	}
+
+    	return result;
+    }
+
+    /**
+     * Считает мины вокруг ячейки
+     * @param cell плоский индекс ячейки;
+     * @return количество мин
+     */
+    private byte countMines(int cell) {
+
+    	int posW = cell % width;
+    	int posH = cell / width;
+    	int[] aroundW = shape.getAroundW(posH);
+    	int[] aroundH = shape.getAroundH(posH);
+    	byte result = 0;
+
+    	for (int index = 0; index < aroundW.length; index++) {
+    		int nearW = posW + aroundW[index];
+    		int nearH = posH + aroundH[index];
+    		if (shape.cellExist(nearW, nearH) && mines[(nearH * width) + nearW]) result++;
+    	}
+
+    	return result;
+    }
+
+    /**
+     * Проверяет, что все элементы одного списка есть в другом
+     */
+    private static boolean contains(int[] outer, int outerCount, int[] inner, int innerCount) {
+    	for (int index = 0; index < innerCount; index++)
+    		if (!contains(outer, outerCount, inner[index])) return false;
+    	return true;
+    }
+
+    /**
+     * Проверяет, есть ли значение в списке
+     */
+    private static boolean contains(int[] list, int count, int value) {
+    	for (int index = 0; index < count; index++)
+    		if (list[index] == value) return true;
+    	return false;
+    }
+}
@@ -3,12 +3,15 @@ package com.yvolohov.miner;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Point;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.WindowManager;
@@ -29,10 +32,30 @@ public class Menu extends Activity implements AdapterView.OnItemClickListener {
 	private final int REQUEST_CODE_MINER = 10;
 	private final int REQUEST_CODE_OWN_GAME_SQU = 11;
 	private final int REQUEST_CODE_OWN_GAME_HEX = 12;
+	private final long RESTORE_POLL = 50L;
 
 	private GlobalData globalData;
 	private ArrayList<Map<String, String>> adapterData = new ArrayList<Map<String, String>>();
 	private ListView lvMenuView;
+	private boolean restoreAwaited;
+
+	/**
+	 * Ждет восстановления сохраненной игры, не блокируя главный поток,
+	 * и открывает игру, когда она готова
+	 */
+	private final Runnable awaitRestore = new Runnable() {
+		public void run() {
+			if (!restoreAwaited) return;
+
+			if (globalData.isRestoring()) {
+				lvMenuView.postDelayed(this, RESTORE_POLL);
+				return;
+			}
+
+			restoreAwaited = false;
+			continueGame();
+		}
+	};
 
 	/**
 	 * При создании Activity
@@ -50,9 +73,13 @@ public class Menu extends Activity implements AdapterView.OnItemClickListener {
 
 		lvMenuView.setOnItemClickListener(this);
 
+		long startTime = SystemClock.uptimeMillis();
 		globalData = (GlobalData) getApplicationContext();
 		globalData.loadGlobalData();
 		changeMenu(globalData.getMenuGroup());
+		
+		if (BuildConfig.DEBUG)
+			Log.d("Menu", "Menu ready in " + (SystemClock.uptimeMillis() - startTime) + " ms");
 	}
 
 	/**
@@ -60,6 +87,7 @@ public class Menu extends Activity implements AdapterView.OnItemClickListener {
 	 */
 	@Override
 	protected void onDestroy() {
+		lvMenuView.removeCallbacks(awaitRestore);
 		globalData.saveGlobalData();
 		super.onDestroy();
 	}
@@ -105,18 +133,20 @@ public class Menu extends Activity implements AdapterView.OnItemClickListener {
 		Point screenSizes = new Point(240, 240);
 		int densityGroup = getDensityGroup(getWindowManager());
 
+		boolean noGuess = globalData.isNoGuess();
+
 		switch (level) {
 		case GameField.SIMPLE_LEVEL:
 		case GameField.MEDIUM_LEVEL:
 		case GameField.HARD_LEVEL:
-			globalData.setScreen(new SquGameScreen(new SquGameField(level),
-					screenSizes, densityGroup));
+			globalData.setScreen(new SquGameScreen(noGuess ? SquGameField.createNoGuess(level)
+					: new SquGameField(level), screenSizes, densityGroup));
 			break;
 		case GameField.SIMPLE_LEVEL_HEX:
 		case GameField.MEDIUM_LEVEL_HEX:
 		case GameField.HARD_LEVEL_HEX:
-			globalData.setScreen(new HexGameScreen(new HexGameField(level),
-					screenSizes, densityGroup));
+			globalData.setScreen(new HexGameScreen(noGuess ? HexGameField.createNoGuess(level)
+					: new HexGameField(level), screenSizes, densityGroup));
 			break;
 		}
 
@@ -135,18 +165,56 @@ public class Menu extends Activity implements AdapterView.OnItemClickListener {
 		Intent startGame = new Intent(this, Miner.class);
 		Point screenSizes = new Point(240, 240);
 		int densityGroup = getDensityGroup(getWindowManager());
+		/* большие поля генератор без угадывания не поддерживает */
+		boolean noGuess = globalData.isNoGuess() && width * height < BitGameField.MIN_CELLS;
 
 		if (mode) {
-			globalData.setScreen(new SquGameScreen(new SquGameField(width,
-					height, mines), screenSizes, densityGroup));
+			/* на больших полях область открывается по битовым плоскостям */
+			SquGameField field = noGuess ? SquGameField.createNoGuess(width, height, mines)
+					: (width * height >= BitGameField.MIN_CELLS)
+					? new BitGameField(width, height, mines)
+					: new SquGameField(width, height, mines);
+			globalData.setScreen(new SquGameScreen(field, screenSizes,
+					densityGroup));
 		} else {
-			globalData.setScreen(new HexGameScreen(new HexGameField(width,
-					height, mines), screenSizes, densityGroup));
+			globalData.setScreen(new HexGameScreen(noGuess ? HexGameField.createNoGuess(width,
+					height, mines) : new HexGameField(width, height, mines),
+					screenSizes, densityGroup));
 		}
 
 		startActivityForResult(startGame, REQUEST_CODE_MINER);
 	}
 
+	/**
+	 * Открывает сохраненную или текущую игру
+	 */
+	private void continueGame() {
+
+		/* сохраненная игра оказалась поврежденной */
+		if (globalData.getScreen() == null) {
+			changeMenu(HEAD_MENU);
+			return;
+		}
+
+		Intent startGame = new Intent(this, Miner.class);
+		startActivityForResult(startGame, REQUEST_CODE_MINER);
+	}
+
+	/**
+	 * Создает и открывает новую игру на бесконечном поле
+	 */
+	private void startInfiniteGame() {
+
+		Intent startGame = new Intent(this, Miner.class);
+		Point screenSizes = new Point(240, 240);
+		int densityGroup = getDensityGroup(getWindowManager());
+
+		globalData.setScreen(new SquGameScreen(new ChunkedGameField(
+				new Random().nextLong()), screenSizes, densityGroup));
+
+		startActivityForResult(startGame, REQUEST_CODE_MINER);
+	}
+
 	/**
 	 * Обрабатывает нажатие на пункт меню
 	 */
@@ -159,12 +227,22 @@ public class Menu extends Activity implements AdapterView.OnItemClickListener {
 		Map<String, String> item = (Map<String, String>) (adapter
 				.getItem(position));
 		int itemId = Integer.valueOf(item.get("itemId"));
+		/* выбор другого пункта отменяет ожидание сохраненной игры */
+		restoreAwaited = false;
 
 		switch (itemId) {
 
 		case 100:
-			Intent startGame = new Intent(this, Miner.class);
-			startActivityForResult(startGame, REQUEST_CODE_MINER);
+			/* пока игра восстанавливается, пункт показывает загрузку */
+			if (globalData.isRestoring()) {
+				restoreAwaited = true;
+				changeMenu(HEAD_MENU);
+				lvMenuView.removeCallbacks(awaitRestore);
+				lvMenuView.postDelayed(awaitRestore, RESTORE_POLL);
+				break;
+			}
+
+			continueGame();
 			break;
 
 		case 200:
@@ -188,6 +266,16 @@ public class Menu extends Activity implements AdapterView.OnItemClickListener {
 			startActivityForResult(intentOwnGameSqu, REQUEST_CODE_OWN_GAME_SQU);
 			break;
 
+		case 206:
+			startInfiniteGame();
+			break;
+
+		case 207:
+		case 306:
+			globalData.setNoGuess(!globalData.isNoGuess());
+			changeMenu(globalData.getMenuGroup());
+			break;
+
 		case 300:
 			changeMenu(SUB_MENU_HEX);
 			break;
@@ -261,13 +349,27 @@ public class Menu extends Activity implements AdapterView.OnItemClickListener {
 			int itemId = menuStruct[i][1];
 
 			// пункт меню "Продолжить" имеет смысл только если существует screen
-			if (itemId == 100 && globalData.getScreen() == null)
+			if (itemId == 100 && !globalData.hasScreen())
 				continue;
 
 			String name = (menuStruct[i][2] > 0) ? getResources().getString(
 					menuStruct[i][2]) : "";
 			String desc = (menuStruct[i][3] > 0) ? getResources().getString(
 					menuStruct[i][3]) : "";
+			
+			if (itemId == 100 && restoreAwaited)
+				desc = getResources().getString(R.string.sub_item_loading);
+
+			// для еще не восстановленной игры показываем сведения из заголовка
+			GameStorage.Header header = globalData.getSavedHeader();
+			
+			if (itemId == 100 && header != null)
+				desc += " (" + header.width + "x" + header.height + ", "
+						+ GameField.getTimeAsString(header.time) + ")";
+
+			// пункт режима без угадывания показывает текущее состояние
+			if ((itemId == 207 || itemId == 306) && globalData.isNoGuess())
+				desc = getResources().getString(R.string.sub_item_no_guess_on);
 
 			if (groupId == menuGroup) {
 				Map<String, String> item = new HashMap<String, String>();
@@ -300,12 +402,15 @@ public class Menu extends Activity implements AdapterView.OnItemClickListener {
 				{ SUB_MENU_SQU, 202, R.string.item_new_medium, R.string.sub_item_new_medium },
 				{ SUB_MENU_SQU, 203, R.string.item_new_hard, R.string.sub_item_new_hard },
 				{ SUB_MENU_SQU, 204, R.string.item_new_own, R.string.sub_item_new_own },
+				{ SUB_MENU_SQU, 206, R.string.item_new_infinite, R.string.sub_item_new_infinite },
+				{ SUB_MENU_SQU, 207, R.string.item_no_guess, R.string.sub_item_no_guess_off },
 				{ SUB_MENU_SQU, 205, R.string.item_return, R.string.sub_item_return },
 				{ HEAD_MENU, 300, R.string.item_new, R.string.sub_item_new_hex },
 				{ SUB_MENU_HEX, 301, R.string.item_new_simple, R.string.sub_item_new_simple },
 				{ SUB_MENU_HEX, 302, R.string.item_new_medium, R.string.sub_item_new_medium },
 				{ SUB_MENU_HEX, 303, R.string.item_new_hard, R.string.sub_item_new_hard },
 				{ SUB_MENU_HEX, 304, R.string.item_new_own, R.string.sub_item_new_own },
+				{ SUB_MENU_HEX, 306, R.string.item_no_guess, R.string.sub_item_no_guess_off },
 				{ SUB_MENU_HEX, 305, R.string.item_return, R.string.sub_item_return },
 				{ HEAD_MENU, 400, R.string.item_results, R.string.sub_item_results },
 				{ HEAD_MENU, 500, R.string.item_rules, R.string.sub_item_rules },
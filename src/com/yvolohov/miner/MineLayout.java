@@ -0,0 +1,77 @@
+package com.yvolohov.miner;
+
+/**
+ * Расстановка мин, заданная чистой функцией от зерна и координат ячейки,
+ * поэтому ее не нужно хранить: наличие мины в любой ячейке и количество
+ * мин вокруг нее вычисляются по требованию за O(1). Поле делится на
+ * квадратные участки со стороной 2^shift ячеек, в каждом участке ровно
+ * tileMines мин. Индекс ячейки внутри участка переставляется сетью
+ * Фейстеля с ключом, полученным из зерна и координат участка, и ячейка
+ * заминирована, если ее новый индекс меньше tileMines. Перестановка
+ * взаимно однозначна, поэтому количество мин в участке точное
+ * @author yvolohov
+ */
+class MineLayout {
+
+    private static final int ROUNDS = 4;
+
+    private final long seed;
+    private final int shift;
+    private final int mask;
+    private final int tileMines;
+
+    /**
+     * @param seed зерно;
+     * @param shift двоичный логарифм стороны участка, от 1 до 15;
+     * @param tileMines количество мин в участке;
+     */
+    public MineLayout(long seed, int shift, int tileMines) {
+    	this.seed = seed;
+    	this.shift = shift;
+    	this.mask = (1 << shift) - 1;
+    	this.tileMines = tileMines;
+    }
+
+    /**
+     * Проверяет, есть ли мина в ячейке
+     * @param posW индекс ячейки по ширине;
+     * @param posH индекс ячейки по высоте;
+     * @return true если в ячейке мина
+     */
+    public boolean isMine(int posW, int posH) {
+
+    	long key = hash(seed, posW >> shift, posH >> shift);
+    	int left = posH & mask;
+    	int right = posW & mask;
+
+    	for (int round = 0; round < ROUNDS; round++) {
+    		int next = left ^ ((int) mix(key + (right * 0x9E3779B97F4A7C15L) + round) & mask);
+    		left = right;
+    		right = next;
+    	}
+
+    	return ((left << shift) | right) < tileMines;
+    }
+
+    /**
+     * Вычисляет хеш тройки чисел
+     * @param seed зерно;
+     * @param posW первая координата;
+     * @param posH вторая координата;
+     * @return хеш
+     */
+    private static long hash(long seed, int posW, int posH) {
+    	return mix(seed + (posW * 0xC2B2AE3D27D4EB4FL) + (posH * 0x165667B19E3779F9L));
+    }
+
+    /**
+     * Перемешивает биты числа (финальная функция SplitMix64)
+     * @param value число;
+     * @return перемешанное число
+     */
+    static long mix(long value) {
+    	value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+    	value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+    	return value ^ (value >>> 31);
+    }
+}
@@ -1,13 +1,12 @@
 package com.yvolohov.miner;
 
-import java.util.Map;
-
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.TextView;
 
@@ -18,10 +17,19 @@ import android.widget.TextView;
  */
 public class Miner extends Activity {
 
+	private static final int MENU_UNDO = 1;
+	private static final int MENU_REDO = 2;
+
 	private GlobalData globalData;
 	private MinerScreen svMinerScreen;
 	private TextView tvTime, tvFlags;
 	private Handler handler;
+	
+	private final GameStatus status = new GameStatus();
+	private final char[] timeChars = new char[GameField.MAX_TIME_CHARS];
+	private final char[] flagChars = new char[10];
+	private long shownSeconds = -1;
+	private int shownFlags = -1;
 
 	/**
 	 * При создании Activity
@@ -79,33 +87,74 @@ public class Miner extends Activity {
     	}
     }
     
+    /**
+     * Создает меню экрана игры с отменой и повтором хода, 
+     * меню открывается кнопкой меню устройства
+     * @param menu меню;
+     * @return true;
+     */
+    @Override
+    public boolean onCreateOptionsMenu(android.view.Menu menu) {
+    	menu.add(0, MENU_UNDO, 0, R.string.menu_undo).setIcon(android.R.drawable.ic_menu_revert);
+    	menu.add(0, MENU_REDO, 0, R.string.menu_redo).setIcon(android.R.drawable.ic_menu_rotate);
+    	return true;
+    }
+    
+    /**
+     * Обработчик выбора пункта меню экрана игры. Отмена и повтор
+     * выполняются в игровом потоке, там же проверяется, есть ли
+     * ход для отмены или повтора
+     * @param item пункт меню;
+     * @return true если пункт обработан
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+    	
+    	switch (item.getItemId()) {
+    	
+    	case MENU_UNDO:
+    		globalData.getScreen().postCommand(GameCommand.UNDO, 0, 0);
+    		return true;
+    		
+    	case MENU_REDO:
+    		globalData.getScreen().postCommand(GameCommand.REDO, 0, 0);
+    		return true;
+    	}
+    	
+    	return super.onOptionsItemSelected(item);
+    }
+    
     /**
      * Обрабатывает сообщения, которые GameField 
      * присылает Handler. Обновляет индикаторы
-     * игрового времени и установленных флажков. 
+     * игрового времени и установленных флажков, 
+     * TextView меняются только при изменении выводимых значений. 
      * @param msg сообщение;
      */
     private void messageProc(Message msg) {
 		
-		@SuppressWarnings("unchecked")
-		Map<String, String> params = (Map<String, String>) msg.obj; 
+		((GameStatus) msg.obj).copyTo(status);
 		
 		switch (msg.what) {
 		
 		case GameField.MSG_UPDATE:
-			tvTime.setText(params.get("time"));
-			tvFlags.setText(params.get("flags"));
+			long seconds = status.time / 1000L;
+			
+			if (seconds != shownSeconds) {
+				shownSeconds = seconds;
+				tvTime.setText(timeChars, 0, GameField.formatTime(status.time, timeChars));
+			}
+			
+			if (status.flags != shownFlags) {
+				shownFlags = status.flags;
+				tvFlags.setText(flagChars, 0, GameField.formatNumber(status.flags, 3, flagChars, 0));
+			}
 			break;
 		
 		case GameField.MSG_WIN:
-			long curRecord = Long.parseLong(params.get("time_msec"));
-			int level = Integer.parseInt(params.get("level"));			
-			long preRecord = globalData.getRecord(level);
-
-			if (preRecord > curRecord || preRecord == 0) {
-				globalData.setRecord(level, curRecord);
+			if (globalData.getRecordTable().put(status.getKey(), status.time)) {
 				String messageText = getResources().getString(R.string.win_record)
-						+ " " + params.get("time");
+						+ " " + GameField.getTimeAsString(status.time);
 				
 				AlertDialog.Builder builder = new AlertDialog.Builder(this);
 				builder.setTitle(R.string.app_name);
@@ -120,34 +169,20 @@ public class Miner extends Activity {
     
     /**
      * Перезапускает игру с теми же параметрами,
-     * что были и у старой игры
+     * что были и у старой игры. Новое поле подставляется
+     * в игровом потоке, который при этом не останавливается
      */
 	private void restart() {
-		
-		/* останавливаем поток, ответственный за перерисовку экрана */
-		svMinerScreen.surfaceDestroyed(null);
-		
-		/* создаем новый экземпляр игры на основании текущего,
-		 * сохраняя все настройки */
-		globalData.setScreen(globalData.getScreen().reCreate());
-		
-		/* возобновляем поток, ответственный за перерисовку экрана */
-		svMinerScreen.surfaceCreated(null);
+		globalData.getScreen().postCommand(GameCommand.RESTART, 0, 0);
 	}
 
 	/**
-	 * Увеличивает или уменьшает масштаб на игровом экране;
-	 * @param plus значение масштаба, одна из констант
-	 * класса GameScreen - LOW_SCALE, MEDIUM_SCALE, HIGH_SCALE;
+	 * Увеличивает или уменьшает масштаб на игровом экране,
+	 * допустимость нового масштаба проверяется в игровом потоке;
+	 * @param plus true - увеличить масштаб, false - уменьшить;
 	 */
     private void zoom(boolean plus) {
-    	
-        int scale = globalData.getScreen().getScale();
-        
-        if (plus && scale < GameScreen.HIGH_SCALE) scale++;
-        else if (!(plus) && scale > GameScreen.LOW_SCALE) scale--;
-        else return;
-        
-        globalData.getScreen().onScaleChangedScreen(scale);   
+    	int delta = plus ? 1 : -1;
+        globalData.getScreen().postCommand(GameCommand.CHANGE_SCALE, delta, 0);
     }
 }
@@ -2,7 +2,6 @@ package com.yvolohov.miner;
 
 import android.content.Context;
 import android.graphics.Canvas;
-import android.graphics.Point;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
@@ -32,19 +31,40 @@ public class MinerScreen extends SurfaceView implements SurfaceHolder.Callback,
 	}
 	
 	/**
-	 * Метод отвечает за перерисовку игрового экрана 
-	 * в отдельном потоке
+	 * Игровой цикл, выполняется в отдельном потоке. На каждом витке
+	 * выполняет накопившиеся команды, обновляет счетчики и 
+	 * перерисовывает игровой экран. Это единственный поток, который
+	 * изменяет состояние игры. Перед первым витком поток ждет снимка
+	 * игры, который делается в фоновом потоке после ухода с экрана
 	 */
 	public void run() {
+		
+		globalData.getAutoSaver().awaitSnapshot();
+		
+		GameScreen first = globalData.getScreen();
+		GameField field = first.getGameField();
+		
+		/* бесконечное поле держит в памяти ограниченное число фрагментов */
+		if (field instanceof ChunkedGameField)
+			((ChunkedGameField) field).setChunkStore(globalData.getChunkStore(), 
+					GlobalData.RESIDENT_CHUNKS);
+		
+		globalData.getAutoSaver().attach(first);
+		globalData.getGameHistory().attach(first);
 					
 		while (run) {
+			GameScreen screen = globalData.getScreen();
+			screen.processCommands();
+			screen.getGameField().updateTiming();
+			globalData.getAutoSaver().update(screen);
+			
 			Canvas canvas = null;
 			
 			try {
 				canvas = holder.lockCanvas();
 				
 				synchronized (holder) {
-					globalData.getScreen().redrawScreen(canvas, getResources());						
+					screen.redrawScreen(canvas, getResources());						
 				}
 			} finally { 
 				if (canvas != null) holder.unlockCanvasAndPost(canvas); 
@@ -56,11 +76,12 @@ public class MinerScreen extends SurfaceView implements SurfaceHolder.Callback,
 	 * Выполняется после создания экземпляра класса
 	 */
 	public void surfaceCreated(SurfaceHolder holder) {
+		Miner act = (Miner) getContext();
+		GameField field = globalData.getScreen().getGameField();
+		field.startTiming(act.getHandler());
 		run = true;
 		thread = new Thread(this);
 		thread.start();
-		Miner act = (Miner) getContext();
-		globalData.getScreen().getGameField().startTiming(act.getHandler());
 	}
 
 	/**
@@ -79,7 +100,14 @@ public class MinerScreen extends SurfaceView implements SurfaceHolder.Callback,
             catch (InterruptedException e) {}
         }
         
-        globalData.getScreen().getGameField().stopTiming();
+        GameScreen screen = globalData.getScreen();
+        screen.getGameField().stopTiming();
+        globalData.getAutoSaver().detach(screen);
+        globalData.getGameHistory().detach(screen);
+        
+        /* игровой поток остановлен, снимок игры и запись в файл
+         * выполняются в фоновом потоке, главный поток их не ждет */
+        globalData.getAutoSaver().saveLater(screen);
 	}
 
 	/**
@@ -88,8 +116,7 @@ public class MinerScreen extends SurfaceView implements SurfaceHolder.Callback,
 	 */
 	public void surfaceChanged(SurfaceHolder holder, int format, int width,
 			int height) {
-		Point newSizes = new Point(width, height);
-		globalData.getScreen().onSizeChangedScreen(newSizes);		
+		globalData.getScreen().postCommand(GameCommand.CHANGE_SIZE, width, height);
 	}
    
     /**
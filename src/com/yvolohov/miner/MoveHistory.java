@@ -0,0 +1,236 @@
+package com.yvolohov.miner;
+
+/**
+ * История ходов для отмены и повтора. Для каждой измененной ячейки
+ * хранятся плоский индекс и упакованные состояния до и после хода
+ * (по полбайта), в кольцевых массивах примитивов на MAX_CELLS ячеек,
+ * поэтому отмена и повтор стоят O(измененных ячеек), а память
+ * ограничена. Для каждого хода хранятся начало его ячеек в кольце
+ * и значения счетчиков поля до и после хода. Старые ходы вытесняются
+ * новыми, а ход, который сам не помещается в кольцо (открытие огромной
+ * области), очищает историю. Открытие области, растянутое на несколько
+ * кадров, дописывается к начавшему его ходу. Массивы создаются при
+ * первой записи. Используется только игровым полем в игровом потоке
+ * @author yvolohov
+ */
+class MoveHistory {
+
+    public static final int MAX_CELLS = 1 << 16;
+    public static final int MAX_MOVES = 1024;
+
+    /* счетчики хода: до хода, после хода - со смещением AFTER */
+    public static final int REST_CELLS = 0;
+    public static final int FLAGS = 1;
+    public static final int GAME_STATE = 2;
+    public static final int CLICKS = 3;
+    public static final int AFTER = 4;
+
+    private static final int COUNTERS = 8;
+
+    private int[] indices;
+    private byte[] nibbles;
+    private final long[] starts = new long[MAX_MOVES];
+    private final int[] counts = new int[MAX_MOVES];
+    private final int[] counters = new int[MAX_MOVES * COUNTERS];
+    private final int[] before = new int[AFTER];
+
+    /* номера самого старого хода, следующего за примененными и за всеми */
+    private long first, applied, last;
+
+    /* позиция в кольце за ячейками последнего примененного хода */
+    private long cellEnd;
+
+    private boolean recording, pending, tail;
+
+    /**
+     * Начинает запись хода
+     * @param continuation true если это продолжение открытия области,
+     * которое дописывается к последнему ходу;
+     * @param restCells закрытые ячейки без мин до хода;
+     * @param flags флажки до хода;
+     * @param gameState состояние игры до хода;
+     * @param clicks количество ходов до хода;
+     */
+    public void begin(boolean continuation, int restCells, int flags, int gameState, int clicks) {
+
+    	if (continuation) {
+    		recording = tail && applied > first;
+    		pending = false;
+    		return;
+    	}
+
+    	recording = pending = true;
+    	before[REST_CELLS] = restCells;
+    	before[FLAGS] = flags;
+    	before[GAME_STATE] = gameState;
+    	before[CLICKS] = clicks;
+    }
+
+    /**
+     * Добавляет измененную ячейку в записываемый ход. Первая ячейка
+     * хода отбрасывает отмененные ходы, которые можно было повторить
+     * @param index плоский индекс ячейки;
+     * @param prev упакованное состояние до хода;
+     * @param next упакованное состояние после хода;
+     */
+    public void add(int index, int prev, int next) {
+
+    	if (!recording) return;
+
+    	if (pending) {
+    		pending = false;
+
+    		if (indices == null) {
+    			indices = new int[MAX_CELLS];
+    			nibbles = new byte[MAX_CELLS];
+    		}
+
+    		last = applied;
+    		if (last - first == MAX_MOVES) first++;
+
+    		int slot = getSlot(applied);
+    		starts[slot] = cellEnd;
+    		counts[slot] = 0;
+    		System.arraycopy(before, 0, counters, slot * COUNTERS, AFTER);
+    		applied = ++last;
+    	}
+
+    	int slot = getSlot(applied - 1);
+
+    	/* ход не помещается в кольцо и не может быть отменен */
+    	if (counts[slot] == MAX_CELLS) {
+    		clear();
+    		return;
+    	}
+
+    	/* вытесняем старые ходы, ячейки которых будут перезаписаны */
+    	while (cellEnd - starts[getSlot(first)] >= MAX_CELLS) first++;
+
+    	int position = (int) (cellEnd % MAX_CELLS);
+    	indices[position] = index;
+    	nibbles[position] = (byte) ((prev << 4) | next);
+    	counts[slot]++;
+    	cellEnd++;
+    }
+
+    /**
+     * Заканчивает запись хода. Ход без измененных ячеек не сохраняется
+     * @param restCells закрытые ячейки без мин после хода;
+     * @param flags флажки после хода;
+     * @param gameState состояние игры после хода;
+     * @param clicks количество ходов после хода;
+     */
+    public void end(int restCells, int flags, int gameState, int clicks) {
+
+    	if (recording && !pending) {
+    		int offset = (getSlot(applied - 1) * COUNTERS) + AFTER;
+    		counters[offset + REST_CELLS] = restCells;
+    		counters[offset + FLAGS] = flags;
+    		counters[offset + GAME_STATE] = gameState;
+    		counters[offset + CLICKS] = clicks;
+    	}
+
+    	/* продолжить открытие области можно только у непустого хода */
+    	tail = recording && !pending;
+    	recording = pending = false;
+    }
+
+    /**
+     * Очищает историю
+     */
+    public void clear() {
+    	first = last = applied;
+    	recording = pending = tail = false;
+    }
+
+    /**
+     * Проверяет, записывается ли текущий ход. Ход, который не поместился
+     * в кольцо, дальше не записывается
+     * @return true если add сохранит ячейку
+     */
+    public boolean isRecording() {return recording;}
+
+    /**
+     * Проверяет, есть ли ход для отмены
+     */
+    public boolean canUndo() {return applied > first;}
+
+    /**
+     * Проверяет, есть ли отмененный ход для повтора
+     */
+    public boolean canRedo() {return last > applied;}
+
+    /**
+     * Отменяет последний ход в истории
+     * @return номер хода, ячейки которого нужно вернуть в состояния до хода
+     */
+    public long undo() {
+    	long move = --applied;
+    	cellEnd = starts[getSlot(move)];
+    	tail = false;
+    	return move;
+    }
+
+    /**
+     * Повторяет последний отмененный ход в истории
+     * @return номер хода, ячейки которого нужно вернуть в состояния после хода
+     */
+    public long redo() {
+    	long move = applied++;
+    	cellEnd = starts[getSlot(move)] + counts[getSlot(move)];
+    	tail = false;
+    	return move;
+    }
+
+    /**
+     * Возвращает количество измененных ячеек хода
+     * @param move номер хода;
+     * @return количество ячеек
+     */
+    public int getCount(long move) {return counts[getSlot(move)];}
+
+    /**
+     * Возвращает плоский индекс измененной ячейки хода
+     * @param move номер хода;
+     * @param position номер ячейки в ходе;
+     * @return плоский индекс
+     */
+    public int getIndex(long move, int position) {
+    	return indices[getPosition(move, position)];
+    }
+
+    /**
+     * Возвращает упакованное состояние ячейки хода
+     * @param move номер хода;
+     * @param position номер ячейки в ходе;
+     * @param after true - после хода, false - до хода;
+     * @return упакованное состояние
+     */
+    public int getNibble(long move, int position, boolean after) {
+    	int nibbles = this.nibbles[getPosition(move, position)];
+    	return after ? (nibbles & 0x0F) : ((nibbles >> 4) & 0x0F);
+    }
+
+    /**
+     * Возвращает счетчик поля до или после хода
+     * @param move номер хода;
+     * @param counter REST_CELLS, FLAGS, GAME_STATE или CLICKS,
+     * плюс AFTER для значения после хода;
+     * @return значение счетчика
+     */
+    public int getCounter(long move, int counter) {
+    	return counters[(getSlot(move) * COUNTERS) + counter];
+    }
+
+    /**
+     * Возвращает позицию ячейки хода в кольце
+     */
+    private int getPosition(long move, int position) {
+    	return (int) ((starts[getSlot(move)] + position) % MAX_CELLS);
+    }
+
+    /**
+     * Возвращает место хода в массивах ходов
+     */
+    private static int getSlot(long move) {return (int) (move % MAX_MOVES);}
+}
@@ -0,0 +1,185 @@
+package com.yvolohov.miner;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+
+/**
+ * Журнал ходов, сделанных после последнего снимка игры. Каждый ход
+ * дописывается в конец файла отдельной записью, что стоит O(1)
+ * независимо от размера поля. Заголовок журнала содержит контрольную
+ * сумму снимка, к которому он относится, поэтому журнал от другого
+ * снимка при восстановлении игнорируется. Методы записи вызываются
+ * только в фоновом потоке автосохранения
+ * @author yvolohov
+ */
+class MoveJournal {
+
+    public static final int MAX_RECORD = 16;
+
+    private static final int MAGIC = 'J';
+    private static final int HEADER_SIZE = 5;
+
+    private final Context context;
+    private final String fileName;
+    private FileOutputStream out;
+
+    /**
+     * @param context контекст приложения, в папку которого пишется файл;
+     * @param fileName имя файла журнала;
+     */
+    public MoveJournal(Context context, String fileName) {
+    	this.context = context;
+    	this.fileName = fileName;
+    }
+
+    /**
+     * Кодирует ход в запись журнала: тип хода, плоский индекс
+     * ячейки и игровое время, числа в формате varint
+     * @param change изменения поля за ход;
+     * @param time игровое время в момент хода;
+     * @param buffer буфер, в котором после pos есть MAX_RECORD байт;
+     * @param pos позиция записи в буфере;
+     * @return позиция за записью или pos, если ход не относится к ячейке
+     */
+    public static int encodeMove(FieldChange change, long time, byte[] buffer, int pos) {
+
+    	if (change.cell < 0) return pos;
+
+    	buffer[pos++] = (byte) change.type;
+    	pos = putVarLong(buffer, pos, change.cell);
+    	return putVarLong(buffer, pos, time);
+    }
+
+    /**
+     * Записывает неотрицательное число в буфер в формате varint,
+     * см. GameStorage.writeVarLong
+     * @return позиция за числом
+     */
+    private static int putVarLong(byte[] buffer, int pos, long value) {
+    	while ((value & ~0x7FL) != 0) {
+    		buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+    		value >>>= 7;
+    	}
+    	buffer[pos++] = (byte) value;
+    	return pos;
+    }
+
+    /**
+     * Начинает новый журнал для только что записанного снимка
+     * @param checksum контрольная сумма снимка;
+     * @throws IOException
+     */
+    public void reset(long checksum) throws IOException {
+
+    	close();
+    	out = context.openFileOutput(fileName, Context.MODE_PRIVATE);
+
+    	byte[] header = new byte[] {(byte) MAGIC, (byte) (checksum >>> 24),
+    		(byte) (checksum >>> 16), (byte) (checksum >>> 8), (byte) checksum};
+
+    	try {out.write(header);}
+    	catch (IOException e) {discard(); throw e;}
+    }
+
+    /**
+     * Дописывает записи в конец журнала одной операцией записи
+     * @param records записи, закодированные encodeMove;
+     * @param length длина записей в байтах;
+     * @return true если записи добавлены, false если журнал не открыт
+     * или поврежден и дальнейшие ходы нужно сохранить новым снимком
+     */
+    public boolean append(byte[] records, int length) {
+
+    	if (out == null) return false;
+
+    	try {
+    		out.write(records, 0, length);
+    		return true;
+    	}
+    	catch (IOException e) {
+    		discard();
+    		return false;
+    	}
+    }
+
+    /**
+     * Закрывает и удаляет журнал, ходы после последнего снимка теряются,
+     * но восстановленная игра остается согласованной
+     */
+    public void discard() {
+    	close();
+    	context.deleteFile(fileName);
+    }
+
+    /**
+     * Воспроизводит ходы журнала на восстановленном из снимка поле.
+     * Недописанная последняя запись игнорируется
+     * @param checksum контрольная сумма снимка;
+     * @param field игровое поле, восстановленное из снимка;
+     * @return количество воспроизведенных ходов или -1, если журнала
+     * нет или он относится к другому снимку
+     */
+    public int replay(long checksum, GameField field) {
+
+    	byte[] data;
+
+    	try {
+    		FileInputStream fis = context.openFileInput(fileName);
+    		try {data = GameStorage.readAll(fis);}
+    		finally {fis.close();}
+    	}
+    	catch (FileNotFoundException e) {return -1;}
+    	catch (IOException e) {return -1;}
+
+    	if (data.length < HEADER_SIZE || data[0] != MAGIC) return -1;
+
+    	long header = ((data[1] & 0xFFL) << 24) | ((data[2] & 0xFFL) << 16)
+    		| ((data[3] & 0xFFL) << 8) | (data[4] & 0xFFL);
+
+    	if (header != checksum) return -1;
+
+    	int[] pos = new int[] {HEADER_SIZE};
+    	int moves = 0;
+    	int size = field.getFWidth() * field.getFHeight();
+
+    	while (pos[0] < data.length) {
+    		int type = data[pos[0]++];
+    		long cell, time;
+
+    		try {
+    			cell = GameStorage.readVarLong(data, pos, data.length);
+    			time = GameStorage.readVarLong(data, pos, data.length);
+    		}
+    		catch (IOException e) {break;}
+
+    		if (cell < 0 || cell >= size) break;
+
+    		int posW = (int) (cell % field.getFWidth());
+    		int posH = (int) (cell / field.getFWidth());
+
+    		if (type == FieldChange.OPEN_CELL) field.openCell(posW, posH);
+    		else if (type == FieldChange.MARK_CELL) field.markCell(posW, posH);
+    		else if (type == FieldChange.CHORD_CELL) field.chordCell(posW, posH);
+    		else break;
+
+    		field.setTime(time);
+    		moves++;
+    	}
+
+    	return moves;
+    }
+
+    /**
+     * Закрывает файл журнала
+     */
+    private void close() {
+    	if (out == null) return;
+    	try {out.close();}
+    	catch (IOException e) {}
+    	out = null;
+    }
+}
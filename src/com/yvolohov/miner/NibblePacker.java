@@ -0,0 +1,121 @@
+package com.yvolohov.miner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Упаковка ячеек битового поля в формат GameField.unpackCells (две ячейки
+ * в байте, первая - в младшей половине). Ячейки поступают словами
+ * битовых плоскостей, по 8 ячеек за шаг: биты каждой плоскости
+ * раскладываются по позициям полубайтов таблицей SPREAD, так что
+ * ячейки не перебираются по одной. Строка поля может заканчиваться
+ * на середине байта, поэтому недописанный полубайт переносится
+ * в следующий шаг. Упакованные байты накапливаются в буфере и
+ * сбрасываются в поток по мере его заполнения
+ * @author yvolohov
+ */
+class NibblePacker {
+
+    /* бит i байта переходит в младший бит полубайта i */
+    private static final int[] SPREAD = new int[256];
+
+    static {
+    	for (int value = 0; value < 256; value++)
+    		for (int bit = 0; bit < 8; bit++)
+    			if ((value & (1 << bit)) != 0) SPREAD[value] |= 1 << (bit << 2);
+    }
+
+    private final byte[] buffer;
+    private final OutputStream out;
+    private int position;
+    private long pending;
+    private int pendingBits;
+
+    /**
+     * @param out поток для записи;
+     * @param bufferSize размер промежуточного буфера, не меньше 32 байт;
+     */
+    public NibblePacker(OutputStream out, int bufferSize) {
+    	this.buffer = new byte[bufferSize];
+    	this.out = out;
+    }
+
+    /**
+     * Добавляет ячейки одного слова битовых плоскостей
+     * @param mines слово плоскости мин;
+     * @param state0 слово младшего бита отметки;
+     * @param state1 слово среднего бита отметки;
+     * @param state2 слово старшего бита отметки;
+     * @param count количество ячеек в слове, от 1 до 64;
+     * @throws IOException
+     */
+    public void putWord(long mines, long state0, long state1, long state2, int count)
+    	throws IOException {
+
+    	if (count == 64 && buffer.length - position < 32) flush();
+
+    	/* целое слово: по 4 байта на 8 ячеек, полубайт переносится в pending */
+    	if (count == 64) {
+    		for (int shift = 0; shift < 64; shift += 8) {
+    			pending |= (getNibbles(mines, state0, state1, state2, shift) & 0xFFFFFFFFL) << pendingBits;
+    			buffer[position] = (byte) pending;
+    			buffer[position + 1] = (byte) (pending >>> 8);
+    			buffer[position + 2] = (byte) (pending >>> 16);
+    			buffer[position + 3] = (byte) (pending >>> 24);
+    			position += 4;
+    			pending >>>= 32;
+    		}
+    		return;
+    	}
+
+    	for (int shift = 0; shift < count; shift += 8) {
+    		int nibbles = getNibbles(mines, state0, state1, state2, shift);
+    		int cells = Math.min(8, count - shift);
+    		long mask = (cells == 8) ? 0xFFFFFFFFL : (1L << (cells << 2)) - 1;
+
+    		pending |= (nibbles & mask) << pendingBits;
+    		pendingBits += cells << 2;
+
+    		while (pendingBits >= 8) {
+    			if (position == buffer.length) flush();
+    			buffer[position++] = (byte) pending;
+    			pending >>>= 8;
+    			pendingBits -= 8;
+    		}
+    	}
+    }
+
+    /**
+     * Собирает 8 полубайтов ячеек слова, начиная с бита shift
+     */
+    private static int getNibbles(long mines, long state0, long state1, long state2, int shift) {
+    	return SPREAD[(int) (mines >>> shift) & 0xFF]
+    		| (SPREAD[(int) (state0 >>> shift) & 0xFF] << 1)
+    		| (SPREAD[(int) (state1 >>> shift) & 0xFF] << 2)
+    		| (SPREAD[(int) (state2 >>> shift) & 0xFF] << 3);
+    }
+
+    /**
+     * Дописывает последний неполный байт и сбрасывает буфер в поток
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+
+    	if (pendingBits > 0) {
+    		if (position == buffer.length) flush();
+    		buffer[position++] = (byte) pending;
+    		pending = 0;
+    		pendingBits = 0;
+    	}
+
+    	flush();
+    }
+
+    /**
+     * Сбрасывает заполненную часть буфера в поток
+     */
+    private void flush() throws IOException {
+    	out.write(buffer, 0, position);
+    	position = 0;
+    }
+}
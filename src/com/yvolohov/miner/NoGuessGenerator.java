@@ -0,0 +1,254 @@
+package com.yvolohov.miner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.SystemClock;
+
+/**
+ * Генератор полей, которые решаются без угадывания. Стартовая ячейка
+ * - центр поля, вокруг нее мин нет, поэтому первый ход открывает
+ * область. Случайные расстановки мин проверяются решателем LogicSolver
+ * в нескольких потоках одновременно, каждый поток со своим решателем,
+ * и генерация заканчивается на первой решаемой расстановке или по
+ * истечении времени
+ * @author yvolohov
+ */
+class NoGuessGenerator {
+
+    /* на больших полях решатель работает слишком долго */
+    public static final int MAX_CELLS = 1 << 16;
+
+    public static final long TIME_LIMIT = 3000L;
+
+    /**
+     * Статистика генерации для подбора настроек
+     */
+    public static class Stats {
+
+        /* проверенные расстановки */
+        public final AtomicInteger candidates = new AtomicInteger();
+
+        /* сгенерированные поля и поля, на которые не хватило времени */
+        public int boards, failures;
+
+        /* суммарное и наибольшее время генерации поля, мс */
+        public long totalTime, maxTime;
+    }
+
+    /**
+     * Возвращает стартовую ячейку поля
+     * @param shape игровое поле;
+     * @return плоский индекс стартовой ячейки
+     */
+    public static int getStart(GameField shape) {
+    	return ((shape.getFHeight() / 2) * shape.getFWidth()) + (shape.getFWidth() / 2);
+    }
+
+    /**
+     * Открывает стартовую ячейку поля, созданного по результату
+     * генерации. Этот ход не считается ходом игрока и не отменяется
+     * @param field игровое поле;
+     */
+    public static void openStart(GameField field) {
+    	int start = getStart(field);
+    	field.openCell(start % field.getFWidth(), start / field.getFWidth());
+    	field.setClicks(0);
+    	field.clearHistory();
+    }
+
+    /**
+     * Проверяет, можно ли сгенерировать поле без угадывания
+     * с такими настройками
+     * @param shape игровое поле с нужными размерами и количеством мин;
+     * @return true если поле не слишком большое и мины помещаются
+     * вне окрестности стартовой ячейки
+     */
+    public static boolean isSupported(GameField shape) {
+    	int size = shape.getFWidth() * shape.getFHeight();
+    	return size <= MAX_CELLS && shape.getMines() <= size - getStartArea(shape).length;
+    }
+
+    /**
+     * Генерирует поле, которое решается без угадывания от стартовой ячейки
+     * @param shape игровое поле с нужными размерами, количеством мин
+     * и формой ячеек, используется только для чтения;
+     * @param timeLimit предельное время генерации, мс;
+     * @param stats статистика или null;
+     * @return упакованные состояния ячеек в формате GameField.unpackCells
+     * или null, если поле не найдено за отведенное время
+     */
+    public static byte[] generate(final GameField shape, long timeLimit, Stats stats) {
+
+    	if (!isSupported(shape)) return null;
+
+    	final long started = SystemClock.uptimeMillis();
+    	final long deadline = started + timeLimit;
+    	final AtomicReference<boolean[]> found = new AtomicReference<boolean[]>();
+    	final AtomicInteger candidates = (stats != null) ? stats.candidates : new AtomicInteger();
+    	final int threads = WorkerPool.getThreads();
+
+    	List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    	for (int thread = 0; thread < threads; thread++) {
+
+    		Runnable task = new Runnable() {
+    			public void run() {search(shape, deadline, found, candidates);}
+    		};
+
+    		if (thread < threads - 1) futures.add(WorkerPool.getExecutor().submit(task));
+    		else task.run();
+    	}
+
+    	WorkerPool.await(futures);
+
+    	boolean[] mines = found.get();
+    	long time = SystemClock.uptimeMillis() - started;
+
+    	if (stats != null) {
+    		if (mines != null) stats.boards++;
+    		else stats.failures++;
+    		stats.totalTime += time;
+    		stats.maxTime = Math.max(stats.maxTime, time);
+    	}
+
+    	return (mines != null) ? pack(mines) : null;
+    }
+
+    /**
+     * Проверяет случайные расстановки, пока одна из них, найденная
+     * любым потоком, не окажется решаемой или не истечет время
+     * @param shape игровое поле;
+     * @param deadline момент окончания поиска;
+     * @param found найденная расстановка;
+     * @param candidates счетчик проверенных расстановок;
+     */
+    private static void search(GameField shape, long deadline,
+    	AtomicReference<boolean[]> found, AtomicInteger candidates) {
+
+    	int start = getStart(shape);
+    	int[] area = getStartArea(shape);
+    	LogicSolver solver = new LogicSolver(shape);
+    	Random rand = new Random();
+
+    	while (found.get() == null && SystemClock.uptimeMillis() < deadline) {
+
+    		boolean[] mines = placeMines(shape, area, rand.nextLong());
+    		candidates.incrementAndGet();
+
+    		if (solver.solve(mines, shape.getMines(), start)) {
+    			found.compareAndSet(null, mines);
+    			return;
+    		}
+    	}
+    }
+
+    /**
+     * Ищет решаемую расстановку в одном потоке, перебирая расстановки 
+     * по зернам из генератора rand, результат зависит только от rand
+     * @param shape игровое поле;
+     * @param solver решатель для этого поля;
+     * @param rand генератор зерен расстановок;
+     * @param maxCandidates наибольшее количество проверяемых расстановок;
+     * @return зерно решаемой расстановки, по которому ее восстанавливает
+     * getLayout, или null, если расстановка не найдена
+     */
+    public static Long findSeed(GameField shape, LogicSolver solver, Random rand, int maxCandidates) {
+
+    	int start = getStart(shape);
+    	int[] area = getStartArea(shape);
+
+    	for (int candidate = 0; candidate < maxCandidates; candidate++) {
+    		long seed = rand.nextLong();
+    		if (solver.solve(placeMines(shape, area, seed), shape.getMines(), start)) return seed;
+    	}
+
+    	return null;
+    }
+
+    /**
+     * Восстанавливает расстановку мин по зерну
+     * @param shape игровое поле;
+     * @param seed зерно расстановки;
+     * @return упакованные ячейки в формате GameField.unpackCells
+     */
+    public static byte[] getLayout(GameField shape, long seed) {
+    	return pack(placeMines(shape, getStartArea(shape), seed));
+    }
+
+    /**
+     * Расставляет мины вне окрестности стартовой ячейки
+     * @param shape игровое поле;
+     * @param area стартовая ячейка вместе с соседями;
+     * @param seed зерно расстановки;
+     * @return признаки мин по плоским индексам ячеек
+     */
+    private static boolean[] placeMines(GameField shape, int[] area, long seed) {
+
+    	int size = shape.getFWidth() * shape.getFHeight();
+    	boolean[] mines = new boolean[size];
+    	Random rand = new Random(seed);
+
+    	/* окрестность стартовой ячейки временно занята, чтобы туда не попали мины */
+    	for (int cell : area) mines[cell] = true;
+
+    	for (int placed = 0; placed < shape.getMines(); ) {
+    		int cell = rand.nextInt(size);
+    		if (mines[cell]) continue;
+    		mines[cell] = true;
+    		placed++;
+    	}
+
+    	for (int cell : area) mines[cell] = false;
+    	return mines;
+    }
+
+    /**
+     * Возвращает стартовую ячейку вместе с соседями
+     * @param shape игровое поле;
+     * @return плоские индексы ячеек
+     */
+    private static int[] getStartArea(GameField shape) {
+
+    	int start = getStart(shape);
+    	int posW = start % shape.getFWidth();
+    	int posH = start / shape.getFWidth();
+    	int[] aroundW = shape.getAroundW(posH);
+    	int[] aroundH = shape.getAroundH(posH);
+    	int[] area = new int[aroundW.length + 1];
+    	int count = 0;
+
+    	area[count++] = start;
+
+    	for (int index = 0; index < aroundW.length; index++) {
+    		int nearW = posW + aroundW[index];
+    		int nearH = posH + aroundH[index];
+    		if (shape.cellExist(nearW, nearH)) area[count++] = (nearH * shape.getFWidth()) + nearW;
+    	}
+
+    	int[] result = new int[count];
+    	System.arraycopy(area, 0, result, 0, count);
+    	return result;
+    }
+
+    /**
+     * Упаковывает расстановку мин в формат GameField.unpackCells,
+     * все ячейки закрыты и не отмечены
+     * @param mines признаки мин;
+     * @return упакованные ячейки
+     */
+    private static byte[] pack(boolean[] mines) {
+
+    	byte[] packed = new byte[(mines.length + 1) / 2];
+    	int closed = (GameField.CLOSED_UNMARKED_CELLS / 10) << 1;
+
+    	for (int cell = 0; cell < mines.length; cell++)
+    		packed[cell >> 1] |= (byte) ((closed | (mines[cell] ? 1 : 0)) << ((cell & 1) << 2));
+
+    	return packed;
+    }
+}
@@ -13,8 +13,8 @@ import android.widget.EditText;
  */
 public class OwnGame extends Activity implements View.OnFocusChangeListener {
 
-	public static final int MAX_WIDTH = 99;
-	public static final int MAX_HEIGHT = 99;
+	public static final int MAX_WIDTH = 10000;
+	public static final int MAX_HEIGHT = 10000;
 		
 	private GlobalData globalData;
 	private EditText etFieldWidth, etFieldHeight, etFieldMines;
@@ -0,0 +1,279 @@
+package com.yvolohov.miner;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.os.Process;
+
+/**
+ * Таблица рекордов для любых конфигураций поля. Ключом служит
+ * GameStats.getKey, поэтому уровни сложности и игры со своими
+ * настройками хранятся вместе. Записи лежат в хеш-таблице с открытой
+ * адресацией на массивах примитивов, поиск и обновление выполняются
+ * за O(1). Количество записей ограничено MAX_RECORDS, при переполнении
+ * удаляется рекорд игры со своими настройками, которая дольше всех 
+ * не обновлялась, рекорды уровней сложности не удаляются никогда.
+ * Каждый новый рекорд сразу записывается в файл в фоновом потоке.
+ * Используется только в главном потоке
+ * @author yvolohov
+ */
+class RecordTable {
+
+    public static final int MAX_RECORDS = 256;
+
+    private static final int CAPACITY = 512;
+    private static final int MAGIC = 0x4D525431;
+    private static final long EMPTY = 0L;
+
+    private final Context context;
+    private final String fileName;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final long[] keys = new long[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final int[] uses = new int[CAPACITY];
+    private int size, clock;
+
+    /**
+     * @param context контекст приложения, в папку которого пишется файл;
+     * @param fileName имя файла рекордов;
+     */
+    public RecordTable(Context context, String fileName) {
+    	this.context = context;
+    	this.fileName = fileName;
+    }
+
+    /**
+     * Возвращает рекорд конфигурации поля
+     * @param key ключ конфигурации, см. GameStats.getKey;
+     * @return рекорд в миллисекундах или 0, если рекорда нет
+     */
+    public long get(long key) {
+    	int slot = find(key);
+    	return (keys[slot] == key) ? times[slot] : 0;
+    }
+
+    /**
+     * Сохраняет время игры, если оно лучше текущего рекорда,
+     * новый рекорд сразу записывается в файл
+     * @param key ключ конфигурации, см. GameStats.getKey;
+     * @param time время выигранной игры в миллисекундах;
+     * @return true если установлен новый рекорд
+     */
+    public boolean put(long key, long time) {
+
+    	if (key == EMPTY || time <= 0) return false;
+
+    	int slot = find(key);
+
+    	if (keys[slot] != key) {
+    		if (size >= MAX_RECORDS) {
+    			remove(getOldest());
+    			slot = find(key);
+    		}
+
+    		keys[slot] = key;
+    		times[slot] = 0;
+    		size++;
+    	}
+
+    	uses[slot] = ++clock;
+
+    	if (times[slot] != 0 && times[slot] <= time) return false;
+
+    	times[slot] = time;
+    	save();
+    	return true;
+    }
+
+    /**
+     * Удаляет все рекорды
+     */
+    public void clear() {
+    	for (int slot = 0; slot < CAPACITY; slot++) keys[slot] = EMPTY;
+    	size = 0;
+    	clock = 0;
+    }
+
+    /**
+     * Читает рекорды из файла, поврежденный файл игнорируется
+     */
+    public void load() {
+
+    	clear();
+
+    	try {
+    		DataInputStream in = new DataInputStream(new BufferedInputStream(
+    			context.openFileInput(fileName)));
+
+    		try {
+    			if (in.readInt() != MAGIC) return;
+
+    			int count = Math.min(in.readInt(), MAX_RECORDS);
+
+    			for (int record = 0; record < count; record++) {
+    				long key = in.readLong();
+    				long time = in.readLong();
+    				int use = in.readInt();
+
+    				int slot = find(key);
+    				if (key == EMPTY || keys[slot] == key) continue;
+
+    				keys[slot] = key;
+    				times[slot] = time;
+    				uses[slot] = use;
+    				clock = Math.max(clock, use);
+    				size++;
+    			}
+    		} finally {
+    			in.close();
+    		}
+    	}
+    	catch (IOException e) {}
+    }
+
+    /**
+     * Передает рекорды на запись в фоновый поток, который записывает 
+     * их во временный файл и заменяет им файл рекордов. Каждая запись
+     * занимает 20 байт, поэтому данные собираются в текущем потоке
+     */
+    public void save() {
+
+    	ByteArrayOutputStream buffer = new ByteArrayOutputStream(8 + (size * 20));
+    	DataOutputStream out = new DataOutputStream(buffer);
+
+    	try {
+    		out.writeInt(MAGIC);
+    		out.writeInt(size);
+
+    		for (int slot = 0; slot < CAPACITY; slot++) {
+    			if (keys[slot] == EMPTY) continue;
+    			out.writeLong(keys[slot]);
+    			out.writeLong(times[slot]);
+    			out.writeInt(uses[slot]);
+    		}
+    	}
+    	catch (IOException e) {return;}
+
+    	final byte[] data = buffer.toByteArray();
+
+    	executor.execute(new Runnable() {
+    		public void run() {
+    			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    			writeFile(data);
+    		}
+    	});
+    }
+
+    /**
+     * Записывает данные во временный файл и заменяет им файл рекордов
+     * @param data данные;
+     */
+    private void writeFile(byte[] data) {
+
+    	String tempName = fileName + ".tmp";
+
+    	try {
+    		FileOutputStream fos = context.openFileOutput(tempName, Context.MODE_PRIVATE);
+
+    		try {
+    			fos.write(data);
+    			fos.flush();
+    			fos.getFD().sync();
+    		} finally {
+    			fos.close();
+    		}
+
+    		File tempFile = context.getFileStreamPath(tempName);
+    		tempFile.renameTo(context.getFileStreamPath(fileName));
+    	}
+    	catch (IOException e) {}
+    }
+
+    /**
+     * Ищет ячейку таблицы с ключом или первую свободную ячейку
+     * на пути поиска
+     * @param key ключ;
+     * @return номер ячейки
+     */
+    private int find(long key) {
+    	int slot = hash(key);
+    	while (keys[slot] != EMPTY && keys[slot] != key)
+    		slot = (slot + 1) & (CAPACITY - 1);
+    	return slot;
+    }
+
+    /**
+     * Удаляет запись, сдвигая назад следующие за ней записи,
+     * чтобы не разорвать цепочки поиска
+     * @param slot номер ячейки;
+     */
+    private void remove(int slot) {
+
+    	keys[slot] = EMPTY;
+    	size--;
+
+    	int next = (slot + 1) & (CAPACITY - 1);
+
+    	while (keys[next] != EMPTY) {
+    		int home = hash(keys[next]);
+
+    		/* запись можно перенести в освободившуюся ячейку, если ее
+    		 * исходная позиция не лежит между освободившейся и текущей */
+    		if (((next - home) & (CAPACITY - 1)) >= ((next - slot) & (CAPACITY - 1))) {
+    			keys[slot] = keys[next];
+    			times[slot] = times[next];
+    			uses[slot] = uses[next];
+    			keys[next] = EMPTY;
+    			slot = next;
+    		}
+
+    		next = (next + 1) & (CAPACITY - 1);
+    	}
+    }
+
+    /**
+     * Возвращает ячейку записи игры со своими настройками, которая 
+     * дольше всех не обновлялась. Рекорды уровней сложности в поиске
+     * не участвуют, их не больше шести, поэтому при заполненной
+     * таблице такая запись всегда найдется
+     * @return номер ячейки
+     */
+    private int getOldest() {
+    	int oldest = -1;
+
+    	for (int slot = 0; slot < CAPACITY; slot++) {
+    		if (keys[slot] == EMPTY || isLevelKey(keys[slot])) continue;
+    		if (oldest < 0 || uses[slot] < uses[oldest]) oldest = slot;
+    	}
+
+    	return oldest;
+    }
+
+    /**
+     * Проверяет, что ключ принадлежит уровню сложности, а не игре
+     * со своими настройками
+     * @param key ключ, см. GameStats.getKey;
+     * @return true для уровня сложности
+     */
+    private static boolean isLevelKey(long key) {
+    	return ((key >>> 60) & 0x07) != 0;
+    }
+
+    /**
+     * Вычисляет начальную ячейку для ключа
+     * @param key ключ;
+     * @return номер ячейки
+     */
+    private static int hash(long key) {
+    	return (int) ((key * 0x9E3779B97F4A7C15L) >>> 55);
+    }
+}
@@ -0,0 +1,159 @@
+package com.yvolohov.miner;
+
+/**
+ * Индекс связных областей пустых ячеек поля, строится один раз после
+ * расстановки мин. Ячейки каждой области вместе с граничащими с ней
+ * ячейками с цифрами лежат подряд в общем массиве members, начало
+ * области i хранится в starts[i]. Для ячеек массив labels хранит
+ * номер области + 1 у пустых ячеек и отрицательный номер последней
+ * области, к которой ячейка добавлена как граничная, у ячеек с цифрами.
+ * Индекс строится только для полей до MAX_CELLS ячеек, так как
+ * занимает около восьми байт на ячейку
+ * @author yvolohov
+ */
+class RegionIndex {
+
+    public static final int MAX_CELLS = 1 << 20;
+
+    private static final int START_CAPACITY = 64;
+
+    private final int[] labels;
+    private int[] starts = new int[START_CAPACITY];
+    private int[] members = new int[START_CAPACITY];
+    private int regions, size, isolated;
+
+    /**
+     * @param cells количество ячеек поля;
+     */
+    public RegionIndex(int cells) {
+    	labels = new int[cells];
+    }
+
+    /**
+     * Начинает новую область с пустой ячейки
+     * @param cell плоский индекс пустой ячейки;
+     * @return номер области
+     */
+    public int startRegion(int cell) {
+
+    	if (regions + 1 >= starts.length) starts = grow(starts);
+
+    	int region = regions++;
+    	starts[region] = size;
+    	labels[cell] = region + 1;
+    	append(cell);
+    	starts[regions] = size;
+    	return region;
+    }
+
+    /**
+     * Добавляет ячейку в область, если ее там еще нет
+     * @param region номер области;
+     * @param cell плоский индекс ячейки;
+     * @param empty true для пустой ячейки, false для ячейки с цифрой;
+     * @return true если ячейка добавлена
+     */
+    public boolean addMember(int region, int cell, boolean empty) {
+
+    	if (labels[cell] == region + 1 || labels[cell] == -(region + 1))
+    		return false;
+
+    	labels[cell] = empty ? region + 1 : -(region + 1);
+    	append(cell);
+    	starts[regions] = size;
+    	return true;
+    }
+
+    /**
+     * Завершает построение индекса, освобождая запас в массивах
+     * @param isolated количество ячеек с цифрами, не граничащих
+     * ни с одной пустой областью;
+     */
+    public void finish(int isolated) {
+    	this.isolated = isolated;
+    	starts = trim(starts, regions + 1);
+    	members = trim(members, size);
+    }
+
+    /**
+     * Возвращает номер области пустой ячейки
+     * @param cell плоский индекс ячейки;
+     * @return номер области или -1, если ячейка не пустая
+     */
+    public int getRegion(int cell) {
+    	return (labels[cell] > 0) ? labels[cell] - 1 : -1;
+    }
+
+    /**
+     * Проверяет, что ячейка входит хотя бы в одну область
+     * @param cell плоский индекс ячейки;
+     * @return true если ячейка пустая или граничит с пустой
+     */
+    public boolean isIndexed(int cell) {return labels[cell] != 0;}
+
+    /**
+     * Проверяет, что ячейка - пустая ячейка указанной области
+     * @param region номер области;
+     * @param cell плоский индекс ячейки;
+     * @return true если ячейка пустая и принадлежит области
+     */
+    public boolean isEmpty(int region, int cell) {return labels[cell] == region + 1;}
+
+    /**
+     * Возвращает позицию первой ячейки области в массиве ячеек
+     * @param region номер области;
+     * @return позиция
+     */
+    public int getStart(int region) {return starts[region];}
+
+    /**
+     * Возвращает позицию за последней ячейкой области в массиве ячеек
+     * @param region номер области;
+     * @return позиция
+     */
+    public int getEnd(int region) {return starts[region + 1];}
+
+    /**
+     * Возвращает ячейку по позиции в массиве ячеек
+     * @param position позиция;
+     * @return плоский индекс ячейки
+     */
+    public int getMember(int position) {return members[position];}
+
+    /**
+     * Возвращает количество пустых областей
+     */
+    public int getRegions() {return regions;}
+
+    /**
+     * Возвращает количество ячеек с цифрами, не граничащих
+     * ни с одной пустой областью
+     */
+    public int getIsolated() {return isolated;}
+
+    /**
+     * Добавляет ячейку в конец массива ячеек
+     */
+    private void append(int cell) {
+    	if (size == members.length) members = grow(members);
+    	members[size++] = cell;
+    }
+
+    /**
+     * Возвращает копию массива удвоенной длины
+     */
+    private static int[] grow(int[] array) {
+    	int[] result = new int[array.length * 2];
+    	System.arraycopy(array, 0, result, 0, array.length);
+    	return result;
+    }
+
+    /**
+     * Возвращает копию начала массива указанной длины
+     */
+    private static int[] trim(int[] array, int length) {
+    	int[] result = new int[length];
+    	System.arraycopy(array, 0, result, 0, length);
+    	return result;
+    }
+}
@@ -6,7 +6,7 @@ import android.view.View;
 import android.widget.TextView;
 
 /**
- * Класс Activity, отбражающей игровые рекорды 
+ * Класс Activity, отбражающей игровые рекорды и статистику игр
  * @author yvolohov
  */
 public class Results extends Activity {
@@ -34,21 +34,36 @@ public class Results extends Activity {
 	}
 
 	/**
-	 * Выводит рекорды на экран
+	 * Выводит рекорды и статистику на экран
 	 */
 	private void loadRecords() {
-		tvSimpleSqu.setText(GameField.getTimeAsString(globalData
-				.getRecord(GameField.SIMPLE_LEVEL)));
-		tvSimpleHex.setText(GameField.getTimeAsString(globalData
-				.getRecord(GameField.SIMPLE_LEVEL_HEX)));
-		tvMediumSqu.setText(GameField.getTimeAsString(globalData
-				.getRecord(GameField.MEDIUM_LEVEL)));
-		tvMediumHex.setText(GameField.getTimeAsString(globalData
-				.getRecord(GameField.MEDIUM_LEVEL_HEX)));
-		tvHardSqu.setText(GameField.getTimeAsString(globalData
-				.getRecord(GameField.HARD_LEVEL)));
-		tvHardHex.setText(GameField.getTimeAsString(globalData
-				.getRecord(GameField.HARD_LEVEL_HEX)));	
+		tvSimpleSqu.setText(getResultText(GameField.SIMPLE_LEVEL));
+		tvSimpleHex.setText(getResultText(GameField.SIMPLE_LEVEL_HEX));
+		tvMediumSqu.setText(getResultText(GameField.MEDIUM_LEVEL));
+		tvMediumHex.setText(getResultText(GameField.MEDIUM_LEVEL_HEX));
+		tvHardSqu.setText(getResultText(GameField.HARD_LEVEL));
+		tvHardHex.setText(getResultText(GameField.HARD_LEVEL_HEX));
+	}
+	
+	/**
+	 * Формирует текст с рекордом и статистикой уровня игры.
+	 * Статистика берется из уже посчитанных сумм, поэтому
+	 * не зависит от количества сыгранных игр
+	 * @param level уровень игры;
+	 * @return текст для вывода на экран
+	 */
+	private String getResultText(int level) {
+		
+		String record = GameField.getTimeAsString(globalData.getRecord(level));
+		GameStats stats = globalData.getGameHistory().getStats(
+				level >= GameField.SIMPLE_LEVEL_HEX, level, 0, 0, 0);
+		
+		if (stats.games == 0) return record;
+		
+		return getString(R.string.stats_format, record, 
+				stats.games, Math.round(stats.getWinRate() * 100),
+				GameField.getTimeAsString(stats.getPercentile(0.5)),
+				GameField.getTimeAsString(stats.getPercentile(0.9)));
 	}
 	
 	/**
@@ -2,16 +2,17 @@ package com.yvolohov.miner;
 
 import android.graphics.Point;
 import android.graphics.PointF;
-import android.graphics.RectF;
 
 /**
  * Класс представляет модель игры "Сапер" с
  * квадратными ячейками
  * @author Ярослав Волохов
  */
-@SuppressWarnings("serial")
 public class SquGameField extends GameField {
 
+    private static final int[] AROUND_W = new int[] {-1, -1, -1, 0, 0, 1, 1, 1};
+    private static final int[] AROUND_H = new int[] {-1, 0, 1, -1, 1, -1, 0, 1};
+    
 	private int level;
 	
     /**
@@ -34,6 +35,76 @@ public class SquGameField extends GameField {
         this.level = 0;
     }
     
+    /**
+     * Восстанавливает сохраненное игровое поле
+     * @param level уровень сложности игры или 0 для
+     * игры со своими настройками;
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @param packedCells упакованные состояния ячеек;
+     */
+    public SquGameField(int level, int width, int height, int mines, byte[] packedCells) {
+        super(width, height, mines, packedCells);
+        this.level = level;
+    }
+
+    /**
+     * Создает поле, которое решается без угадывания от открытой
+     * центральной ячейки. Поле берется из библиотеки BoardLibrary,
+     * а если ее нет - генерируется. Если такое поле не найдено за 
+     * отведенное время, возвращается обычное поле
+     * @param level уровень сложности игры;
+     * @return игровое поле в режиме без угадывания
+     */
+    public static SquGameField createNoGuess(int level) {
+    	int width = getLevelWidth(level);
+    	int height = getLevelHeight(level);
+    	int mines = getLevelMines(level);
+    	GameField ready = BoardLibrary.pickField(BoardLibrary.SQU_SHAPE, level, BoardLibrary.getLevelBucket(level),
+    		width, height, mines);
+    	
+    	if (ready != null) return (SquGameField) ready;
+    	
+    	SquGameField field = new SquGameField(level);
+    	byte[] packed = NoGuessGenerator.generate(field, NoGuessGenerator.TIME_LIMIT, null);
+    	
+    	if (packed != null) {
+    		field = new SquGameField(level, width, height, mines, packed);
+    		NoGuessGenerator.openStart(field);
+    	}
+    	
+    	field.setNoGuess(true);
+    	return field;
+    }
+    
+    /**
+     * Создает поле со своими настройками, которое решается без
+     * угадывания от открытой центральной ячейки. Поле берется из 
+     * библиотеки BoardLibrary, а если ее нет - генерируется. Если 
+     * такое поле не найдено за отведенное время, возвращается обычное поле
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @return игровое поле в режиме без угадывания
+     */
+    public static SquGameField createNoGuess(int width, int height, int mines) {
+    	GameField ready = BoardLibrary.pickField(BoardLibrary.SQU_SHAPE, 0, BoardLibrary.ANY_BUCKET,
+    		width, height, mines);
+    	if (ready != null) return (SquGameField) ready;
+    	
+    	SquGameField field = new SquGameField(width, height, mines);
+    	byte[] packed = NoGuessGenerator.generate(field, NoGuessGenerator.TIME_LIMIT, null);
+    	
+    	if (packed != null) {
+    		field = new SquGameField(0, width, height, mines, packed);
+    		NoGuessGenerator.openStart(field);
+    	}
+    	
+    	field.setNoGuess(true);
+    	return field;
+    }
+
     // -= ABSTRACT METHODS IMPLEMENTATION =-
 
     /**
@@ -42,7 +113,9 @@ public class SquGameField extends GameField {
      * @return новый экземпляр игрового поля
      */
 	public GameField reCreate() {
-		if (level > 0)
+		if (isNoGuess())
+			return (level > 0) ? createNoGuess(level) : createNoGuess(getFWidth(), getFHeight(), getMines());
+		else if (level > 0)
 			return new SquGameField(level);
 		else
 			return new SquGameField(getFWidth(), getFHeight(), getMines());
@@ -61,44 +134,37 @@ public class SquGameField extends GameField {
      * Возвращает координаты ячейки поля, соответствующие определенной точке, 
      * в которой было сделано нажатие на поле. Реализация абстрактного метода
      * для поля с квадратными ячейками
-     * @param pointCoords координаты точки нажатия на поле, в пикселах;
+     * @param posW координата точки нажатия по ширине поля, в пикселах;
+     * @param posH координата точки нажатия по высоте поля, в пикселах;
      * @param cellSizes размеры ячейки поля;
      * @return координаты ячейки поля или null в случае, если нажатие было
      * сделано в области поля без ячейки
      */    
     @Override
-    public Point fieldPointToFieldCell(PointF pointCoords, PointF cellSizes) {
+    public Point fieldPointToFieldCell(double posW, double posH, PointF cellSizes) {
         
         Point cellCoords = new Point();
-        cellCoords.x = (int) Math.floor(pointCoords.x / cellSizes.x);
-        cellCoords.y = (int) Math.floor(pointCoords.y / cellSizes.y);       
+        cellCoords.x = (int) Math.floor(posW / cellSizes.x);
+        cellCoords.y = (int) Math.floor(posH / cellSizes.y);       
         
         return cellCoords;
     }    
     
     /**
-     * Этот метод возвращает координаты ячеек вокруг текущей ячейки,
-     * для квадратной ячейки их восемь пар
-     * @param posW индекс ячейки по ширине;
-     * @param posH индекс ячейки по высоте;
-     * @return двумерный массив с координатами
+     * Возвращает смещения по ширине восьми ячеек вокруг ячейки
+     * @param posH индекс строки;
+     * @return смещения по ширине
      */
     @Override
-    public int[][] getCoordsAround(int posW, int posH) {
-        
-        int coords[][] = new int[][] {
-            {posW - 1, posH - 1},           
-            {posW - 1, posH},           
-            {posW - 1, posH + 1},
-            {posW, posH - 1},     
-            {posW, posH + 1},            
-            {posW + 1, posH - 1},
-            {posW + 1, posH},
-            {posW + 1, posH + 1}
-        };
-        
-        return coords;
-    }
+    protected int[] getAroundW(int posH) {return AROUND_W;}
+    
+    /**
+     * Возвращает смещения по высоте восьми ячеек вокруг ячейки
+     * @param posH индекс строки;
+     * @return смещения по высоте
+     */
+    @Override
+    protected int[] getAroundH(int posH) {return AROUND_H;}
 
     /**
      * Возвращает ширину поля в пикселях:
@@ -106,8 +172,8 @@ public class SquGameField extends GameField {
      * @return размер поля
      */     
     @Override
-    public float getFWidthInPixels(float cellWidth) {      
-        return getFWidth() * cellWidth;        
+    public double getFWidthInPixels(float cellWidth) {      
+        return (double) getFWidth() * cellWidth;        
     }
     
     /**
@@ -116,8 +182,8 @@ public class SquGameField extends GameField {
      * @return размер поля
      */    
     @Override
-    public float getFHeightInPixels(float cellHeight) {
-        return getFHeight() * cellHeight;    
+    public double getFHeightInPixels(float cellHeight) {
+        return (double) getFHeight() * cellHeight;    
     }
 
     /**
@@ -128,13 +194,13 @@ public class SquGameField extends GameField {
      * @return диапазоны номеров ячеек, отображаемых на экране
      */    
     @Override
-    public DrawableCells getDrawableCells(RectF fieldArea, PointF cellSizes) {               
+    public DrawableCells getDrawableCells(FieldArea fieldArea, PointF cellSizes) {               
     
         // если fieldArea выходит за границы поля, выполним ее обрезку 
-        float indW = getFWidthInPixels(cellSizes.x) - 1f;
-        float indH = getFHeightInPixels(cellSizes.y) - 1f;
-        RectF template = new RectF(0f, 0f, indW, indH);      
-        RectF area = clipArea(fieldArea, template);
+        double indW = getFWidthInPixels(cellSizes.x) - 1.0;
+        double indH = getFHeightInPixels(cellSizes.y) - 1.0;
+        FieldArea template = new FieldArea(0.0, 0.0, indW, indH);      
+        FieldArea area = clipArea(fieldArea, template);
         
         // получим ячейки внутри fieldArea
         DrawableCells drawableCells = new DrawableCells();
@@ -157,14 +223,14 @@ public class SquGameField extends GameField {
      * поля, в которой будет отрисована ячейка
      */
     @Override
-    public RectF getCellArea(Point cellCoords, PointF cellSizes, boolean overlap) {       
+    public FieldArea getCellArea(Point cellCoords, PointF cellSizes, boolean overlap) {       
         if (!cellExist(cellCoords.x, cellCoords.y)) return null;      
         
         float overlapValue = (!overlap) ? 1f : 0f;
         
-        RectF cellArea = new RectF();
-        cellArea.left = cellCoords.x * cellSizes.x;
-        cellArea.top = cellCoords.y * cellSizes.y;
+        FieldArea cellArea = new FieldArea();
+        cellArea.left = (double) cellCoords.x * cellSizes.x;
+        cellArea.top = (double) cellCoords.y * cellSizes.y;
         cellArea.right = cellArea.left + (cellSizes.x - overlapValue);
         cellArea.bottom = cellArea.top + (cellSizes.y - overlapValue);
         return cellArea;
@@ -0,0 +1,134 @@
+package com.yvolohov.miner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+/**
+ * Параллельная расстановка мин на больших полях. Поле делится на
+ * горизонтальные полосы по четному числу строк, так что полосы не
+ * делят между собой ни байтов упакованного поля, ни слов битовых
+ * плоскостей. Количество мин в каждой полосе вычисляется заранее
+ * по зерну, пропорционально размеру полосы, так что их сумма точно
+ * равна количеству мин на поле, а мины внутри полосы расставляются
+ * собственным генератором полосы, полученным из зерна и номера полосы.
+ * Разбиение на полосы не зависит от количества потоков, поэтому при
+ * одном зерне поле получается одинаковым при любом их количестве
+ * @author yvolohov
+ */
+class StripeGenerator {
+
+    /* поля от этого размера генерируются параллельно */
+    public static final int MIN_CELLS = 1 << 20;
+
+    /* примерный размер полосы в ячейках */
+    private static final int STRIPE_CELLS = 1 << 16;
+
+    /**
+     * Заполнение одной полосы, вызывается из потоков пула
+     */
+    public interface Stripe {
+
+        /**
+         * Расставляет мины в полосе. Ячейки полосы до вызова
+         * не инициализированы
+         * @param from плоский индекс первой ячейки полосы;
+         * @param to плоский индекс ячейки за последней ячейкой полосы;
+         * @param mines количество мин в полосе;
+         * @param rand генератор полосы;
+         */
+        void fill(int from, int to, int mines, Random rand);
+    }
+
+    /**
+     * Расставляет мины по полосам и дожидается окончания работы
+     * @param seed зерно;
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @param stripe заполнение полосы;
+     * @param threads количество потоков;
+     */
+    public static void generate(final long seed, final int width, final int height, int mines,
+    	final Stripe stripe, final int threads) {
+
+    	final int rows = getStripeRows(width);
+    	final int stripes = (height + rows - 1) / rows;
+    	final int[] counts = getStripeMines(seed, width, height, mines, rows, stripes);
+
+    	List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    	/* полосы раздаются потокам через одну, последний поток - вызывающий */
+    	for (int thread = 0; thread < threads; thread++) {
+    		final int first = thread;
+
+    		Runnable task = new Runnable() {
+    			public void run() {
+    				for (int index = first; index < stripes; index += threads) {
+    					int from = index * rows * width;
+    					int to = Math.min(height, (index + 1) * rows) * width;
+    					long stripeSeed = MineLayout.mix(seed + (index * 0x9E3779B97F4A7C15L));
+    					stripe.fill(from, to, counts[index], new Random(stripeSeed));
+    				}
+    			}
+    		};
+
+    		if (thread < threads - 1) futures.add(WorkerPool.getExecutor().submit(task));
+    		else task.run();
+    	}
+
+    	WorkerPool.await(futures);
+    }
+
+    /**
+     * Возвращает четное количество строк в полосе
+     * @param width ширина поля;
+     * @return количество строк
+     */
+    private static int getStripeRows(int width) {
+    	return Math.max(2, (STRIPE_CELLS / Math.max(width, 1)) & ~1);
+    }
+
+    /**
+     * Распределяет мины по полосам: каждая полоса получает целую
+     * часть своей доли, а остаток раздается по одной мине случайным
+     * полосам, в которых есть место
+     * @param seed зерно;
+     * @param width ширина поля;
+     * @param height высота поля;
+     * @param mines количество мин;
+     * @param rows количество строк в полосе;
+     * @param stripes количество полос;
+     * @return количество мин в каждой полосе
+     */
+    private static int[] getStripeMines(long seed, int width, int height, int mines,
+    	int rows, int stripes) {
+
+    	long size = (long) width * height;
+    	int[] counts = new int[stripes];
+    	boolean[] extra = new boolean[stripes];
+    	int rest = mines;
+
+    	for (int index = 0; index < stripes; index++) {
+    		long cells = (long) (Math.min(height, (index + 1) * rows) - (index * rows)) * width;
+    		counts[index] = (int) (mines * cells / size);
+    		rest -= counts[index];
+    	}
+
+    	Random rand = new Random(seed);
+
+    	while (rest > 0) {
+    		int index = rand.nextInt(stripes);
+    		long cells = (long) (Math.min(height, (index + 1) * rows) - (index * rows)) * width;
+
+    		if (extra[index] || counts[index] == cells) continue;
+
+    		extra[index] = true;
+    		counts[index]++;
+    		rest--;
+    	}
+
+    	return counts;
+    }
+}
@@ -97,8 +97,8 @@ public class TouchHandler implements Runnable {
             if (interval < MIN_TIME_TO_LONG_CLICK) 
             	continue;
             
-            Point pointCoords = new Point((int)(downPoint.x),(int)(downPoint.y));
-            gameScreen.onShortToLongClickScreen(pointCoords);                      
+            gameScreen.postCommand(GameCommand.PRESS_POINT, 
+            	(int)(downPoint.x), (int)(downPoint.y));
             break;
         }
     }    
@@ -110,12 +110,10 @@ public class TouchHandler implements Runnable {
     private void clickHandle(MotionEvent event) {
 
         long interval = event.getEventTime() - downTime;
-        Point pointCoords = new Point((int)(event.getX()),(int)(event.getY()));
+        int type = (interval < MIN_TIME_TO_LONG_CLICK) 
+        	? GameCommand.OPEN_CELL : GameCommand.MARK_CELL;
         
-        if (interval < MIN_TIME_TO_LONG_CLICK) 
-            gameScreen.onShortClickScreen(pointCoords);
-        else
-            gameScreen.onLongClickScreen(pointCoords);                
+        gameScreen.postCommand(type, (int)(event.getX()), (int)(event.getY()));
     }
     
     /**
@@ -141,8 +139,7 @@ public class TouchHandler implements Runnable {
             int pcount = count - 1;
             int moveH = (int)(points[count].x - points[pcount].x);
             int moveW = (int)(points[count].y - points[pcount].y);
-            Point scr = new Point(-moveH, -moveW);
-            gameScreen.onMoveScreen(scr);
+            gameScreen.postCommand(GameCommand.MOVE_SCREEN, -moveH, -moveW);
         }
 
         prevPoint.x = event.getX();
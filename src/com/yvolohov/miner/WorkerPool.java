@@ -0,0 +1,76 @@
+package com.yvolohov.miner;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Общий пул потоков для параллельной работы с большими полями:
+ * обхода каскадов и генерации. Пул создается при первом обращении,
+ * его потоки фоновые и не мешают завершению приложения. Вызывающий
+ * поток сам выполняет одну часть работы, поэтому в пуле на один
+ * поток меньше, чем процессоров
+ * @author yvolohov
+ */
+class WorkerPool {
+
+    private static ExecutorService executor;
+
+    /**
+     * Возвращает количество потоков, на которое имеет смысл делить
+     * работу, 1 означает, что параллельная работа не нужна
+     */
+    public static int getThreads() {
+    	return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Возвращает пул, создавая его при первом обращении
+     */
+    public static synchronized ExecutorService getExecutor() {
+
+    	if (executor == null) {
+    		executor = Executors.newFixedThreadPool(Math.max(1, getThreads() - 1), new ThreadFactory() {
+    			public Thread newThread(Runnable runnable) {
+    				Thread thread = new Thread(runnable, "WorkerPool");
+    				thread.setDaemon(true);
+    				return thread;
+    			}
+    		});
+    	}
+
+    	return executor;
+    }
+
+    /**
+     * Дожидается завершения задач. Прерывание вызывающего потока
+     * откладывается до конца ожидания, так как задачи работают
+     * с данными, которые вызывающий поток будет менять после них
+     * @param futures задачи, список очищается;
+     */
+    public static void await(List<Future<?>> futures) {
+
+    	boolean interrupted = false;
+
+    	for (Future<?> future : futures) {
+    		while (true) {
+    			try {
+    				future.get();
+    				break;
+    			}
+    			catch (InterruptedException e) {
+    				interrupted = true;
+    			}
+    			catch (ExecutionException e) {
+    				throw new RuntimeException(e.getCause());
+    			}
+    		}
+    	}
+
+    	futures.clear();
+    	if (interrupted) Thread.currentThread().interrupt();
+    }
+}